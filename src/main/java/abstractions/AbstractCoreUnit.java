@@ -19,6 +19,7 @@ package abstractions;
 
 import api.ApiLogHelper;
 import api.ApiResponse;
+import api.ExecutionContext;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -30,8 +31,9 @@ import java.util.Map;
  */
 public abstract class AbstractCoreUnit {
 
-    protected Map<String, String> coordinates = new HashMap<>();
-    protected Map<String, String> settings    = new HashMap<>();
+    // Immutable, shared by reference with requests, workers and protocols
+    protected Map<String, String> coordinates = ExecutionContext.EMPTY;
+    protected Map<String, String> settings    = ExecutionContext.EMPTY;
     protected static final Map<String, Integer> logLevels = new HashMap<>();
     static {
         logLevels.put("DEBUG", 0);
@@ -0,0 +1,303 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ * Immutable flat API record {"field": "value", ..}
+ * Known fields are kept in array by field index, unknown fields are kept aside, so record is lossless.
+ * Read and written by streaming adapter, without reflection and intermediate maps.
+ */
+public abstract class AbstractDTORecord {
+
+    private final Schema schema;
+    private final String[] values;
+    private final Map<String, String> extra;
+
+    // Read-only map view, created on demand
+    private volatile Map<String, String> view = null;
+
+    /**
+     * Known fields of record type
+     */
+    protected static final class Schema {
+
+        private final String[] names;
+        private final Map<String, Integer> index = new HashMap<>();
+
+        public Schema(String... names) {
+            this.names = names;
+            for (int i = 0; i < names.length; i++) {
+                this.index.put(names[i], i);
+            }
+        }
+
+        private int indexOf(String name) {
+            Integer found = this.index.get(name);
+            return (found == null) ? -1 : found;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param schema - known fields
+     * @param values - known field values by index, not copied
+     * @param extra  - unknown fields
+     */
+    protected AbstractDTORecord(Schema schema, String[] values, Map<String, String> extra) {
+        this.schema = schema;
+        this.values = values;
+        this.extra  = (extra == null || extra.isEmpty()) ? Collections.emptyMap() : Collections.unmodifiableMap(extra);
+    }
+
+    /**
+     * @param index   - known field index
+     * @return String - value or null
+     */
+    protected String value(int index) {
+        return this.values[index];
+    }
+
+    /**
+     * @param name    - field name
+     * @return String - value or null
+     */
+    public String get(String name) {
+        int index = this.schema.indexOf(name);
+        return (index >= 0) ? this.values[index] : this.extra.get(name);
+    }
+
+    /**
+     * Read-only map of all fields with values
+     * Used where records are passed on as coordinates, settings or job info
+     *
+     * @return Map
+     */
+    public Map<String, String> asMap() {
+        Map<String, String> current = this.view;
+        if(current == null) {
+            current   = new RecordMap();
+            this.view = current;
+        }
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + this.asMap().toString();
+    }
+
+
+    /**
+     * Map view of record
+     */
+    private final class RecordMap extends AbstractMap<String, String> {
+
+        private final Set<Map.Entry<String, String>> entries = new AbstractSet<Map.Entry<String, String>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+
+                    private final Iterator<Map.Entry<String, String>> extraIterator = AbstractDTORecord.this.extra.entrySet().iterator();
+                    private int next = this.skipEmpty(0);
+
+                    private int skipEmpty(int from) {
+                        String[] values = AbstractDTORecord.this.values;
+                        while (from < values.length && values[from] == null) {
+                            from++;
+                        }
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return this.next < AbstractDTORecord.this.values.length || this.extraIterator.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if(this.next < AbstractDTORecord.this.values.length) {
+                            int current = this.next;
+                            this.next   = this.skipEmpty(current + 1);
+                            return new SimpleImmutableEntry<>(AbstractDTORecord.this.schema.names[current], AbstractDTORecord.this.values[current]);
+                        }
+                        if(this.extraIterator.hasNext()) {
+                            return this.extraIterator.next();
+                        }
+                        throw new NoSuchElementException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                int size = AbstractDTORecord.this.extra.size();
+                for (String value : AbstractDTORecord.this.values) {
+                    if(value != null) {
+                        size++;
+                    }
+                }
+                return size;
+            }
+        };
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return this.entries;
+        }
+
+        @Override
+        public String get(Object key) {
+            return (key instanceof String) ? AbstractDTORecord.this.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return this.get(key) != null;
+        }
+    }
+
+
+    /**
+     * Streaming adapter of record type
+     * Empty record may come as [] or null
+     *
+     * @param <T> record type
+     */
+    protected abstract static class Adapter<T extends AbstractDTORecord> extends TypeAdapter<T> {
+
+        private final Schema schema;
+
+        protected Adapter(Schema schema) {
+            this.schema = schema;
+        }
+
+        /**
+         * @param values - known field values by index
+         * @param extra  - unknown fields or null
+         * @return T     - record
+         */
+        protected abstract T create(String[] values, Map<String, String> extra);
+
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+
+            if(value == null) {
+                out.nullValue();
+                return;
+            }
+
+            AbstractDTORecord record = value;
+
+            out.beginObject();
+
+            for (int i = 0; i < record.values.length; i++) {
+                if(record.values[i] != null) {
+                    out.name(this.schema.names[i]).value(record.values[i]);
+                }
+            }
+
+            for (Map.Entry<String, String> entry : record.extra.entrySet()) {
+                out.name(entry.getKey()).value(entry.getValue());
+            }
+
+            out.endObject();
+        }
+
+        @Override
+        public T read(JsonReader in) throws IOException {
+
+            String[] values           = new String[this.schema.names.length];
+            Map<String, String> extra = null;
+
+            switch (in.peek()) {
+                case NULL:
+                    in.nextNull();
+                    return null;
+                case BEGIN_ARRAY:
+                    in.beginArray();
+                    in.endArray();
+                    return this.create(values, null);
+                default:
+                    in.beginObject();
+            }
+
+            while (in.hasNext()) {
+
+                String name  = in.nextName();
+                String value = Adapter.readString(in, name);
+                int index    = this.schema.indexOf(name);
+
+                if(index >= 0) {
+                    values[index] = value;
+                }
+                else if(value != null) {
+                    if(extra == null) {
+                        extra = new LinkedHashMap<>();
+                    }
+                    extra.put(name, value);
+                }
+            }
+
+            in.endObject();
+
+            return this.create(values, extra);
+        }
+
+        /**
+         * Read scalar value as string, same as Gson does for Map<String, String>
+         */
+        private static String readString(JsonReader in, String name) throws IOException {
+
+            JsonToken token = in.peek();
+
+            switch (token) {
+                case NULL:
+                    in.nextNull();
+                    return null;
+                case BOOLEAN:
+                    return Boolean.toString(in.nextBoolean());
+                case STRING:
+                case NUMBER:
+                    return in.nextString();
+                default:
+                    throw new JsonSyntaxException("Expected string value of " + name + ", but was " + token + " at " + in.getPath());
+            }
+        }
+    }
+
+}
@@ -35,6 +35,29 @@ public abstract class AbstractProtocol extends AbstractCoreUnit {
     protected Map<String, Map<String, String>> jobs           = new TreeMap<>();
     // Class work result
     protected DTOProtocolResult result                        = new DTOProtocolResult();
+    // Compiled jobs, shared by all nodes of worker
+    protected DTOJobPlan jobPlan                              = null;
+
+    /**
+     * Set compiled job plan
+     *
+     * @param jobPlan - plan of this.jobs
+     * @return AbstractProtocol
+     */
+    public AbstractProtocol setJobPlan(DTOJobPlan jobPlan) {
+        this.jobPlan = jobPlan;
+        return this;
+    }
+
+    /**
+     * Compiled job
+     *
+     * @param jobKey  - key of this.jobs
+     * @return DTOJob - compiled job or null, if plan is not set
+     */
+    protected DTOJob getCompiledJob(String jobKey) {
+        return (this.jobPlan == null) ? null : this.jobPlan.getJob(jobKey);
+    }
 
     /**
      * Executing all commands(this.jobs). Returning DTO with results.
@@ -43,6 +66,14 @@ public abstract class AbstractProtocol extends AbstractCoreUnit {
      */
     public abstract DTOProtocolResult execute();
 
+    /**
+     * Close device session from other thread, so blocked I/O of cancelled task run fails at once
+     * Can be called at any stage of execute() and more than once
+     */
+    public void abort() {
+        // protocols without device session have nothing to close
+    }
+
     /**
      * Extracting/converting settings to class fields
      *
@@ -18,6 +18,7 @@
 package abstractions;
 
 import api.ApiCaller;
+import api.ApiGsonSingleton;
 import api.ApiRequest;
 import api.ApiRequestMethods;
 import api.ApiResponse;
@@ -47,16 +48,37 @@ import java.util.concurrent.Callable;
  */
 public abstract class AbstractWorker extends AbstractCoreUnit implements Callable<Boolean> {
 
+    // Jobs json: {"jobKey": {job fields}, ..}
+    private static final Type JOBS_TYPE = new TypeToken<TreeMap<String, DTOJobSpec>>(){}.getType();
+
     protected Map<String, String> credentials;
     protected Map<String, Map<String, String>> jobs;
+    protected DTOJobPlan jobPlan;
     protected Map<String, DTOVariableConvertResult> variables = new HashMap<>();
-    protected Gson gson = new Gson();
+    protected Gson gson = ApiGsonSingleton.getInstance();
 
     /*
      * Worker result DTO
      */
     protected DTOWorkerResult workerResult = new DTOWorkerResult();
 
+    /*
+     * Objects shared by workers of current task run
+     */
+    protected TaskScope taskScope = null;
+
+
+    /**
+     * Set task scope
+     *
+     * @param taskScope - objects shared by workers of current task run
+     * @return AbstractWorker
+     */
+    public AbstractWorker setTaskScope(TaskScope taskScope)
+    {
+        this.taskScope = taskScope;
+        return this;
+    }
 
     /**
      * Main worker thread-callable method
@@ -101,6 +123,35 @@ public abstract class AbstractWorker extends AbstractCoreUnit implements Callabl
     }
 
 
+    /**
+     * Execute protocol jobs
+     * Device session of protocol is closed, if task run is cancelled meanwhile
+     *
+     * @param protocol             - protocol object
+     * @return DTOProtocolResult   - protocol result, failed if task run is cancelled
+     */
+    protected DTOProtocolResult executeProtocol(AbstractProtocol protocol)
+    {
+        if(this.taskScope == null) {
+            return protocol.execute();
+        }
+
+        if(this.taskScope.isCancelled()) {
+            return new DTOProtocolResult();
+        }
+
+        AutoCloseable handle = protocol::abort;
+        this.taskScope.register(handle);
+
+        try {
+            return protocol.execute();
+        }
+        finally {
+            this.taskScope.unregister(handle);
+        }
+    }
+
+
     /**
      * Checking data, critical for factories
      *
@@ -135,6 +186,17 @@ public abstract class AbstractWorker extends AbstractCoreUnit implements Callabl
      */
     protected Boolean getCredentials()
     {
+        /*
+         * Credentials, prefetched by task
+         */
+        if(this.taskScope != null) {
+            DTOCredentials prefetched = this.taskScope.takeCredentials(this.coordinates.get("nodeId"));
+            if(prefetched != null) {
+                this.credentials = prefetched.asMap();
+                return true;
+            }
+        }
+
         /*
          * Getting credentials Json
          */
@@ -165,13 +227,10 @@ public abstract class AbstractWorker extends AbstractCoreUnit implements Callabl
          * Parsing credentials Json to map
          * Writing parse result
          */
-        String credentialsJson = credentialsResponse.response;
-
-        Type credentialsType = new TypeToken<HashMap<String, String>>(){}.getType();
-
         try {
 
-            this.credentials = gson.fromJson(credentialsJson, credentialsType);
+            DTOCredentials parsedCredentials = gson.fromJson(credentialsResponse.response, DTOCredentials.class);
+            this.credentials = (parsedCredentials == null) ? null : parsedCredentials.asMap();
 
         }
         catch(JsonSyntaxException e) {
@@ -186,67 +245,89 @@ public abstract class AbstractWorker extends AbstractCoreUnit implements Callabl
 
     /**
      * Get job list
-     * Set job list to this.jobs
+     * Set job list to this.jobs, compiled job plan to this.jobPlan
+     * Plan is taken from task job plan cache, if it is available
      *
      * @return Boolean - job list get result
      */
     protected Boolean processJobs()
     {
+        if(this.taskScope != null && this.taskScope.getJobPlanCache() != null) {
+            this.jobPlan = this.taskScope.getJobPlanCache().get(this.coordinates.get("workerId"), this::loadJobPlan);
+        }
+        else {
+            this.jobPlan = this.loadJobPlan();
+        }
+
+        if(this.jobPlan == null) {
+            return false;
+        }
+
+        this.jobs = this.jobPlan.getJobs();
+
         /*
-         * Getting credentials Json
+         * Empty job list
+         */
+        if(this.jobs.size() == 0) {
+            String jobsCountMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": empty jobs list.";
+            this.logMessage("WARNING", "NODE GET JOBS", jobsCountMessage);
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Get job list from API and compile it to job plan
+     *
+     * @return DTOJobPlan - job plan or null on failure
+     */
+    protected DTOJobPlan loadJobPlan()
+    {
+        /*
+         * Getting jobs Json
          */
         Map<String, String> params = new HashMap<>();
         params.put("worker_id", this.coordinates.get("workerId"));
 
-        ApiRequest getCredentials = new ApiRequest(coordinates)
+        ApiRequest getJobs = new ApiRequest(coordinates)
                 .setRequestMethod(ApiRequestMethods.GET)
                 .setApiMethod("v1/core/get-jobs")
                 .setParams(params);
 
-        ApiResponse jobsResponse = ApiCaller.request(getCredentials);
+        ApiResponse jobsResponse = ApiCaller.request(getJobs);
 
         if(!jobsResponse.success) {
 
             /*
              * Log record
-             * Can't get node credentials
+             * Can't get worker jobs
              */
-            String getCredMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't get jobs from api.";
-            this.logBadResponse("WARNING", "NODE GET JOBS", getCredMessage, jobsResponse);
-            return false;
+            String getJobsMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't get jobs from api.";
+            this.logBadResponse("WARNING", "NODE GET JOBS", getJobsMessage, jobsResponse);
+            return null;
 
         }
 
         /*
-         * Parsing credentials Json to map
-         * Writing parse result
+         * Parsing jobs Json to map
          */
-        String jobsJson = jobsResponse.response;
-
-        Type jobsType = new TypeToken<TreeMap<String, HashMap<String, String>>>(){}.getType();
+        Map<String, DTOJobSpec> parsedJobs;
 
         try {
 
-            this.jobs = gson.fromJson(jobsJson, jobsType);
+            parsedJobs = gson.fromJson(jobsResponse.response, JOBS_TYPE);
 
         }
         catch(JsonSyntaxException e) {
-            String parseCredMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't parse jobs JSON.";
-            this.logException("WARNING", "NODE PARSE JOBS", parseCredMessage, e);
-            return false;
+            String parseJobsMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't parse jobs JSON.";
+            this.logException("WARNING", "NODE PARSE JOBS", parseJobsMessage, e);
+            return null;
 
         }
 
-        /*
-         * Empty job list
-         */
-        if(this.jobs.size() == 0) {
-            String jobsCountMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": empty jobs list.";
-            this.logMessage("WARNING", "NODE GET JOBS", jobsCountMessage);
-            return false;
-        }
-
-        return true;
+        return new DTOJobPlan(this.coordinates.get("workerId"), parsedJobs);
     }
 
 
@@ -272,47 +353,53 @@ public abstract class AbstractWorker extends AbstractCoreUnit implements Callabl
 
             /*
              * Getting old hash
+             * Local index is used, API is asked if entry is missing or stale
              */
-            Map<String, String> params = new HashMap<>();
-            params.put("task_name", this.coordinates.get("taskName"));
-            params.put("node_id", this.coordinates.get("nodeId"));
+            NodeHashIndex hashIndex = NodeHashIndex.getInstance();
+            oldHash = hashIndex.getFresh(this.coordinates.get("taskName"), this.coordinates.get("nodeId"));
 
-            ApiRequest getCredentials = new ApiRequest(coordinates)
-                    .setRequestMethod(ApiRequestMethods.GET)
-                    .setApiMethod("v1/core/get-hash")
-                    .setParams(params);
+            if(oldHash == null) {
 
-            ApiResponse hashResponse = ApiCaller.request(getCredentials);
+                Map<String, String> params = new HashMap<>();
+                params.put("task_name", this.coordinates.get("taskName"));
+                params.put("node_id", this.coordinates.get("nodeId"));
 
-            if (!hashResponse.success) {
+                ApiRequest getCredentials = new ApiRequest(coordinates)
+                        .setRequestMethod(ApiRequestMethods.GET)
+                        .setApiMethod("v1/core/get-hash")
+                        .setParams(params);
 
-                /*
-                 * Log record
-                 * Can't get old hash
-                 */
-                String getCredMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't get old hash from API.";
-                this.logBadResponse("ERROR", "WORKER SEND RESULT", getCredMessage, hashResponse);
-                return false;
-            }
+                ApiResponse hashResponse = ApiCaller.request(getCredentials);
 
+                if (!hashResponse.success) {
 
-            /*
-             * Parsing old hash Json to string
-             * Writing parse result
-             */
-            String hashJson = hashResponse.response;
+                    /*
+                     * Log record
+                     * Can't get old hash
+                     */
+                    String getCredMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't get old hash from API.";
+                    this.logBadResponse("ERROR", "WORKER SEND RESULT", getCredMessage, hashResponse);
+                    return false;
+                }
 
-            Type hashType = new TypeToken<String>() {
-            }.getType();
 
-            try {
+                /*
+                 * Parsing old hash Json to string
+                 * Writing parse result
+                 */
+                String hashJson = hashResponse.response;
 
-                oldHash = gson.fromJson(hashJson, hashType);
+                try {
 
-            } catch (JsonSyntaxException e) {
-                String parseCredMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't parse old hash JSON.";
-                this.logException("WARNING", "WORKER SEND RESULT", parseCredMessage, e);
-                return false;
+                    oldHash = gson.fromJson(hashJson, String.class);
+
+                } catch (JsonSyntaxException e) {
+                    String parseCredMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't parse old hash JSON.";
+                    this.logException("WARNING", "WORKER SEND RESULT", parseCredMessage, e);
+                    return false;
+                }
+
+                hashIndex.put(this.coordinates.get("taskName"), this.coordinates.get("nodeId"), oldHash);
             }
 
             // Calculating new hash
@@ -353,6 +440,9 @@ public abstract class AbstractWorker extends AbstractCoreUnit implements Callabl
             return true;
         }
         else {
+            if(this.coordinates.get("put") != null && this.taskScope != null && this.taskScope.getProgress() != null) {
+                this.taskScope.getProgress().onUnchanged();
+            }
             String saveNotRequiredMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId")
                     + ": worker success. Result saving is not required.";
             this.logMessage("INFO","WORKER SEND RESULT", saveNotRequiredMessage);
@@ -387,16 +477,44 @@ public abstract class AbstractWorker extends AbstractCoreUnit implements Callabl
             return false;
         }
 
+        /*
+         * Result is uploaded by task aggregator in batch
+         */
+        if(this.taskScope != null && this.taskScope.getResultAggregator() != null) {
+            return this.taskScope.getResultAggregator().add(this.workerResult, this.coordinates);
+        }
+
+        /*
+         * Earlier result of node is still in outbox, new one is queued after it
+         */
+        if(ResultOutbox.getInstance().hasQueued(this.workerResult.taskName, this.workerResult.nodeId) && ResultOutbox.getInstance().enqueue(this.workerResult)) {
+            message = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": earlier result is not sent yet. Result is queued in outbox.";
+            this.logMessage("INFO","WORKER SEND RESULT", message);
+            this.onOutboxed();
+            return true;
+        }
+
         /*
          * Sending worker result POST
          */
         ApiRequest log = new ApiRequest(this.coordinates)
                 .setRequestMethod(ApiRequestMethods.POST)
                 .setApiMethod("v1/core/set-worker-result")
-                .setPostJson(this.gson.toJson(this.workerResult));
+                .setPostJson(this.gson.toJson(this.workerResult))
+                .setIdempotencyKey(ResultOutbox.idempotencyKey(this.workerResult));
 
         ApiResponse setResultResponse = ApiCaller.request(log);
 
+        /*
+         * API is unavailable, result is queued for replay
+         */
+        if(ResultOutbox.isTransient(setResultResponse) && ResultOutbox.getInstance().enqueue(this.workerResult)) {
+            message = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": set result via API is failed. Result is queued in outbox.";
+            this.logBadResponse("WARNING", "WORKER SEND RESULT", message, setResultResponse);
+            this.onOutboxed();
+            return true;
+        }
+
         /*
          * Logging
          */
@@ -406,6 +524,7 @@ public abstract class AbstractWorker extends AbstractCoreUnit implements Callabl
             return false;
         }
         else {
+            NodeHashIndex.getInstance().put(this.workerResult.taskName, this.workerResult.nodeId, this.workerResult.hash);
             message = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": worker success. Result is successfully saved.";
             this.logMessage("INFO","WORKER SEND RESULT", message);
             return true;
@@ -414,6 +533,17 @@ public abstract class AbstractWorker extends AbstractCoreUnit implements Callabl
     }
 
 
+    /**
+     * Count result, queued in outbox, apart from saved ones
+     */
+    private void onOutboxed()
+    {
+        if(this.taskScope != null && this.taskScope.getProgress() != null) {
+            this.taskScope.getProgress().onOutboxed();
+        }
+    }
+
+
     /**
      * Executing all commands(this.jobs).
      * Setting execution results to this.workerResult
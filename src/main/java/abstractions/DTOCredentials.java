@@ -0,0 +1,78 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import com.google.gson.annotations.JsonAdapter;
+
+import java.util.Map;
+
+
+/**
+ * Node credentials
+ * Passed to protocols as read-only map
+ */
+@JsonAdapter(DTOCredentials.Adapter.class)
+public final class DTOCredentials extends AbstractDTORecord {
+
+    private static final Schema SCHEMA = new Schema("snmp_read", "snmp_set", "snmp_version", "port_snmp", "telnet_login", "telnet_password", "port_telnet", "ssh_login", "ssh_password", "port_ssh", "enable_password", "auth_sequence");
+
+    private DTOCredentials(String[] values, Map<String, String> extra) {
+        super(SCHEMA, values, extra);
+    }
+
+    public String getSnmpRead() { return this.value(0); }
+
+    public String getSnmpSet() { return this.value(1); }
+
+    public String getSnmpVersion() { return this.value(2); }
+
+    public String getPortSnmp() { return this.value(3); }
+
+    public String getTelnetLogin() { return this.value(4); }
+
+    public String getTelnetPassword() { return this.value(5); }
+
+    public String getPortTelnet() { return this.value(6); }
+
+    public String getSshLogin() { return this.value(7); }
+
+    public String getSshPassword() { return this.value(8); }
+
+    public String getPortSsh() { return this.value(9); }
+
+    public String getEnablePassword() { return this.value(10); }
+
+    public String getAuthSequence() { return this.value(11); }
+
+
+    /**
+     * Streaming json adapter
+     */
+    public static final class Adapter extends AbstractDTORecord.Adapter<DTOCredentials> {
+
+        public Adapter() {
+            super(SCHEMA);
+        }
+
+        @Override
+        protected DTOCredentials create(String[] values, Map<String, String> extra) {
+            return new DTOCredentials(values, extra);
+        }
+    }
+
+}
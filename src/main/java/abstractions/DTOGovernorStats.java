@@ -0,0 +1,45 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+
+/**
+ * Data Object for task governor stats
+ * @noinspection WeakerAccess
+ */
+public class DTOGovernorStats
+{
+    // Task runs: active, limit (0 - no limit), waiting for previous run or free slot
+    public int runningTasks     = 0;
+    public int maxTasks         = 0;
+    public int waitingTasks     = 0;
+
+    // Worker threads of all tasks: taken, limit (0 - no limit), tasks waiting for threads
+    public int workerThreads    = 0;
+    public int maxWorkerThreads = 0;
+    public int waitingWorkers   = 0;
+
+    public String defaultPolicy = "";
+
+    // Runs started, skipped as overlapping, queued behind previous run, merged into rerun, delayed by task limit
+    public long started         = 0;
+    public long skipped         = 0;
+    public long queued          = 0;
+    public long coalesced       = 0;
+    public long throttled       = 0;
+}
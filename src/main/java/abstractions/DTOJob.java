@@ -0,0 +1,137 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import java.util.Map;
+
+/**
+ * Immutable compiled job
+ * Values, which are equal for all nodes of one worker, are parsed once
+ */
+public class DTOJob {
+
+    private final String command;
+    private final Integer timeout;
+    private final boolean hasVariables;
+    private final int[] oid;
+
+    /**
+     * Constructor
+     *
+     * @param jobInfo - job fields, received from API
+     */
+    DTOJob(Map<String, String> jobInfo) {
+
+        this.command      = jobInfo.get("command_value");
+        this.hasVariables = this.command != null && this.command.contains("%%");
+        this.timeout      = DTOJob.parseTimeout(jobInfo.get("timeout"));
+        this.oid          = this.hasVariables ? null : DTOJob.parseOid(this.command);
+    }
+
+    public String getCommand() { return this.command; }
+
+    /**
+     * @return Integer - job timeout or null, if not set or not parsable
+     */
+    public Integer getTimeout() { return this.timeout; }
+
+    public boolean hasVariables() { return this.hasVariables; }
+
+    /**
+     * Numeric SNMP OID, parsed from command
+     * Array is shared by all workers, it must not be modified
+     *
+     * @return int[] - OID or null, if command is not numeric OID
+     */
+    public int[] getOid() { return this.oid; }
+
+
+    /**
+     * Parse job timeout
+     *
+     * @param timeout - timeout string
+     * @return Integer
+     */
+    private static Integer parseTimeout(String timeout) {
+
+        if(timeout == null || timeout.length() == 0) {
+            return null;
+        }
+
+        try {
+            return Integer.parseInt(timeout);
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Parse numeric dotted OID like .1.3.6.1.2.1.1.5.0
+     *
+     * @param command - job command
+     * @return int[]  - OID or null
+     */
+    private static int[] parseOid(String command) {
+
+        if(command == null) {
+            return null;
+        }
+
+        String oid = command.trim();
+
+        if(oid.startsWith(".")) {
+            oid = oid.substring(1);
+        }
+
+        if(oid.length() == 0) {
+            return null;
+        }
+
+        String[] parts = oid.split("\\.", -1);
+        int[] result   = new int[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+
+            String part = parts[i];
+
+            if(part.length() == 0 || part.length() > 10) {
+                return null;
+            }
+
+            for (int j = 0; j < part.length(); j++) {
+                if(!Character.isDigit(part.charAt(j))) {
+                    return null;
+                }
+            }
+
+            long value = Long.parseLong(part);
+
+            // OID sub-identifiers are unsigned 32 bit
+            if(value > 0xFFFFFFFFL) {
+                return null;
+            }
+
+            result[i] = (int) value;
+        }
+
+        return result;
+    }
+
+}
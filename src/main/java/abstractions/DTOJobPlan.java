@@ -0,0 +1,78 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Immutable job execution plan of one worker
+ * Shared read-only by all nodes of the worker
+ */
+public class DTOJobPlan {
+
+    private final String workerId;
+
+    // Sorted jobs, as received from API
+    private final Map<String, Map<String, String>> jobs;
+
+    // Compiled jobs, same keys
+    private final Map<String, DTOJob> compiled;
+
+    /**
+     * Constructor
+     *
+     * @param workerId - worker id
+     * @param jobs     - jobs, received from API
+     */
+    public DTOJobPlan(String workerId, Map<String, DTOJobSpec> jobs) {
+
+        Map<String, Map<String, String>> sortedJobs = new TreeMap<>();
+        Map<String, DTOJob> compiledJobs            = new HashMap<>();
+
+        if(jobs != null) {
+            for (Map.Entry<String, DTOJobSpec> entry : jobs.entrySet()) {
+                // Job spec map view is read-only, no copy needed
+                Map<String, String> jobInfo = (entry.getValue() == null) ? Collections.emptyMap() : entry.getValue().asMap();
+                sortedJobs.put(entry.getKey(), jobInfo);
+                compiledJobs.put(entry.getKey(), new DTOJob(jobInfo));
+            }
+        }
+
+        this.workerId = workerId;
+        this.jobs     = Collections.unmodifiableMap(sortedJobs);
+        this.compiled = Collections.unmodifiableMap(compiledJobs);
+    }
+
+    public String getWorkerId() { return this.workerId; }
+
+    /**
+     * @return Map - sorted read-only jobs
+     */
+    public Map<String, Map<String, String>> getJobs() { return this.jobs; }
+
+    /**
+     * @param jobKey  - job key
+     * @return DTOJob - compiled job or null
+     */
+    public DTOJob getJob(String jobKey) { return this.compiled.get(jobKey); }
+
+}
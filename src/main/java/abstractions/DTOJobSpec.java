@@ -0,0 +1,68 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import com.google.gson.annotations.JsonAdapter;
+
+import java.util.Map;
+
+
+/**
+ * Worker job, as received from get-jobs
+ * Compiled to DTOJob in job plan
+ */
+@JsonAdapter(DTOJobSpec.Adapter.class)
+public final class DTOJobSpec extends AbstractDTORecord {
+
+    private static final Schema SCHEMA = new Schema("command_value", "command_var", "table_field", "timeout", "snmp_request_type", "snmp_set_value", "snmp_set_value_type");
+
+    private DTOJobSpec(String[] values, Map<String, String> extra) {
+        super(SCHEMA, values, extra);
+    }
+
+    public String getCommandValue() { return this.value(0); }
+
+    public String getCommandVar() { return this.value(1); }
+
+    public String getTableField() { return this.value(2); }
+
+    public String getTimeout() { return this.value(3); }
+
+    public String getSnmpRequestType() { return this.value(4); }
+
+    public String getSnmpSetValue() { return this.value(5); }
+
+    public String getSnmpSetValueType() { return this.value(6); }
+
+
+    /**
+     * Streaming json adapter
+     */
+    public static final class Adapter extends AbstractDTORecord.Adapter<DTOJobSpec> {
+
+        public Adapter() {
+            super(SCHEMA);
+        }
+
+        @Override
+        protected DTOJobSpec create(String[] values, Map<String, String> extra) {
+            return new DTOJobSpec(values, extra);
+        }
+    }
+
+}
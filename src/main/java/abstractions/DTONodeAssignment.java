@@ -0,0 +1,65 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import com.google.gson.annotations.JsonAdapter;
+
+import java.util.Map;
+
+
+/**
+ * Node of task, assigned to worker
+ * Received from get-nodes-workers-by-task and get-worker-by-node-id
+ */
+@JsonAdapter(DTONodeAssignment.Adapter.class)
+public final class DTONodeAssignment extends AbstractDTORecord {
+
+    private static final Schema SCHEMA = new Schema("id", "ip", "vendor", "model", "get");
+
+    private DTONodeAssignment(String[] values, Map<String, String> extra) {
+        super(SCHEMA, values, extra);
+    }
+
+    public String getWorkerId() { return this.value(0); }
+
+    public String getIp() { return this.value(1); }
+
+    public String getVendor() { return this.value(2); }
+
+    public String getModel() { return this.value(3); }
+
+    // snmp, telnet or ssh
+    public String getProtocol() { return this.value(4); }
+
+
+    /**
+     * Streaming json adapter
+     */
+    public static final class Adapter extends AbstractDTORecord.Adapter<DTONodeAssignment> {
+
+        public Adapter() {
+            super(SCHEMA);
+        }
+
+        @Override
+        protected DTONodeAssignment create(String[] values, Map<String, String> extra) {
+            return new DTONodeAssignment(values, extra);
+        }
+    }
+
+}
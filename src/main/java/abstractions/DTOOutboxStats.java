@@ -0,0 +1,39 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+
+/**
+ * Data Object for result outbox stats
+ * @noinspection WeakerAccess
+ */
+public class DTOOutboxStats
+{
+    // Results waiting for replay
+    public long backlog      = 0;
+    public long backlogBytes = 0;
+    public int segments      = 0;
+
+    // Results queued, replayed, rejected by API on replay
+    public long queued       = 0;
+    public long replayed     = 0;
+    public long rejected     = 0;
+
+    // Results per second during last replay run
+    public double replayRate = 0;
+}
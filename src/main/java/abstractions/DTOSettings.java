@@ -0,0 +1,71 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import com.google.gson.annotations.JsonAdapter;
+
+import java.util.Map;
+
+
+/**
+ * System settings, as received from get-config
+ */
+@JsonAdapter(DTOSettings.Adapter.class)
+public final class DTOSettings extends AbstractDTORecord {
+
+    private static final Schema SCHEMA = new Schema("dataPath", "threadCount", "snmpTimeout", "snmpRetries", "telnetTimeout", "telnetBeforeSendDelay", "sshTimeout", "sshBeforeSendDelay", "systemLogLevel");
+
+    private DTOSettings(String[] values, Map<String, String> extra) {
+        super(SCHEMA, values, extra);
+    }
+
+    public String getDataPath() { return this.value(0); }
+
+    public String getThreadCount() { return this.value(1); }
+
+    public String getSnmpTimeout() { return this.value(2); }
+
+    public String getSnmpRetries() { return this.value(3); }
+
+    public String getTelnetTimeout() { return this.value(4); }
+
+    public String getTelnetBeforeSendDelay() { return this.value(5); }
+
+    public String getSshTimeout() { return this.value(6); }
+
+    public String getSshBeforeSendDelay() { return this.value(7); }
+
+    public String getSystemLogLevel() { return this.value(8); }
+
+
+    /**
+     * Streaming json adapter
+     */
+    public static final class Adapter extends AbstractDTORecord.Adapter<DTOSettings> {
+
+        public Adapter() {
+            super(SCHEMA);
+        }
+
+        @Override
+        protected DTOSettings create(String[] values, Map<String, String> extra) {
+            return new DTOSettings(values, extra);
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Data Object for daemon instance, which takes part in node task sharding
+ * @noinspection WeakerAccess
+ */
+public class DTOShardMember
+{
+    public String instanceId = "";
+    public String host       = "";
+    public long startedAt    = 0;
+
+    // Lease is renewed by heartbeat, member with expired lease is dropped from ring
+    public long heartbeatAt  = 0;
+
+    // Share of hash space, 0..1, calculated by reader
+    public double share      = 0;
+
+    // Task name => nodes, taken by this instance in last run of task
+    public Map<String, Integer> taskNodes = new HashMap<>();
+}
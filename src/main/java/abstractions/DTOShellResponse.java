@@ -26,4 +26,5 @@ public class DTOShellResponse {
     public String message   = "";
     public Object object    = "";
     public String exception = "";
+    public Object details   = null; // optional, omitted from json when not set
 }
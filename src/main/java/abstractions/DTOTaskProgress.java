@@ -0,0 +1,52 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+
+/**
+ * Data Object for task run progress
+ * @noinspection WeakerAccess
+ */
+public class DTOTaskProgress
+{
+    public String runId       = "";
+    public String taskName    = "";
+    public String taskType    = "";
+    public String priority    = "";
+
+    // running, finished, cancelled
+    public String state       = "";
+    public long startedAt     = 0;
+    public double elapsedSec  = 0;
+
+    // Node workers: spawned, waiting, running, done with success, failed, success with unchanged result,
+    // done with result queued in outbox till API is available (not counted as succeeded)
+    public int nodes          = 0;
+    public int queued         = 0;
+    public int running        = 0;
+    public long succeeded     = 0;
+    public long failed        = 0;
+    public long unchanged     = 0;
+    public long outboxed      = 0;
+
+    // Done nodes per second, last 1024 node durations, seconds left (-1 - unknown)
+    public double nodesPerSec = 0;
+    public long p50Ms         = 0;
+    public long p95Ms         = 0;
+    public long etaSec        = -1;
+}
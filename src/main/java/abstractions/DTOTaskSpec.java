@@ -0,0 +1,65 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import com.google.gson.annotations.JsonAdapter;
+
+import java.util.Map;
+
+
+/**
+ * Scheduled task, as received from get-tasks and get-task
+ */
+@JsonAdapter(DTOTaskSpec.Adapter.class)
+public final class DTOTaskSpec extends AbstractDTORecord {
+
+    private static final Schema SCHEMA = new Schema("scheduleId", "taskName", "scheduleCron", "taskType", "put", "table");
+
+    private DTOTaskSpec(String[] values, Map<String, String> extra) {
+        super(SCHEMA, values, extra);
+    }
+
+    public String getScheduleId() { return this.value(0); }
+
+    public String getTaskName() { return this.value(1); }
+
+    public String getScheduleCron() { return this.value(2); }
+
+    public String getTaskType() { return this.value(3); }
+
+    public String getPut() { return this.value(4); }
+
+    public String getTable() { return this.value(5); }
+
+
+    /**
+     * Streaming json adapter
+     */
+    public static final class Adapter extends AbstractDTORecord.Adapter<DTOTaskSpec> {
+
+        public Adapter() {
+            super(SCHEMA);
+        }
+
+        @Override
+        protected DTOTaskSpec create(String[] values, Map<String, String> extra) {
+            return new DTOTaskSpec(values, extra);
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Data Object for shared worker pool stats
+ * @noinspection WeakerAccess
+ */
+public class DTOWorkerPoolStats
+{
+    // platform or virtual
+    public String mode     = "";
+
+    // Worker threads and busy ones, in virtual mode - max concurrent devices
+    public int threads     = 0;
+    public int active      = 0;
+
+    // Workers waiting in task lanes, delayed by spread window, max queued workers, open task lanes
+    public int queued      = 0;
+    public int delayed     = 0;
+    public int capacity    = 0;
+    public int lanes       = 0;
+
+    // Workers finished, workers rejected because pool or task run was closed
+    public long completed  = 0;
+    public long rejected   = 0;
+
+    // Workers started per second, last minute
+    public double admissionRate = 0;
+
+    // Lane priority => lanes, queued workers, wait stats
+    public Map<String, PriorityStats> priorities = new LinkedHashMap<>();
+
+    /**
+     * Workers of one lane priority
+     */
+    public static class PriorityStats
+    {
+        public int lanes          = 0;
+        public int queued         = 0;
+
+        // Workers started, wait from queue to start
+        public long started       = 0;
+        public double meanWaitMs  = 0;
+        public double maxWaitMs   = 0;
+    }
+}
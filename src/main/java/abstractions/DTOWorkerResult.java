@@ -19,6 +19,7 @@ package abstractions;
 
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.UUID;
 
 
 /**
@@ -34,4 +35,7 @@ public class DTOWorkerResult
     public String nodeId;
     public String hash;
     public Map<String, String> data = new TreeMap<>();
+
+    // Unique id of result delivery, part of idempotency key. Not sent in body, kept in outbox record with key
+    public transient String deliveryId = UUID.randomUUID().toString();
 }
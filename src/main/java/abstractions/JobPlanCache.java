@@ -0,0 +1,158 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Job plan cache, keyed by worker id
+ * Only one plan of a worker is loaded at a time, concurrent callers wait for it
+ * Failed loads (null plan) are not cached
+ * @noinspection WeakerAccess
+ */
+public class JobPlanCache {
+
+    /*
+     * Cross-task cache, used when plan TTL is set
+     */
+    private static final JobPlanCache shared = new JobPlanCache();
+
+    private final Map<String, Entry> plans = new ConcurrentHashMap<>();
+
+    // Plan time to live, ms. 0 - plans never expire
+    private volatile long ttl = 0;
+
+    /*
+     * Cached plan load
+     */
+    private static final class Entry {
+        private final FutureTask<DTOJobPlan> plan;
+        private final long created = System.currentTimeMillis();
+
+        private Entry(Callable<DTOJobPlan> loader) {
+            this.plan = new FutureTask<>(loader);
+        }
+    }
+
+
+    /**
+     * Get cache for one task run or cross-task cache
+     *
+     * @param ttl           - plan time to live, ms. 0 - cache of one task run
+     * @return JobPlanCache
+     */
+    public static JobPlanCache forTask(long ttl) {
+
+        if(ttl <= 0) {
+            return new JobPlanCache();
+        }
+
+        shared.ttl = ttl;
+        return shared;
+    }
+
+
+    /**
+     * Get plan from cache or load it
+     *
+     * @param workerId    - worker id
+     * @param loader      - plan loader, returns null on failure
+     * @return DTOJobPlan - plan or null, if load failed
+     */
+    public DTOJobPlan get(String workerId, Callable<DTOJobPlan> loader) {
+
+        if(workerId == null) {
+            return this.call(loader);
+        }
+
+        Entry entry = this.plans.get(workerId);
+
+        if(entry == null || this.isExpired(entry)) {
+
+            if(this.ttl > 0) {
+                this.purgeExpired();
+            }
+
+            Entry candidate = new Entry(loader);
+            entry = this.plans.compute(workerId, (key, current) -> (current == null || this.isExpired(current)) ? candidate : current);
+
+            // This caller loads the plan
+            if(entry == candidate) {
+                candidate.plan.run();
+            }
+        }
+
+        DTOJobPlan plan;
+
+        try {
+            plan = entry.plan.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e) {
+            plan = null;
+        }
+
+        if(plan == null) {
+            this.plans.remove(workerId, entry);
+        }
+
+        return plan;
+    }
+
+
+    /**
+     * Remove all plans
+     */
+    public void clear() {
+        this.plans.clear();
+    }
+
+
+    private boolean isExpired(Entry entry) {
+        return this.ttl > 0 && System.currentTimeMillis() - entry.created > this.ttl;
+    }
+
+    private void purgeExpired() {
+        Iterator<Map.Entry<String, Entry>> it = this.plans.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry current = it.next().getValue();
+            if(current.plan.isDone() && this.isExpired(current)) {
+                it.remove();
+            }
+        }
+    }
+
+    private DTOJobPlan call(Callable<DTOJobPlan> loader) {
+        try {
+            return loader.call();
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+}
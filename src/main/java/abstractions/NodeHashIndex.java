@@ -0,0 +1,333 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Local index of last saved result hashes: task name + node id => hash
+ * Kept in memory, stored in runtime/hashes.idx between restarts.
+ * Entry is trusted while it is younger than TTL, after that hash is requested from API again.
+ * Entries, loaded from file, are not trusted until API confirms them: server data may have changed meanwhile.
+ * Implemented using the singleton pattern.
+ * @noinspection WeakerAccess
+ */
+public class NodeHashIndex {
+
+    private final static NodeHashIndex _instance = new NodeHashIndex();
+
+    private static final int MAGIC   = 0x63424849; // cBHI
+    private static final int VERSION = 1;
+
+    private static final byte HASH_MD5    = 0;
+    private static final byte HASH_STRING = 1;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile long ttl      = 10 * 60 * 1000L;
+    private volatile boolean dirty = false;
+
+    /*
+     * Indexed hash
+     */
+    private static final class Entry {
+        private final String hash;
+        private final long verified;
+
+        private Entry(String hash, long verified) {
+            this.hash     = hash;
+            this.verified = verified;
+        }
+    }
+
+
+    private NodeHashIndex() {
+        super();
+    }
+
+    public static NodeHashIndex getInstance() {
+        return _instance;
+    }
+
+
+    /**
+     * Set entry time to live
+     *
+     * @param ttl - ms
+     */
+    public void setTtl(long ttl) {
+        this.ttl = Math.max(0, ttl);
+    }
+
+
+    /**
+     * Get hash, if entry is present and not stale
+     *
+     * @param taskName - task name
+     * @param nodeId   - node id
+     * @return String  - hash or null
+     */
+    public String getFresh(String taskName, String nodeId) {
+
+        Entry entry = this.entries.get(NodeHashIndex.key(taskName, nodeId));
+
+        if(entry == null || System.currentTimeMillis() - entry.verified >= this.ttl) {
+            return null;
+        }
+
+        return entry.hash;
+    }
+
+
+    /**
+     * Set hash, confirmed by API or saved by worker
+     *
+     * @param taskName - task name
+     * @param nodeId   - node id
+     * @param hash     - hash, null removes entry
+     */
+    public void put(String taskName, String nodeId, String hash) {
+
+        if(taskName == null || nodeId == null) {
+            return;
+        }
+
+        if(hash == null) {
+            if(this.entries.remove(NodeHashIndex.key(taskName, nodeId)) != null) {
+                this.dirty = true;
+            }
+            return;
+        }
+
+        this.entries.put(NodeHashIndex.key(taskName, nodeId), new Entry(hash, System.currentTimeMillis()));
+        this.dirty = true;
+    }
+
+
+    /**
+     * Replace all task entries with hashes, received from API
+     *
+     * @param taskName - task name
+     * @param hashes   - node id => hash
+     */
+    public void replaceTask(String taskName, Map<String, String> hashes) {
+
+        String prefix = NodeHashIndex.key(taskName, "");
+
+        this.entries.keySet().removeIf(key -> key.startsWith(prefix));
+
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, String> hash : hashes.entrySet()) {
+            if(hash.getKey() != null && hash.getValue() != null) {
+                this.entries.put(NodeHashIndex.key(taskName, hash.getKey()), new Entry(hash.getValue(), now));
+            }
+        }
+
+        this.dirty = true;
+    }
+
+
+    /**
+     * Remove all entries, e.g. when nodes were split anew between shard instances
+     */
+    public void clear() {
+        if(!this.entries.isEmpty()) {
+            this.entries.clear();
+            this.dirty = true;
+        }
+    }
+
+
+    /**
+     * @return int - count of entries
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+
+    /**
+     * Load index from file
+     * Foreign or old version file is ignored, index starts empty
+     *
+     * @throws IOException if file can't be read
+     */
+    public synchronized void load() throws IOException {
+
+        File indexFile = NodeHashIndex.getIndexFile();
+
+        if(!indexFile.isFile()) {
+            return;
+        }
+
+        Map<String, Entry> loaded = new HashMap<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+
+                String key    = in.readUTF();
+                in.readLong(); // verified at
+                byte type     = in.readByte();
+                String hash;
+
+                if(type == HASH_MD5) {
+                    byte[] digest = new byte[16];
+                    in.readFully(digest);
+                    hash = NodeHashIndex.toHex(digest);
+                }
+                else {
+                    hash = in.readUTF();
+                }
+
+                // Stale until confirmed by API: other instance could upload or web core data could be restored
+                loaded.put(key, new Entry(hash, 0));
+            }
+        }
+
+        this.entries.clear();
+        this.entries.putAll(loaded);
+        this.dirty = false;
+    }
+
+
+    /**
+     * Save index to file, if it was changed
+     * File is replaced atomically
+     *
+     * @throws IOException if file can't be written
+     */
+    public synchronized void save() throws IOException {
+
+        if(!this.dirty) {
+            return;
+        }
+
+        this.dirty = false;
+
+        File indexFile = NodeHashIndex.getIndexFile();
+        File tmpFile   = new File(indexFile.getPath() + ".tmp");
+
+        Map<String, Entry> snapshot = new HashMap<>(this.entries);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+
+            for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().verified);
+
+                byte[] digest = NodeHashIndex.fromHex(entry.getValue().hash);
+
+                if(digest != null) {
+                    out.writeByte(HASH_MD5);
+                    out.write(digest);
+                }
+                else {
+                    out.writeByte(HASH_STRING);
+                    out.writeUTF(entry.getValue().hash);
+                }
+            }
+        }
+        catch (IOException e) {
+            this.dirty = true;
+            throw e;
+        }
+
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    private static String key(String taskName, String nodeId) {
+        return taskName + '\n' + nodeId;
+    }
+
+
+    private static File getIndexFile() {
+        File jarPath = new File(NodeHashIndex.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+        return new File(jarPath.getParentFile().getParentFile().getAbsolutePath() + File.separator + "runtime" + File.separator + "hashes.idx");
+    }
+
+
+    /**
+     * Uppercase hex md5, as calculated by workers, to digest
+     *
+     * @param hash    - hash string
+     * @return byte[] - digest or null, if hash is not 32 uppercase hex chars
+     */
+    private static byte[] fromHex(String hash) {
+
+        if(hash.length() != 32) {
+            return null;
+        }
+
+        byte[] digest = new byte[16];
+
+        for (int i = 0; i < 32; i++) {
+            char current = hash.charAt(i);
+            if(!((current >= '0' && current <= '9') || (current >= 'A' && current <= 'F'))) {
+                return null;
+            }
+        }
+
+        for (int i = 0; i < 16; i++) {
+            digest[i] = (byte) ((Character.digit(hash.charAt(i * 2), 16) << 4) | Character.digit(hash.charAt(i * 2 + 1), 16));
+        }
+
+        return digest;
+    }
+
+
+    private static String toHex(byte[] digest) {
+
+        char[] hex    = "0123456789ABCDEF".toCharArray();
+        char[] result = new char[digest.length * 2];
+
+        for (int i = 0; i < digest.length; i++) {
+            result[i * 2]     = hex[(digest[i] >> 4) & 0x0F];
+            result[i * 2 + 1] = hex[digest[i] & 0x0F];
+        }
+
+        return new String(result);
+    }
+
+}
@@ -0,0 +1,628 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import api.ApiCaller;
+import api.ApiGsonSingleton;
+import api.ApiLogHelper;
+import api.ApiRequest;
+import api.ApiRequestMethods;
+import api.ApiResponse;
+
+/*
+ * gson
+ */
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+
+/**
+ * Durable outbox of worker results, which could not be sent to API
+ * Results are appended to memory-mapped segment files under runtime/outbox and replayed by background thread,
+ * when web core is available again. Every result is sent with idempotency key, so repeated delivery is safe.
+ * While node has queued result, its newer results must be queued after it, so web core gets them in order.
+ *
+ * Segment: header [int magic][int version][long read offset], records [int body length][int crc32][body]
+ * Record body: [short key length][key][result json], UTF-8
+ *
+ * Implemented using the singleton pattern.
+ * @noinspection WeakerAccess
+ */
+public class ResultOutbox {
+
+    private final static ResultOutbox _instance = new ResultOutbox();
+
+    private static final int MAGIC       = 0x63424f42; // cBOB
+    private static final int VERSION     = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int READ_OFFSET = 8;
+    private static final int RECORD_HEAD = 8;
+
+    private static final String API_METHOD = "v1/core/set-worker-result";
+
+    private final Gson gson = ApiGsonSingleton.getInstance();
+
+    /*
+     * Segments in write order, last one is active
+     * All segment access is guarded by lock
+     */
+    private final Object lock             = new Object();
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentId            = 1;
+    private File directory                = null;
+
+    // Unsent records of node: "<task name>:<node id>" => count
+    private final Map<String, Integer> queuedNodes = new HashMap<>();
+
+    private final Map<String, String> coordinates = new HashMap<>();
+    private volatile int segmentSize              = 16 * 1024 * 1024;
+    private volatile long replayInterval          = 5000;
+
+    private volatile boolean running = false;
+    private Thread replayer          = null;
+
+    /*
+     * Metrics
+     */
+    private final AtomicLong backlog  = new AtomicLong();
+    private final AtomicLong queued   = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile double replayRate = 0;
+
+    /*
+     * Memory-mapped segment file
+     */
+    private static final class Segment {
+        private final long id;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writeOffset;
+        private int readOffset;
+
+        private Segment(long id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id      = id;
+            this.file    = file;
+            this.channel = channel;
+            this.buffer  = buffer;
+        }
+    }
+
+    /*
+     * Record, read for replay
+     */
+    private static final class Record {
+        private final Segment segment;
+        private final String key;
+        private final String json;
+        private final int nextOffset;
+
+        private Record(Segment segment, String key, String json, int nextOffset) {
+            this.segment    = segment;
+            this.key        = key;
+            this.json       = json;
+            this.nextOffset = nextOffset;
+        }
+    }
+
+
+    private ResultOutbox() {
+        super();
+    }
+
+    public static ResultOutbox getInstance() {
+        return _instance;
+    }
+
+
+    /**
+     * Open segments, left from previous run, and start replayer
+     *
+     * @param coordinates    - API coordinates: scheme, site, token
+     * @param segmentSize    - segment file size, bytes
+     * @param replayInterval - pause between replay attempts while API is unavailable, ms
+     * @throws IOException if outbox directory can't be read
+     */
+    public void open(Map<String, String> coordinates, int segmentSize, long replayInterval) throws IOException {
+
+        synchronized (this.lock) {
+
+            this.coordinates.clear();
+            this.coordinates.putAll(coordinates);
+            this.segmentSize    = Math.max(64 * 1024, segmentSize);
+            this.replayInterval = Math.max(100, replayInterval);
+
+            if(this.directory == null) {
+
+                File jarPath   = new File(ResultOutbox.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+                this.directory = new File(jarPath.getParentFile().getParentFile().getAbsolutePath() + File.separator + "runtime" + File.separator + "outbox");
+
+                Files.createDirectories(this.directory.toPath());
+
+                File[] files = this.directory.listFiles((dir, name) -> name.matches("segment-\\d+\\.dat"));
+
+                if(files != null) {
+
+                    Arrays.sort(files, (first, second) -> Long.compare(ResultOutbox.segmentId(first), ResultOutbox.segmentId(second)));
+
+                    for (File file : files) {
+                        Segment segment = this.mapSegment(ResultOutbox.segmentId(file), file, (int) Math.max(file.length(), HEADER_SIZE), false);
+                        if(segment != null) {
+                            this.segments.addLast(segment);
+                            this.nextSegmentId = segment.id + 1;
+                        }
+                    }
+                }
+            }
+
+            if(!this.running) {
+                this.running  = true;
+                this.replayer = new Thread(this::replayLoop, "cbackup-outbox-replayer");
+                this.replayer.setDaemon(true);
+                this.replayer.start();
+            }
+        }
+    }
+
+
+    /**
+     * Stop replayer, flush segments
+     *
+     * @param timeout - max wait for replayer, ms
+     */
+    public void close(long timeout) {
+
+        Thread current;
+
+        synchronized (this.lock) {
+            this.running = false;
+            current      = this.replayer;
+            this.replayer = null;
+            this.lock.notifyAll();
+        }
+
+        if(current != null) {
+            current.interrupt();
+            try {
+                current.join(timeout);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this.lock) {
+            for (Segment segment : this.segments) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+
+    /**
+     * Idempotency key of result delivery: retries and replays of one result have equal keys,
+     * new result of node has new key, even if its content equals to earlier one (A -> B -> A)
+     *
+     * @param result  - worker result
+     * @return String - key
+     */
+    public static String idempotencyKey(DTOWorkerResult result) {
+        return result.taskName + ":" + result.nodeId + ":" + result.deliveryId;
+    }
+
+
+    /**
+     * Check if node has unsent result in outbox
+     *
+     * @param taskName - task name
+     * @param nodeId   - node id
+     * @return boolean
+     */
+    public boolean hasQueued(String taskName, String nodeId) {
+        synchronized (this.lock) {
+            return this.queuedNodes.containsKey(taskName + ":" + nodeId);
+        }
+    }
+
+
+    /**
+     * Check if failed API response is worth retrying later: transport error or web core unavailable
+     *
+     * @param response - API response
+     * @return boolean
+     */
+    public static boolean isTransient(ApiResponse response) {
+        return !response.success && (response.responseCode == 0 || response.responseCode >= 500);
+    }
+
+
+    /**
+     * Durably queue result for replay
+     *
+     * @param result   - worker result
+     * @return boolean - result is written to outbox
+     */
+    public boolean enqueue(DTOWorkerResult result) {
+
+        byte[] key  = ResultOutbox.idempotencyKey(result).getBytes(StandardCharsets.UTF_8);
+        byte[] json = this.gson.toJson(result).getBytes(StandardCharsets.UTF_8);
+
+        if(key.length > Short.MAX_VALUE) {
+            return false;
+        }
+
+        int bodyLength = 2 + key.length + json.length;
+
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        body.putShort((short) key.length).put(key).put(json);
+
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, bodyLength);
+
+        synchronized (this.lock) {
+
+            if(this.directory == null) {
+                return false;
+            }
+
+            try {
+                Segment active = this.segments.peekLast();
+
+                if(active == null || active.buffer.capacity() - active.writeOffset < RECORD_HEAD + bodyLength) {
+                    active = this.createSegment(Math.max(this.segmentSize, HEADER_SIZE + RECORD_HEAD + bodyLength));
+                }
+
+                ByteBuffer target = active.buffer.duplicate();
+                target.position(active.writeOffset);
+                target.putInt(bodyLength).putInt((int) crc.getValue()).put(body.array(), 0, bodyLength);
+
+                active.buffer.force();
+                active.writeOffset += RECORD_HEAD + bodyLength;
+            }
+            catch (Exception e) {
+                return false;
+            }
+
+            this.backlog.incrementAndGet();
+            this.queued.incrementAndGet();
+            this.queuedNodes.merge(result.taskName + ":" + result.nodeId, 1, Integer::sum);
+            this.lock.notifyAll();
+        }
+
+        return true;
+    }
+
+
+    /**
+     * @return DTOOutboxStats
+     */
+    public DTOOutboxStats getStats() {
+
+        DTOOutboxStats stats = new DTOOutboxStats();
+
+        stats.backlog    = this.backlog.get();
+        stats.queued     = this.queued.get();
+        stats.replayed   = this.replayed.get();
+        stats.rejected   = this.rejected.get();
+        stats.replayRate = Math.round(this.replayRate * 100) / 100.0;
+
+        synchronized (this.lock) {
+            stats.segments = this.segments.size();
+            for (Segment segment : this.segments) {
+                stats.backlogBytes += segment.writeOffset - segment.readOffset;
+            }
+        }
+
+        return stats;
+    }
+
+
+    /**
+     * Replayer thread
+     */
+    private void replayLoop() {
+
+        while (this.running) {
+
+            try {
+                Record record = this.next();
+
+                if(record == null) {
+                    this.pause(this.replayInterval);
+                    continue;
+                }
+
+                /*
+                 * Sending results while web core accepts them
+                 */
+                long started = System.nanoTime();
+                long sent    = 0;
+
+                while (record != null && this.running) {
+
+                    ApiRequest replay = new ApiRequest(this.coordinates)
+                            .setRequestMethod(ApiRequestMethods.POST)
+                            .setApiMethod(API_METHOD)
+                            .setPostJson(record.json)
+                            .setIdempotencyKey(record.key);
+
+                    ApiResponse response = ApiCaller.request(replay);
+
+                    if(!response.success && ResultOutbox.isTransient(response)) {
+                        break;
+                    }
+
+                    if(response.success) {
+                        this.replayed.incrementAndGet();
+                        DTOWorkerResult result = this.gson.fromJson(record.json, DTOWorkerResult.class);
+                        NodeHashIndex.getInstance().put(result.taskName, result.nodeId, result.hash);
+                    }
+                    else {
+                        // web core refused result, it will never be accepted
+                        this.rejected.incrementAndGet();
+                        ApiLogHelper.setSystemLogBadResponse("ERROR", "OUTBOX REPLAY", "Queued result " + record.key + " is rejected by API and removed from outbox.", this.coordinates, response);
+                    }
+
+                    this.commit(record);
+                    sent++;
+                    record = this.next();
+                }
+
+                long elapsed = System.nanoTime() - started;
+                if(sent > 0 && elapsed > 0) {
+                    this.replayRate = sent * 1_000_000_000.0 / elapsed;
+                }
+
+                if(record != null) {
+                    this.pause(this.replayInterval);
+                }
+            }
+            catch (Exception e) {
+                // replayer must survive any record
+                this.pause(this.replayInterval);
+            }
+        }
+    }
+
+
+    /**
+     * Wait for new record or interval
+     *
+     * @param millis - max wait
+     */
+    private void pause(long millis) {
+        synchronized (this.lock) {
+            if(!this.running) {
+                return;
+            }
+            try {
+                this.lock.wait(millis);
+            }
+            catch (InterruptedException e) {
+                // close() called
+            }
+        }
+    }
+
+
+    /**
+     * Read first unsent record
+     * Fully sent segments, except active one, are deleted
+     *
+     * @return Record - record or null, if outbox is empty
+     */
+    private Record next() {
+
+        synchronized (this.lock) {
+
+            while (!this.segments.isEmpty()) {
+
+                Segment first = this.segments.peekFirst();
+
+                if(first.readOffset < first.writeOffset) {
+
+                    ByteBuffer source = first.buffer.duplicate();
+                    source.position(first.readOffset);
+
+                    int bodyLength = source.getInt();
+                    source.getInt(); // crc, checked on open
+
+                    byte[] key = new byte[source.getShort()];
+                    source.get(key);
+
+                    byte[] json = new byte[bodyLength - 2 - key.length];
+                    source.get(json);
+
+                    return new Record(first, new String(key, StandardCharsets.UTF_8), new String(json, StandardCharsets.UTF_8), first.readOffset + RECORD_HEAD + bodyLength);
+                }
+
+                if(first == this.segments.peekLast()) {
+                    return null;
+                }
+
+                this.segments.pollFirst();
+                this.deleteSegment(first);
+            }
+
+            return null;
+        }
+    }
+
+
+    /**
+     * Mark record as sent
+     *
+     * @param record - sent record
+     */
+    private void commit(Record record) {
+        synchronized (this.lock) {
+            record.segment.readOffset = record.nextOffset;
+            record.segment.buffer.putLong(READ_OFFSET, record.nextOffset);
+            record.segment.buffer.force();
+            this.backlog.decrementAndGet();
+            this.queuedNodes.computeIfPresent(ResultOutbox.nodeKey(record.key), (key, count) -> (count > 1) ? count - 1 : null);
+        }
+    }
+
+
+    /**
+     * Create new active segment, must be called holding lock
+     *
+     * @param size       - segment size, bytes
+     * @return Segment
+     * @throws IOException if file can't be created
+     */
+    private Segment createSegment(int size) throws IOException {
+
+        long id   = this.nextSegmentId++;
+        File file = new File(this.directory, "segment-" + id + ".dat");
+
+        Segment segment = this.mapSegment(id, file, size, true);
+
+        if(segment == null) {
+            throw new IOException("Can't create outbox segment " + file.getPath());
+        }
+
+        this.segments.addLast(segment);
+
+        return segment;
+    }
+
+
+    /**
+     * Map segment file, restore offsets
+     * Records after first broken one (partial write) are ignored
+     *
+     * @param id       - segment id
+     * @param file     - segment file
+     * @param size     - mapping size
+     * @param create   - create new segment
+     * @return Segment - segment or null, if file is not a segment
+     * @throws IOException on file error
+     */
+    private Segment mapSegment(long id, File file, int size, boolean create) throws IOException {
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        Segment segment = new Segment(id, file, channel, buffer);
+
+        if(create) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(READ_OFFSET, HEADER_SIZE);
+            buffer.force();
+            segment.readOffset  = HEADER_SIZE;
+            segment.writeOffset = HEADER_SIZE;
+            return segment;
+        }
+
+        if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            channel.close();
+            return null;
+        }
+
+        /*
+         * Restoring write offset and backlog
+         */
+        int offset = HEADER_SIZE;
+        int readOffset = (int) buffer.getLong(READ_OFFSET);
+        long unread = 0;
+
+        while (offset + RECORD_HEAD <= size) {
+
+            int bodyLength = buffer.getInt(offset);
+
+            if(bodyLength <= 2 || offset + RECORD_HEAD + bodyLength > size) {
+                break;
+            }
+
+            byte[] body = new byte[bodyLength];
+            ByteBuffer source = buffer.duplicate();
+            source.position(offset + RECORD_HEAD);
+            source.get(body);
+
+            CRC32 crc = new CRC32();
+            crc.update(body);
+
+            if((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+
+            if(offset >= readOffset) {
+                unread++;
+                int keyLength = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+                this.queuedNodes.merge(ResultOutbox.nodeKey(new String(body, 2, keyLength, StandardCharsets.UTF_8)), 1, Integer::sum);
+            }
+
+            offset += RECORD_HEAD + bodyLength;
+        }
+
+        segment.writeOffset = offset;
+        segment.readOffset  = Math.min(Math.max(readOffset, HEADER_SIZE), offset);
+        this.backlog.addAndGet(unread);
+
+        return segment;
+    }
+
+
+    private void deleteSegment(Segment segment) {
+        // noinspection EmptyCatchBlock
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.file.toPath());
+        }
+        catch (Exception e) {}
+    }
+
+
+    /**
+     * Node part of idempotency key: "<task name>:<node id>:<delivery id>" => "<task name>:<node id>"
+     * Task name and node id don't contain colons
+     *
+     * @param key     - idempotency key
+     * @return String - node key
+     */
+    private static String nodeKey(String key) {
+        int end = key.indexOf(':', key.indexOf(':') + 1);
+        return (end < 0) ? key : key.substring(0, end);
+    }
+
+
+    private static long segmentId(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring("segment-".length(), name.length() - ".dat".length()));
+    }
+
+}
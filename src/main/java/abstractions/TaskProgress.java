@@ -0,0 +1,221 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Live progress of one task run
+ * Node counters are atomic, updated by node workers. Node durations are kept for last 1024 nodes.
+ * @noinspection WeakerAccess
+ */
+public class TaskProgress {
+
+    private static final int DURATIONS = 1024;
+
+    private final String runId;
+    private final String taskName;
+    private final String taskType;
+    private final String priority;
+    private final long startedAt = System.currentTimeMillis();
+
+    private volatile String state   = "running";
+    private volatile long finishedAt = 0;
+
+    private final AtomicInteger nodes     = new AtomicInteger();
+    private final AtomicInteger queued    = new AtomicInteger();
+    private final AtomicInteger running   = new AtomicInteger();
+    private final AtomicLong succeeded    = new AtomicLong();
+    private final AtomicLong failed       = new AtomicLong();
+    private final AtomicLong unchanged    = new AtomicLong();
+    private final AtomicLong outboxed     = new AtomicLong();
+
+    // Ring of last node durations, ms, guarded by itself
+    private final long[] durations = new long[DURATIONS];
+    private long durationCount     = 0;
+
+
+    /**
+     * Constructor
+     *
+     * @param runId    - run id
+     * @param taskName - task name
+     * @param taskType - task type
+     * @param priority - worker lane priority
+     */
+    public TaskProgress(String runId, String taskName, String taskType, String priority)
+    {
+        this.runId    = runId;
+        this.taskName = taskName;
+        this.taskType = taskType;
+        this.priority = priority;
+    }
+
+
+    /**
+     * Count node worker as queued, worker updates counters when it runs
+     *
+     * @param worker              - node worker
+     * @return Callable<Boolean>  - tracked worker
+     */
+    public Callable<Boolean> track(Callable<Boolean> worker)
+    {
+        this.nodes.incrementAndGet();
+        this.queued.incrementAndGet();
+
+        return () -> {
+
+            this.queued.decrementAndGet();
+            this.running.incrementAndGet();
+
+            long started   = System.nanoTime();
+            boolean result = false;
+
+            try {
+                result = Boolean.TRUE.equals(worker.call());
+                return result;
+            }
+            finally {
+                this.running.decrementAndGet();
+                if(result) {
+                    this.succeeded.incrementAndGet();
+                }
+                else {
+                    this.failed.incrementAndGet();
+                }
+                this.onDuration((System.nanoTime() - started) / 1000000L);
+            }
+        };
+    }
+
+
+    /**
+     * Node result is the same as saved one, saving is skipped
+     */
+    public void onUnchanged()
+    {
+        this.unchanged.incrementAndGet();
+    }
+
+
+    /**
+     * Node result is not saved by API yet, it is queued in outbox for replay
+     * Node is counted apart from succeeded ones
+     */
+    public void onOutboxed()
+    {
+        this.outboxed.incrementAndGet();
+    }
+
+
+    /**
+     * @return long - node results, queued in outbox
+     */
+    public long getOutboxed()
+    {
+        return this.outboxed.get();
+    }
+
+
+    /**
+     * Finish run
+     *
+     * @param state - finished, cancelled
+     */
+    public void finish(String state)
+    {
+        this.finishedAt = System.currentTimeMillis();
+        this.state      = state;
+    }
+
+
+    public String getRunId() {
+        return this.runId;
+    }
+
+    public String getTaskName() {
+        return this.taskName;
+    }
+
+    public boolean isFinished() {
+        return this.finishedAt > 0;
+    }
+
+
+    /**
+     * @return DTOTaskProgress
+     */
+    public DTOTaskProgress getSnapshot()
+    {
+        DTOTaskProgress snapshot = new DTOTaskProgress();
+
+        long now = (this.finishedAt > 0) ? this.finishedAt : System.currentTimeMillis();
+
+        snapshot.runId      = this.runId;
+        snapshot.taskName   = this.taskName;
+        snapshot.taskType   = this.taskType;
+        snapshot.priority   = this.priority;
+        snapshot.state      = this.state;
+        snapshot.startedAt  = this.startedAt;
+        snapshot.elapsedSec = Math.round((now - this.startedAt) / 100.0) / 10.0;
+        snapshot.nodes      = this.nodes.get();
+        snapshot.queued     = this.queued.get();
+        snapshot.running    = this.running.get();
+        snapshot.outboxed   = this.outboxed.get();
+        snapshot.succeeded  = Math.max(0, this.succeeded.get() - snapshot.outboxed);
+        snapshot.failed     = this.failed.get();
+        snapshot.unchanged  = this.unchanged.get();
+
+        long done = snapshot.succeeded + snapshot.outboxed + snapshot.failed;
+
+        if(snapshot.elapsedSec > 0) {
+            snapshot.nodesPerSec = Math.round(done * 100.0 / snapshot.elapsedSec) / 100.0;
+        }
+
+        if(this.finishedAt == 0 && done > 0 && snapshot.nodesPerSec > 0) {
+            snapshot.etaSec = Math.round((snapshot.nodes - done) / snapshot.nodesPerSec);
+        }
+
+        long[] recent;
+        synchronized (this.durations) {
+            recent = Arrays.copyOf(this.durations, (int) Math.min(this.durationCount, DURATIONS));
+        }
+
+        if(recent.length > 0) {
+            Arrays.sort(recent);
+            snapshot.p50Ms = recent[(int) Math.ceil(recent.length * 0.50) - 1];
+            snapshot.p95Ms = recent[(int) Math.ceil(recent.length * 0.95) - 1];
+        }
+
+        return snapshot;
+    }
+
+
+    private void onDuration(long ms)
+    {
+        synchronized (this.durations) {
+            this.durations[(int) (this.durationCount % DURATIONS)] = ms;
+            this.durationCount++;
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Objects shared by all workers of one task run
+ * @noinspection WeakerAccess
+ */
+public class TaskScope {
+
+    private final WorkerResultAggregator resultAggregator;
+    private final JobPlanCache jobPlanCache;
+    private TaskProgress progress = null;
+
+    /*
+     * Prefetched node credentials, memory only
+     * Each entry is taken once by node worker, rest is wiped at task end
+     */
+    private final Map<String, DTOCredentials> credentials = new ConcurrentHashMap<>();
+
+    /*
+     * Device sessions of running workers, closed when task run is cancelled
+     */
+    private final Set<AutoCloseable> handles = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled       = false;
+
+    /**
+     * Constructor
+     *
+     * @param resultAggregator - task result aggregator
+     * @param jobPlanCache     - worker job plans
+     */
+    public TaskScope(WorkerResultAggregator resultAggregator, JobPlanCache jobPlanCache)
+    {
+        this.resultAggregator = resultAggregator;
+        this.jobPlanCache     = jobPlanCache;
+    }
+
+    /**
+     * @return WorkerResultAggregator
+     */
+    public WorkerResultAggregator getResultAggregator() {
+        return this.resultAggregator;
+    }
+
+    /**
+     * @return JobPlanCache
+     */
+    public JobPlanCache getJobPlanCache() {
+        return this.jobPlanCache;
+    }
+
+
+    /**
+     * @param progress - progress of task run
+     * @return TaskScope
+     */
+    public TaskScope setProgress(TaskProgress progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * @return TaskProgress - progress or null, if run is not tracked
+     */
+    public TaskProgress getProgress() {
+        return this.progress;
+    }
+
+
+    /**
+     * Store prefetched node credentials
+     *
+     * @param nodeId      - node id
+     * @param credentials - node credentials
+     */
+    public void putCredentials(String nodeId, DTOCredentials credentials) {
+        if(nodeId != null && credentials != null) {
+            this.credentials.put(nodeId, credentials);
+        }
+    }
+
+    /**
+     * Take prefetched node credentials, entry is removed from scope
+     *
+     * @param nodeId - node id
+     * @return DTOCredentials - credentials or null, if not prefetched
+     */
+    public DTOCredentials takeCredentials(String nodeId) {
+        return (nodeId == null) ? null : this.credentials.remove(nodeId);
+    }
+
+    /**
+     * Register device session of running worker
+     * Session, registered after cancel, is closed at once
+     *
+     * @param handle - closes session
+     */
+    public void register(AutoCloseable handle) {
+        this.handles.add(handle);
+        if(this.cancelled && this.handles.remove(handle)) {
+            TaskScope.closeQuietly(handle);
+        }
+    }
+
+    /**
+     * @param handle - session of finished worker
+     */
+    public void unregister(AutoCloseable handle) {
+        this.handles.remove(handle);
+    }
+
+    /**
+     * Cancel task run, close registered device sessions
+     *
+     * @return int - closed sessions
+     */
+    public int cancel() {
+
+        this.cancelled = true;
+
+        List<AutoCloseable> closing = new ArrayList<>(this.handles);
+        int closed = 0;
+
+        for (AutoCloseable handle : closing) {
+            if(this.handles.remove(handle)) {
+                TaskScope.closeQuietly(handle);
+                closed++;
+            }
+        }
+
+        return closed;
+    }
+
+    /**
+     * @return boolean
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * @noinspection EmptyCatchBlock
+     */
+    private static void closeQuietly(AutoCloseable handle) {
+        try {
+            handle.close();
+        } catch (Exception e) {}
+    }
+
+    /**
+     * Wipe task run data
+     */
+    public void clear() {
+        this.credentials.clear();
+    }
+
+}
@@ -0,0 +1,501 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package abstractions;
+
+import api.ApiCaller;
+import api.ApiGsonSingleton;
+import api.ApiLogHelper;
+import api.ApiRequest;
+import api.ApiRequestMethods;
+import api.ApiResponse;
+import api.ExecutionContext;
+
+/*
+ * gson
+ */
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.lang.reflect.Type;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Task-scoped worker result aggregator
+ * Collects worker results and uploads them to API in batches, limited by result count and size.
+ * Batch is streamed as json array, gzip-compressed, with chunked transfer.
+ * If web core has no batch endpoint, results are uploaded one by one.
+ * Full batches are uploaded by one uploader thread of task run, so device workers don't wait for API.
+ * @noinspection WeakerAccess
+ */
+public class WorkerResultAggregator extends AbstractCoreUnit {
+
+    private static final String BATCH_API_METHOD  = "v1/core/set-worker-results";
+    private static final String SINGLE_API_METHOD = "v1/core/set-worker-result";
+
+    // Rough json overhead of one result besides data values, bytes
+    private static final int RESULT_OVERHEAD = 256;
+
+    // Full batches waiting for uploader. Workers wait only if API is slower than devices
+    private static final int MAX_QUEUED_BATCHES = 4;
+
+    // Per node status of batch: node id => saved
+    private static final Type STATUS_TYPE = new TypeToken<HashMap<String, Boolean>>(){}.getType();
+
+    /*
+     * Batch endpoint availability, shared by all tasks
+     * null - unknown yet, false - web core returned 404
+     */
+    private static volatile Boolean batchSupported = null;
+
+    private final Gson gson = ApiGsonSingleton.getInstance();
+
+    private int batchSize  = 50;
+    private int batchBytes = 4 * 1024 * 1024;
+    private boolean gzip   = true;
+
+    private final List<PendingResult> pending = new ArrayList<>();
+    private int pendingBytes = 0;
+
+    // Uploader thread, started with first full batch. Guarded by pending
+    private final LinkedBlockingQueue<List<PendingResult>> batches = new LinkedBlockingQueue<>(MAX_QUEUED_BATCHES);
+    private final List<PendingResult> endOfBatches = new ArrayList<>();
+    private Thread uploader = null;
+    private boolean closed  = false;
+
+    private final AtomicInteger saved  = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    // Task run progress, counts results queued in outbox
+    private TaskProgress progress = null;
+
+    /*
+     * Result and coordinates of the worker, which produced it
+     */
+    private static final class PendingResult {
+        private final DTOWorkerResult result;
+        private final Map<String, String> coordinates;
+
+        private PendingResult(DTOWorkerResult result, Map<String, String> coordinates) {
+            this.result      = result;
+            this.coordinates = coordinates;
+        }
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param coordinates  - schedule, task, etc..
+     * @param settings     - app settings
+     */
+    public WorkerResultAggregator(Map<String, String> coordinates, Map<String, String> settings)
+    {
+        this.coordinates = ExecutionContext.of(coordinates);
+        this.settings    = ExecutionContext.of(settings);
+
+        try {
+            if(this.settings.get("resultBatchSize") != null) {
+                this.batchSize = Math.max(1, Integer.parseInt(this.settings.get("resultBatchSize")));
+            }
+            if(this.settings.get("resultBatchBytes") != null) {
+                this.batchBytes = Math.max(1, Integer.parseInt(this.settings.get("resultBatchBytes")));
+            }
+        }
+        catch (NumberFormatException e) {
+            this.logException("WARNING", "TASK INIT", "Task " + this.coordinates.get("taskName") + ": can't parse result batch settings. Using defaults.", e);
+        }
+
+        if(this.settings.get("resultBatchGzip") != null) {
+            this.gzip = Boolean.parseBoolean(this.settings.get("resultBatchGzip"));
+        }
+    }
+
+
+    /**
+     * @param progress - task run progress
+     * @return           Returns this context
+     */
+    public WorkerResultAggregator setProgress(TaskProgress progress)
+    {
+        this.progress = progress;
+        return this;
+    }
+
+
+    /**
+     * Add worker result
+     * Full batch is handed to uploader thread
+     *
+     * @param result             - worker result
+     * @param workerCoordinates  - worker coordinates, for logging
+     * @return Boolean           - result accepted
+     */
+    public Boolean add(DTOWorkerResult result, Map<String, String> workerCoordinates)
+    {
+        List<PendingResult> toUpload = null;
+
+        synchronized (this.pending) {
+            this.pending.add(new PendingResult(result, workerCoordinates));
+            this.pendingBytes += WorkerResultAggregator.estimateSize(result);
+
+            if(this.pending.size() >= this.batchSize || this.pendingBytes >= this.batchBytes) {
+
+                // Late result of closed aggregator is uploaded by worker
+                if(this.closed) {
+                    toUpload = this.takePending();
+                }
+                else {
+                    if(this.uploader == null) {
+                        this.uploader = new Thread(this::uploadLoop, "cbackup-results-" + this.coordinates.get("taskName"));
+                        this.uploader.setDaemon(true);
+                        this.uploader.start();
+                    }
+                    // Queued under lock, so no batch is queued after end mark of close()
+                    this.handOff(this.takePending());
+                }
+            }
+        }
+
+        if(toUpload != null) {
+            this.upload(toUpload);
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Upload rest of results
+     *
+     * @return int - count of results, which were accepted but failed to upload
+     */
+    public int close()
+    {
+        List<PendingResult> toUpload;
+        Thread current;
+
+        synchronized (this.pending) {
+            toUpload     = this.takePending();
+            current      = this.uploader;
+            this.closed  = true;
+        }
+
+        if(!toUpload.isEmpty()) {
+            this.upload(toUpload);
+        }
+
+        /*
+         * Waiting for queued batches
+         */
+        if(current != null) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    this.batches.put(this.endOfBatches);
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            while (current.isAlive()) {
+                try {
+                    current.join();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return this.failed.get();
+    }
+
+
+    /**
+     * Queue full batch for uploader thread, waits while uploader is behind
+     * Interrupted worker uploads batch itself, results are not lost
+     *
+     * @param batch - results to upload
+     */
+    private void handOff(List<PendingResult> batch)
+    {
+        try {
+            this.batches.put(batch);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.upload(batch);
+        }
+    }
+
+
+    /**
+     * Uploader thread, ends on end of batches mark
+     */
+    private void uploadLoop()
+    {
+        while (true) {
+            List<PendingResult> batch;
+
+            try {
+                batch = this.batches.take();
+            }
+            catch (InterruptedException e) {
+                // nobody interrupts uploader
+                continue;
+            }
+
+            if(batch == this.endOfBatches) {
+                return;
+            }
+
+            try {
+                this.upload(batch);
+            }
+            catch (Exception e) {
+                // uploader must survive any batch
+                this.failed.addAndGet(batch.size());
+                this.logException("ERROR", "WORKER SEND RESULT", "Task " + this.coordinates.get("taskName") + ": can't upload results batch.", e);
+            }
+        }
+    }
+
+
+    /**
+     * Take pending results, must be called holding this.pending lock
+     *
+     * @return results to upload
+     */
+    private List<PendingResult> takePending()
+    {
+        List<PendingResult> taken = new ArrayList<>(this.pending);
+        this.pending.clear();
+        this.pendingBytes = 0;
+        return taken;
+    }
+
+
+    /**
+     * Upload results batch or one by one, if batch endpoint is not supported
+     *
+     * @param taken - results to upload
+     */
+    private void upload(List<PendingResult> taken)
+    {
+        /*
+         * Results of nodes with earlier results in outbox are queued after them
+         */
+        List<PendingResult> batch = new ArrayList<>(taken.size());
+
+        for (PendingResult current : taken) {
+            if(!this.enqueueAfterQueued(current)) {
+                batch.add(current);
+            }
+        }
+
+        if(batch.isEmpty()) {
+            return;
+        }
+
+        if(Boolean.FALSE.equals(batchSupported) || batch.size() == 1) {
+            for (PendingResult current : batch) {
+                this.uploadSingle(current);
+            }
+            return;
+        }
+
+        ApiRequest batchRequest = new ApiRequest(this.coordinates)
+                .setRequestMethod(ApiRequestMethods.POST)
+                .setApiMethod(BATCH_API_METHOD)
+                .setPostStream(writer -> {
+                    writer.beginArray();
+                    for (PendingResult current : batch) {
+                        this.gson.toJson(current.result, DTOWorkerResult.class, writer);
+                    }
+                    writer.endArray();
+                }, this.gzip);
+
+        ApiResponse batchResponse = ApiCaller.request(batchRequest);
+
+        /*
+         * Web core without batch endpoint
+         */
+        if(batchResponse.responseCode == 404) {
+            batchSupported = false;
+            this.logSystemMessage("WARNING", "WORKER SEND RESULT", "Batch result endpoint is not available. Results are sent one by one.");
+            for (PendingResult current : batch) {
+                this.uploadSingle(current);
+            }
+            return;
+        }
+
+        if(batchResponse.success) {
+            batchSupported = true;
+        }
+
+        /*
+         * 201 - all results saved
+         * 207 - per node status: {"<node id>": true|false, ..}
+         */
+        Map<String, Boolean> nodeStatus = null;
+
+        if(batchResponse.responseCode == 207) {
+            try {
+                nodeStatus = this.gson.fromJson(batchResponse.response, STATUS_TYPE);
+            }
+            catch (Exception e) {
+                nodeStatus = null;
+            }
+        }
+
+        for (PendingResult current : batch) {
+
+            boolean nodeSaved;
+
+            if(batchResponse.responseCode == 207 && nodeStatus != null) {
+                nodeSaved = Boolean.TRUE.equals(nodeStatus.get(current.result.nodeId));
+            }
+            else {
+                nodeSaved = batchResponse.success;
+            }
+
+            this.setNodeResult(current, nodeSaved, batchResponse);
+        }
+    }
+
+
+    /**
+     * Upload one result
+     *
+     * @param current - result to upload
+     */
+    private void uploadSingle(PendingResult current)
+    {
+        ApiRequest single = new ApiRequest(this.coordinates)
+                .setRequestMethod(ApiRequestMethods.POST)
+                .setApiMethod(SINGLE_API_METHOD)
+                .setPostJson(this.gson.toJson(current.result))
+                .setIdempotencyKey(ResultOutbox.idempotencyKey(current.result));
+
+        ApiResponse singleResponse = ApiCaller.request(single);
+
+        this.setNodeResult(current, singleResponse.success, singleResponse);
+    }
+
+
+    /**
+     * Queue result in outbox, if node has earlier result there
+     *
+     * @param current  - result to upload
+     * @return boolean - result is queued
+     */
+    private boolean enqueueAfterQueued(PendingResult current)
+    {
+        if(!ResultOutbox.getInstance().hasQueued(current.result.taskName, current.result.nodeId) || !ResultOutbox.getInstance().enqueue(current.result)) {
+            return false;
+        }
+
+        if(this.logLevelIsSufficient("INFO")) {
+            String message = "Task " + current.coordinates.get("taskName") + ", node " + current.coordinates.get("nodeId") + ": earlier result is not sent yet. Result is queued in outbox.";
+            ApiLogHelper.setLog("INFO", "WORKER SEND RESULT", message, current.coordinates);
+        }
+
+        this.onOutboxed();
+        return true;
+    }
+
+
+    /**
+     * Count result, queued in outbox, apart from saved ones
+     */
+    private void onOutboxed()
+    {
+        if(this.progress != null) {
+            this.progress.onOutboxed();
+        }
+    }
+
+
+    /**
+     * Count and log node upload result
+     *
+     * @param current  - uploaded result
+     * @param success  - upload success
+     * @param response - API response
+     */
+    private void setNodeResult(PendingResult current, boolean success, ApiResponse response)
+    {
+        String message;
+
+        if(success) {
+            this.saved.incrementAndGet();
+            NodeHashIndex.getInstance().put(current.result.taskName, current.result.nodeId, current.result.hash);
+            if(this.logLevelIsSufficient("INFO")) {
+                message = "Task " + current.coordinates.get("taskName") + ", node " + current.coordinates.get("nodeId") + ": worker success. Result is successfully saved.";
+                ApiLogHelper.setLog("INFO", "WORKER SEND RESULT", message, current.coordinates);
+            }
+        }
+        else if(ResultOutbox.isTransient(response) && ResultOutbox.getInstance().enqueue(current.result)) {
+            // API is unavailable, result is replayed later
+            this.onOutboxed();
+            if(this.logLevelIsSufficient("WARNING")) {
+                message = "Task " + current.coordinates.get("taskName") + ", node " + current.coordinates.get("nodeId") + ": set result via API is failed. Result is queued in outbox.";
+                ApiLogHelper.setLogBadResponse("WARNING", "WORKER SEND RESULT", message, current.coordinates, response);
+            }
+        }
+        else {
+            this.failed.incrementAndGet();
+            if(this.logLevelIsSufficient("ERROR")) {
+                message = "Task " + current.coordinates.get("taskName") + ", node " + current.coordinates.get("nodeId") + ": set result via API is failed.";
+                ApiLogHelper.setLogBadResponse("ERROR", "WORKER SEND RESULT", message, current.coordinates, response);
+            }
+        }
+    }
+
+
+    /**
+     * Approximate json size of result
+     *
+     * @param result - worker result
+     * @return int   - size, chars
+     */
+    private static int estimateSize(DTOWorkerResult result)
+    {
+        int size = RESULT_OVERHEAD;
+
+        for (Map.Entry<String, String> entry : result.data.entrySet()) {
+            size += entry.getKey().length();
+            if(entry.getValue() != null) {
+                size += entry.getValue().length();
+            }
+        }
+
+        return size;
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+
+/**
+ * Api method circuit breaker stats dto
+ * @noinspection WeakerAccess
+ */
+public class ApiBreakerStats {
+
+    public String apiMethod = null;
+    public String state     = null;
+
+    // Consecutive failures
+    public int failures     = 0;
+
+    // Times breaker was opened, requests rejected while open
+    public long trips       = 0;
+    public long rejected    = 0;
+
+}
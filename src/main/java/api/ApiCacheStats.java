@@ -0,0 +1,41 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+
+/**
+ * Api response cache stats dto
+ * @noinspection WeakerAccess
+ */
+public class ApiCacheStats {
+
+    public int entries       = 0;
+    public long bytes        = 0;
+    public long maxBytes     = 0;
+
+    // Cached requests: answered with 304, with unchanged body, with new body
+    public long requests     = 0;
+    public long notModified  = 0;
+    public long hashHits     = 0;
+    public long misses       = 0;
+    public long evictions    = 0;
+
+    // (notModified + hashHits) / answered
+    public double hitRatio   = 0;
+
+}
@@ -17,50 +17,384 @@
  */
 package api;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URIBuilder;
-
-import java.io.BufferedReader;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 
 /**
  * Api request caller (http GET|POST)
+ * All requests share one pooled keep-alive http client
  */
 public final class ApiCaller {
 
+    /*
+     * Pool defaults, used until configure() is called
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS           = 50;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    private static final int DEFAULT_CONNECT_TIMEOUT           = 10000;
+    private static final int DEFAULT_READ_TIMEOUT              = 60000;
+    private static final int DEFAULT_POOL_TIMEOUT              = 30000;
+    private static final int DEFAULT_KEEP_ALIVE                = 30000;
+
+    private static final Object lock = new Object();
+
+    private static volatile CloseableHttpClient client          = null;
+    private static PoolingHttpClientConnectionManager manager   = null;
+    private static volatile RequestConfig requestConfig         = null;
+
+    /*
+     * Pool counters: requests sent and physical connections opened
+     */
+    private static final AtomicLong requestCount    = new AtomicLong();
+    private static final AtomicLong connectionCount = new AtomicLong();
+
+    /*
+     * In-flight GET requests by method and params, calls coalesced into them
+     */
+    private static final Map<String, CompletableFuture<ApiResponse>> inFlight = new ConcurrentHashMap<>();
+    private static final AtomicLong coalescedCount = new AtomicLong();
+
+    /*
+     * Latency, status codes and bytes by API method
+     */
+    private static final Map<String, ApiEndpointMetrics> endpoints = new ConcurrentHashMap<>();
+
+    /*
+     * Circuit breakers by API method, GET retries
+     */
+    private static final Map<String, ApiCircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private static final ApiRetryBudget retryBudget              = new ApiRetryBudget();
+
+    private static volatile int breakerFailureThreshold = 5;
+    private static volatile long breakerOpenDuration    = 30000;
+    private static volatile int maxRetries              = 2;
+    private static volatile long retryBaseDelay         = 200;
+    private static volatile long retryMaxDelay          = 5000;
+
+    private static final Gson gson = ApiGsonSingleton.getInstance();
+
     /*
      * Instances not allowed
      */
     private ApiCaller() {}
 
+
+    /**
+     * (Re)create shared connection pool
+     * Previous pool, if any, is closed after new one is in place
+     *
+     * @param maxConnections          - max connections in pool
+     * @param maxConnectionsPerRoute  - max connections per route (web core host)
+     * @param connectTimeout          - connect timeout, ms
+     * @param readTimeout             - socket read timeout, ms
+     * @param poolTimeout             - max wait for free pool connection, ms
+     * @param keepAlive               - idle connection keep-alive, ms (if server does not send Keep-Alive header)
+     */
+    public static void configure(int maxConnections, int maxConnectionsPerRoute, int connectTimeout, int readTimeout, int poolTimeout, int keepAlive)
+    {
+        CloseableHttpClient oldClient;
+
+        synchronized (lock) {
+            oldClient = client;
+            client    = ApiCaller.createClient(maxConnections, maxConnectionsPerRoute, connectTimeout, readTimeout, poolTimeout, keepAlive);
+        }
+
+        ApiCaller.closeQuietly(oldClient);
+    }
+
+
+    /**
+     * Set circuit breaker and retry policy
+     *
+     * @param failureThreshold - consecutive failures of API method to open its breaker
+     * @param openDuration     - time breaker stays open before probe request, ms
+     * @param retries          - max retries of failed GET request
+     * @param baseDelay        - first retry delay, ms. Doubled on each retry, jittered
+     * @param maxDelay         - max retry delay, ms
+     * @param budgetRatio      - retries per request allowed for all API calls, 0..1
+     */
+    public static void configureBreakers(int failureThreshold, long openDuration, int retries, long baseDelay, long maxDelay, double budgetRatio)
+    {
+        breakerFailureThreshold = Math.max(1, failureThreshold);
+        breakerOpenDuration     = Math.max(0, openDuration);
+        maxRetries              = Math.max(0, retries);
+        retryBaseDelay          = Math.max(1, baseDelay);
+        retryMaxDelay           = Math.max(retryBaseDelay, maxDelay);
+        retryBudget.configure(budgetRatio, 100);
+    }
+
+
+    /**
+     * Set response cache size
+     *
+     * @param maxBytes - max size of cached bodies and parsed objects, bytes. 0 disables cache
+     */
+    public static void configureCache(long maxBytes)
+    {
+        ApiResponseCache.getInstance().configure(maxBytes);
+    }
+
+
+    /**
+     * Close shared connection pool
+     * Flush file log records
+     */
+    public static void shutdown()
+    {
+        CloseableHttpClient oldClient;
+
+        synchronized (lock) {
+            oldClient = client;
+            client    = null;
+            manager   = null;
+        }
+
+        ApiCaller.closeQuietly(oldClient);
+
+        // Failed requests are written to javacore.log asynchronously
+        ApiLogFileWriteSingleton.getInstance().shutdown(5000);
+    }
+
+
+    /**
+     * Connection pool stats
+     *
+     * @return ApiPoolStats
+     */
+    public static ApiPoolStats getPoolStats()
+    {
+        ApiPoolStats stats = new ApiPoolStats();
+
+        synchronized (lock) {
+            if(manager != null) {
+                PoolStats total = manager.getTotalStats();
+                stats.maxConnections         = total.getMax();
+                stats.maxConnectionsPerRoute = manager.getDefaultMaxPerRoute();
+                stats.leased                 = total.getLeased();
+                stats.available              = total.getAvailable();
+                stats.pending                = total.getPending();
+            }
+        }
+
+        stats.requests = requestCount.get();
+        stats.misses   = connectionCount.get();
+        stats.hits     = Math.max(0, stats.requests - stats.misses);
+
+        stats.coalesced = coalescedCount.get();
+        stats.inFlight  = inFlight.size();
+
+        return stats;
+    }
+
+
+    /**
+     * Circuit breakers stats
+     *
+     * @return List<ApiBreakerStats> - sorted by API method
+     */
+    public static List<ApiBreakerStats> getBreakerStats()
+    {
+        List<ApiBreakerStats> stats = new ArrayList<>();
+
+        for (ApiCircuitBreaker breaker : breakers.values()) {
+            stats.add(breaker.getStats());
+        }
+
+        stats.sort(Comparator.comparing(current -> current.apiMethod));
+
+        return stats;
+    }
+
+
+    /**
+     * Retry stats
+     *
+     * @return ApiRetryStats
+     */
+    public static ApiRetryStats getRetryStats()
+    {
+        ApiRetryStats stats = new ApiRetryStats();
+
+        stats.maxRetries = maxRetries;
+        stats.retries    = retryBudget.getRetries();
+        stats.denied     = retryBudget.getDenied();
+        stats.available  = retryBudget.getAvailable();
+
+        return stats;
+    }
+
+
+    /**
+     * Response cache stats
+     *
+     * @return ApiCacheStats
+     */
+    public static ApiCacheStats getCacheStats()
+    {
+        return ApiResponseCache.getInstance().getStats();
+    }
+
+
+    /**
+     * API methods stats: latency percentiles, throughput, status codes, bytes, in-flight requests
+     *
+     * @return List<ApiEndpointStats> - sorted by API method
+     */
+    public static List<ApiEndpointStats> getEndpointStats()
+    {
+        List<ApiEndpointStats> stats = new ArrayList<>();
+
+        for (ApiEndpointMetrics metrics : endpoints.values()) {
+            stats.add(metrics.getStats());
+        }
+
+        stats.sort(Comparator.comparing(current -> current.apiMethod));
+
+        return stats;
+    }
+
+
     /**
      * Http request GET-POST router
+     * Identical concurrent GET requests share one http exchange, every caller gets own copy of response
+     * Non-idempotent GET is never shared
      *
      * @param request Class ApiRequest instance
      * @return        Class ApiResponse instance
      */
     public static ApiResponse request(ApiRequest request)
+    {
+        if(request.requestMethod == ApiRequestMethods.GET && request.idempotent && request.validate()) {
+            return ApiCaller.coalesce("GET " + ApiCaller.flightKey(request), request, () -> ApiCaller.exchange(request));
+        }
+
+        return ApiCaller.exchange(request);
+    }
+
+
+    /**
+     * Http request with breaker and retries
+     * Request is rejected without network call, if breaker of API method is open
+     * GET is retried on transport or server error with jittered exponential delay, while retry budget allows
+     * Non-idempotent GET and GET, which timed out reading response, are never retried - web core may have done the work
+     *
+     * @param request Class ApiRequest instance
+     * @return        Class ApiResponse instance
+     */
+    private static ApiResponse exchange(ApiRequest request)
     {
 
         ApiResponse response = null;
 
         if(request.validate()) {
 
-            switch (request.requestMethod) {
+            ApiCircuitBreaker breaker = ApiCaller.getBreaker(request.apiMethod);
+
+            for (int attempt = 0; ; attempt++) {
+
+                if(!breaker.allowRequest(breakerOpenDuration)) {
+                    // Retry rejected, last failure is returned
+                    if(response != null) {
+                        break;
+                    }
+                    return ApiCaller.rejected(request);
+                }
+
+                retryBudget.onRequest();
 
-                case GET:
-                    response = ApiCaller.getRequest(request);
+                switch (request.requestMethod) {
+
+                    case GET:
+                        response = ApiCaller.getRequest(request);
+                        break;
+
+                    case POST:
+                        response = ApiCaller.postRequest(request);
+                        break;
+                }
+
+                if(!ApiCaller.isFailure(response)) {
+                    breaker.onSuccess();
                     break;
+                }
+
+                breaker.onFailure(breakerFailureThreshold);
 
-                case POST:
-                    response = ApiCaller.postRequest(request);
+                if(request.requestMethod != ApiRequestMethods.GET || !request.idempotent || response.readTimedOut) {
                     break;
+                }
+
+                if(attempt >= maxRetries || !retryBudget.tryAcquire()) {
+                    break;
+                }
+
+                if(!ApiCaller.sleepBeforeRetry(attempt)) {
+                    break;
+                }
+            }
+
+            // Only final failure is written to file log
+            if(response != null && response.exception.length() > 0) {
+                ApiCaller.setFileLog(request, response);
             }
         }
         else {
@@ -78,89 +412,342 @@ public final class ApiCaller {
 
 
     /**
-     * GET http request
+     * Cached GET http request
+     * Request is sent with If-None-Match/If-Modified-Since of cached response. On http 304, or on http 200 with
+     * unchanged body, cached parsed object is returned without parsing. Otherwise body is parsed and cached
+     * Parsed object is available as ApiResponse.getParsed(), it is shared by all callers and must not be modified
+     * Identical concurrent calls share one request and one parsed object
      *
      * @param request Class ApiRequest instance
+     * @param type    type of parsed body
      * @return        Class ApiResponse instance
+     * @throws JsonParseException if body can't be parsed
      */
-    private static ApiResponse getRequest(ApiRequest request) {
+    public static ApiResponse requestCached(ApiRequest request, Type type) throws JsonParseException
+    {
+        if(request.requestMethod != ApiRequestMethods.GET || !request.validate()) {
+            return ApiCaller.request(request);
+        }
+
+        return ApiCaller.coalesce("CACHED " + type.getTypeName() + " " + ApiCaller.flightKey(request), request, () -> ApiCaller.revalidate(request, type));
+    }
+
+
+    /**
+     * Conditional GET and parse, see requestCached()
+     *
+     * @param request Class ApiRequest instance
+     * @param type    type of parsed body
+     * @return        Class ApiResponse instance
+     */
+    private static ApiResponse revalidate(ApiRequest request, Type type)
+    {
+        ApiResponseCache cache       = ApiResponseCache.getInstance();
+        String key                   = ApiResponseCache.key(request);
+        ApiResponseCache.Entry entry = cache.get(key);
+
+        ApiCaller.setConditionalHeaders(request, entry);
 
+        ApiResponse response = ApiCaller.request(request);
+        boolean updated      = false;
+
+        if(entry != null && response.responseCode == 304) {
+            cache.onNotModified();
+            response.setSuccess(true).setResponse(entry.body).setValidators(entry.etag, entry.lastModified);
+        }
+        else if(response.success) {
+            String hash = ApiResponseCache.hash(response.response);
+            if(entry != null && entry.hash.equals(hash)) {
+                // Same body, parsed object is kept, validators are refreshed
+                cache.onHashHit();
+                entry = new ApiResponseCache.Entry(entry.body, response.etag, response.lastModified, hash, entry.parsed, entry.parsedType);
+            }
+            else {
+                cache.onMiss();
+                entry = new ApiResponseCache.Entry(response.response, response.etag, response.lastModified, hash, null, null);
+            }
+            updated = true;
+        }
+        else {
+            return response;
+        }
+
+        /*
+         * Parse once per body and type
+         */
+        if(entry.parsed == null || !type.equals(entry.parsedType)) {
+            Object parsed = gson.fromJson(entry.body, type);
+            entry         = new ApiResponseCache.Entry(entry.body, entry.etag, entry.lastModified, entry.hash, parsed, type);
+            updated       = true;
+        }
+
+        if(updated) {
+            cache.put(key, entry);
+        }
+
+        response.setParsed(entry.parsed);
+
+        return response;
+    }
+
+
+    /**
+     * Streamed GET http request
+     * On http 200 response body is handed to consumer directly from socket, ApiResponse.response stays empty
+     * Any other response is read and returned as in request()
+     * If request is cached, body is kept in response cache while it's read, and next request is conditional.
+     * On http 304 cached body is handed to consumer
+     *
+     * @param request  Class ApiRequest instance
+     * @param consumer response body consumer
+     * @return         Class ApiResponse instance
+     * @throws IOException if consumer fails to read or parse response body
+     */
+    public static ApiResponse requestStream(ApiRequest request, ApiStreamConsumer consumer) throws IOException
+    {
         ApiResponse response = new ApiResponse(request);
 
-        //noinspection Duplicates
+        if(!request.validate() || request.requestMethod != ApiRequestMethods.GET) {
+            response.setSuccess(false);
+            response.setResponse("JAVA CORE - API REQUEST FAILED. The required request parameters are missing.");
+            response.setResponseCode(400);
+            return response;
+        }
+
+        ApiCircuitBreaker breaker = ApiCaller.getBreaker(request.apiMethod);
+
+        if(!breaker.allowRequest(breakerOpenDuration)) {
+            return ApiCaller.rejected(request);
+        }
+
+        retryBudget.onRequest();
+
+        ApiResponseCache cache       = ApiResponseCache.getInstance();
+        String key                   = (request.cached) ? ApiResponseCache.key(request) : null;
+        ApiResponseCache.Entry entry = (request.cached) ? cache.get(key) : null;
+
+        ApiCaller.setConditionalHeaders(request, entry);
+
+        ApiEndpointMetrics metrics = ApiCaller.getMetrics(request.apiMethod);
+        long startedAt             = metrics.begin();
+        CountingEntity counted     = null;
+
         try {
+            CloseableHttpResponse httpResponse;
+
+            try {
+
+                HttpGet get = new HttpGet(ApiCaller.buildUri(request, true));
+                get.setHeader("Accept-Charset", "ISO-8859-1,utf-8;q=0.7,*;q=0.7");
+                get.setHeader("Accept", "text/html,application/json");
+                get.setHeader("Authorization", "Bearer " + request.coordinates.get("token"));
+                ApiCaller.setHeaders(get, request);
+                ApiCaller.setReadTimeout(get, request);
+
+                requestCount.incrementAndGet();
+
+                httpResponse = ApiCaller.getClient().execute(get);
+                response.setResponseCode(httpResponse.getStatusLine().getStatusCode());
+                ApiCaller.readValidators(httpResponse, response);
+
+                if(response.responseCode != 200) {
+                    try {
+                        counted = ApiCaller.counted(httpResponse.getEntity());
+                        response.setResponse((counted == null) ? "" : EntityUtils.toString(counted, StandardCharsets.UTF_8));
+                    }
+                    finally {
+                        httpResponse.close();
+                    }
+
+                    if(ApiCaller.isFailure(response)) {
+                        breaker.onFailure(breakerFailureThreshold);
+                    }
+                    else {
+                        breaker.onSuccess();
+                    }
+
+                    if(entry == null || response.responseCode != 304) {
+                        return response;
+                    }
+                }
+                else {
+                    breaker.onSuccess();
+                }
 
-            /*
-             * Create URI
-             */
-            URIBuilder uribuilder = new URIBuilder().setScheme(request.coordinates.get("scheme")).setHost(request.coordinates.get("site")).addParameter("r", request.apiMethod);
+            }
+            catch(Exception e) {
+                breaker.onFailure(breakerFailureThreshold);
+                ApiCaller.setException(request, response, e);
+                ApiCaller.setFileLog(request, response);
+                return response;
+            }
 
             /*
-             * Add GET params
+             * Not modified, cached body is replayed
              */
-            if(request.params != null) {
-                // noinspection Java8MapForEach, CodeBlock2Expr
-                request.params.entrySet().forEach(entry -> {
-                    uribuilder.addParameter(entry.getKey(), entry.getValue());
-                });
+            if(response.responseCode == 304) {
+                cache.onNotModified();
+                consumer.consume(new JsonReader(new StringReader(entry.body)));
+                response.setSuccess(true).setResponse("").setValidators(entry.etag, entry.lastModified);
+                return response;
             }
 
             /*
-             * Get url from URI builder
+             * Closing response before body is fully read drops the connection instead of returning it to pool
              */
-            URL url = uribuilder.build().toURL();
+            try (CloseableHttpResponse streamed = httpResponse) {
 
-            HttpURLConnection connect = (HttpURLConnection)url.openConnection();
+                counted = ApiCaller.counted(streamed.getEntity());
 
-            connect.setRequestMethod("GET");
-            connect.setRequestProperty("Accept-Charset", "ISO-8859-1,utf-8;q=0.7,*;q=0.7");
-            connect.setRequestProperty("Accept", "text/html,application/json");//old one
-            connect.setRequestProperty("Authorization", "Bearer " + request.coordinates.get("token"));
+                if(counted != null) {
 
-            response.setResponseCode(connect.getResponseCode());
+                    InputStream content = counted.getContent();
+                    TeeInputStream tee  = null;
 
-            BufferedReader responseBuffer;
+                    if(request.cached) {
+                        tee     = new TeeInputStream(content, cache.getMaxEntryBytes());
+                        content = tee;
+                    }
 
-            if (response.responseCode >= 400) {
-                responseBuffer = new BufferedReader(new InputStreamReader(connect.getErrorStream(), "UTF-8"));
-            }
-            else {
-                responseBuffer = new BufferedReader(new InputStreamReader(connect.getInputStream(), "UTF-8"));
-            }
+                    JsonReader reader = new JsonReader(new InputStreamReader(content, StandardCharsets.UTF_8));
+                    consumer.consume(reader);
 
-            StringBuilder sb = new StringBuilder();
+                    if(tee != null) {
+                        tee.drain();
+                        ApiCaller.cacheStreamed(key, entry, tee, response);
+                    }
 
-            for (int c; (c = responseBuffer.read()) >= 0; ) {
-                sb.append((char) c);
+                    EntityUtils.consume(counted);
+                }
             }
 
-            responseBuffer.close();
+            response.setSuccess(true);
+
+            return response;
+        }
+        finally {
+            metrics.end(startedAt, response.responseCode, 0, (counted == null) ? 0 : counted.getCount());
+        }
+    }
+
+
+    /**
+     * GET http request
+     *
+     * @param request Class ApiRequest instance
+     * @return        Class ApiResponse instance
+     */
+    private static ApiResponse getRequest(ApiRequest request) {
+
+        ApiResponse response       = new ApiResponse(request);
+        ApiEndpointMetrics metrics = ApiCaller.getMetrics(request.apiMethod);
+        long startedAt             = metrics.begin();
+        CountingEntity counted     = null;
+
+        //noinspection Duplicates
+        try {
+
+            HttpGet get = new HttpGet(ApiCaller.buildUri(request, true));
+            get.setHeader("Accept-Charset", "ISO-8859-1,utf-8;q=0.7,*;q=0.7");
+            get.setHeader("Accept", "text/html,application/json");//old one
+            get.setHeader("Authorization", "Bearer " + request.coordinates.get("token"));
+            ApiCaller.setHeaders(get, request);
+            ApiCaller.setReadTimeout(get, request);
+
+            requestCount.incrementAndGet();
 
-            response.setResponse(sb.toString());
+            try (CloseableHttpResponse httpResponse = ApiCaller.getClient().execute(get)) {
+
+                response.setResponseCode(httpResponse.getStatusLine().getStatusCode());
+                ApiCaller.readValidators(httpResponse, response);
+
+                counted = ApiCaller.counted(httpResponse.getEntity());
+                response.setResponse((counted == null) ? "" : EntityUtils.toString(counted, StandardCharsets.UTF_8));
+            }
 
             if(response.responseCode == 200) {
                 response.setSuccess(true);
-
             }
 
         }
         catch(Exception e) {
+            ApiCaller.setException(request, response, e);
+        }
+        finally {
+            metrics.end(startedAt, response.responseCode, 0, (counted == null) ? 0 : counted.getCount());
+        }
 
-            StringBuilder sb = new StringBuilder();
+        return response;
+    }
 
-            /*
-             * Stack trace to string
-             */
-            for (StackTraceElement element : e.getStackTrace()) {
-                sb.append(element.toString());
-                sb.append("\n");
+
+    /**
+     * POST http request
+     *
+     * @param request Class ApiRequest instance
+     * @return        Class ApiResponse instance
+     */
+    private static ApiResponse postRequest(ApiRequest request)
+    {
+
+        ApiResponse response       = new ApiResponse(request);
+        ApiEndpointMetrics metrics = ApiCaller.getMetrics(request.apiMethod);
+        long startedAt             = metrics.begin();
+        CountingEntity counted     = null;
+        ApiJsonStreamEntity streamEntity = null;
+        long sent                  = 0;
+
+        //noinspection Duplicates
+        try {
+
+            HttpPost post = new HttpPost(ApiCaller.buildUri(request, false));
+            post.setHeader("Accept", "text/html,application/json");
+            post.setHeader("Authorization", "Bearer " + request.coordinates.get("token"));
+            if(request.idempotencyKey != null) {
+                post.setHeader("Idempotency-Key", request.idempotencyKey);
             }
+            if(request.postStream != null) {
+                streamEntity = new ApiJsonStreamEntity(request.postStream, request.gzip);
+                post.setEntity(streamEntity);
+            }
+            else {
+                byte[] body = request.postJson.getBytes(StandardCharsets.UTF_8);
+                sent        = body.length;
+                post.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+            }
+            ApiCaller.setReadTimeout(post, request);
+
+            requestCount.incrementAndGet();
 
-            response.setException(e.getClass().getSimpleName() + ". Message: " +e.getMessage());
-            response.setStackTrace(sb.toString());
+            try (CloseableHttpResponse httpResponse = ApiCaller.getClient().execute(post)) {
 
-            ApiCaller.setFileLog(request, response);
+                response.setResponseCode(httpResponse.getStatusLine().getStatusCode());
 
+                counted = ApiCaller.counted(httpResponse.getEntity());
+
+                if (response.responseCode == 201) {
+                    response.setSuccess(true);
+                    // Body is not used, but must be consumed to return connection to pool
+                    EntityUtils.consume(counted);
+                }
+                else {
+                    /*
+                     * Writing response body only in case of an error
+                     * We don't use success responses and they are too big. Memory economy.
+                     */
+                    response.setResponse((counted == null) ? "" : EntityUtils.toString(counted, StandardCharsets.UTF_8));
+                }
+            }
+
+        }
+        catch(Exception e) {
+            ApiCaller.setException(request, response, e);
+        }
+        finally {
+            if(streamEntity != null) {
+                sent = streamEntity.getBytesWritten();
+            }
+            metrics.end(startedAt, response.responseCode, sent, (counted == null) ? 0 : counted.getCount());
         }
 
         return response;
@@ -168,92 +755,541 @@ public final class ApiCaller {
 
 
     /**
-     * POST http request
+     * Single flight: first caller of key runs call, concurrent callers of same key wait for its response
+     *
+     * @param key     in-flight request key
+     * @param request Class ApiRequest instance of caller
+     * @param call    http exchange
+     * @return        Class ApiResponse instance
+     */
+    private static ApiResponse coalesce(String key, ApiRequest request, Supplier<ApiResponse> call)
+    {
+        CompletableFuture<ApiResponse> own    = new CompletableFuture<>();
+        CompletableFuture<ApiResponse> flight = inFlight.putIfAbsent(key, own);
+
+        if(flight == null) {
+            try {
+                ApiResponse response = call.get();
+                own.complete(response);
+                return response;
+            }
+            catch (RuntimeException | Error e) {
+                own.completeExceptionally(e);
+                throw e;
+            }
+            finally {
+                inFlight.remove(key, own);
+            }
+        }
+
+        coalescedCount.incrementAndGet();
+
+        try {
+            return ApiCaller.copyResponse(flight.get(), request);
+        }
+        catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw (Error) e.getCause();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ApiResponse response = new ApiResponse(request);
+            ApiCaller.setException(request, response, e);
+            return response;
+        }
+    }
+
+
+    /**
+     * In-flight request key: web core, API method, GET params and extra headers
      *
      * @param request Class ApiRequest instance
+     * @return        String
+     */
+    private static String flightKey(ApiRequest request)
+    {
+        return request.coordinates.get("scheme") + "://" + request.coordinates.get("site") + " " + ApiResponseCache.key(request) +
+                " " + new TreeMap<>(request.headers).toString();
+    }
+
+
+    /**
+     * Copy of shared response with coordinates of caller
+     *
+     * @param shared  response of in-flight request
+     * @param request Class ApiRequest instance of caller
      * @return        Class ApiResponse instance
      */
-    private static ApiResponse postRequest(ApiRequest request)
+    private static ApiResponse copyResponse(ApiResponse shared, ApiRequest request)
+    {
+        ApiResponse response = new ApiResponse(request);
+
+        response.setSuccess(shared.success)
+                .setResponseCode(shared.responseCode);
+
+        response.setResponse(shared.response)
+                .setException(shared.exception)
+                .setStackTrace(shared.stackTrace)
+                .setError(shared.error);
+
+        response.setValidators(shared.etag, shared.lastModified)
+                .setParsed(shared.parsed);
+
+        return response;
+    }
+
+
+    /**
+     * Set extra request headers
+     *
+     * @param http    http request
+     * @param request Class ApiRequest instance
+     */
+    private static void setHeaders(HttpRequestBase http, ApiRequest request)
+    {
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            http.setHeader(header.getKey(), header.getValue());
+        }
+    }
+
+
+    /**
+     * Override socket read timeout of connection pool with timeout of request
+     *
+     * @param http    http request
+     * @param request Class ApiRequest instance
+     */
+    private static void setReadTimeout(HttpRequestBase http, ApiRequest request)
+    {
+        RequestConfig config = requestConfig;
+
+        if(request.readTimeout >= 0 && config != null) {
+            http.setConfig(RequestConfig.copy(config).setSocketTimeout(request.readTimeout).build());
+        }
+    }
+
+
+    /**
+     * Make request conditional on cached response validators
+     *
+     * @param request Class ApiRequest instance
+     * @param entry   cached response or null
+     */
+    private static void setConditionalHeaders(ApiRequest request, ApiResponseCache.Entry entry)
+    {
+        request.setHeader("If-None-Match", (entry == null) ? null : entry.etag);
+        request.setHeader("If-Modified-Since", (entry == null) ? null : entry.lastModified);
+    }
+
+
+    /**
+     * Read ETag and Last-Modified of response
+     *
+     * @param httpResponse http response
+     * @param response     Class ApiResponse instance
+     */
+    private static void readValidators(HttpResponse httpResponse, ApiResponse response)
+    {
+        Header etag         = httpResponse.getFirstHeader("ETag");
+        Header lastModified = httpResponse.getFirstHeader("Last-Modified");
+
+        response.setValidators((etag == null) ? null : etag.getValue(), (lastModified == null) ? null : lastModified.getValue());
+    }
+
+
+    /**
+     * Store streamed body in response cache
+     * Body, which exceeded entry size limit, is not cached
+     *
+     * @param key      cache key
+     * @param previous previously cached response or null
+     * @param tee      read body copy
+     * @param response Class ApiResponse instance
+     */
+    private static void cacheStreamed(String key, ApiResponseCache.Entry previous, TeeInputStream tee, ApiResponse response)
+    {
+        ApiResponseCache cache = ApiResponseCache.getInstance();
+
+        if(tee.isOverflown()) {
+            cache.onMiss();
+            cache.remove(key);
+            return;
+        }
+
+        String body = new String(tee.getCopy(), StandardCharsets.UTF_8);
+        String hash = ApiResponseCache.hash(body);
+
+        if(previous != null && previous.hash.equals(hash)) {
+            cache.onHashHit();
+        }
+        else {
+            cache.onMiss();
+        }
+
+        cache.put(key, new ApiResponseCache.Entry(body, response.etag, response.lastModified, hash, null, null));
+    }
+
+
+    /**
+     * Create URI
+     *
+     * @param request    Class ApiRequest instance
+     * @param withParams add GET params
+     * @return           URI
+     * @throws Exception if URI can't be built
+     */
+    private static URI buildUri(ApiRequest request, boolean withParams) throws Exception
+    {
+        URIBuilder uribuilder = new URIBuilder().setScheme(request.coordinates.get("scheme")).setHost(request.coordinates.get("site")).addParameter("r", request.apiMethod);
+
+        /*
+         * Add GET params
+         */
+        if(withParams && request.params != null) {
+            // noinspection Java8MapForEach, CodeBlock2Expr
+            request.params.entrySet().forEach(entry -> {
+                uribuilder.addParameter(entry.getKey(), entry.getValue());
+            });
+        }
+
+        return uribuilder.build();
+    }
+
+
+    /**
+     * Set exception info to response
+     *
+     * @param request  Class ApiRequest instance
+     * @param response Class ApiResponse instance
+     * @param e        Exception
+     */
+    private static void setException(ApiRequest request, ApiResponse response, Exception e)
+    {
+        // Stack trace is formatted only if response is logged, retried attempts don't pay for it
+        response.setException(e.getClass().getSimpleName() + ". Message: " +e.getMessage());
+        response.readTimedOut = e instanceof SocketTimeoutException;
+        response.setError(e);
+    }
+
+
+    /**
+     * Get or create circuit breaker of API method
+     *
+     * @param apiMethod          - API method
+     * @return ApiCircuitBreaker
+     */
+    private static ApiCircuitBreaker getBreaker(String apiMethod)
+    {
+        return breakers.computeIfAbsent(apiMethod, ApiCircuitBreaker::new);
+    }
+
+
+    /**
+     * Get or create metrics of API method
+     *
+     * @param apiMethod           - API method
+     * @return ApiEndpointMetrics
+     */
+    private static ApiEndpointMetrics getMetrics(String apiMethod)
+    {
+        return endpoints.computeIfAbsent(apiMethod, ApiEndpointMetrics::new);
+    }
+
+
+    /**
+     * Wrap response entity to count received bytes
+     *
+     * @param entity          - response entity or null
+     * @return CountingEntity - or null
+     */
+    private static CountingEntity counted(HttpEntity entity)
     {
+        return (entity == null) ? null : new CountingEntity(entity);
+    }
 
+
+    /**
+     * Breaker counts transport errors and web core server errors
+     * Client errors (4xx) are valid answers
+     *
+     * @param response Class ApiResponse instance
+     * @return boolean
+     */
+    private static boolean isFailure(ApiResponse response)
+    {
+        return response != null && !response.success && (response.responseCode == 0 || response.responseCode >= 500);
+    }
+
+
+    /**
+     * Response for request, rejected by open breaker
+     * No network call, no stack trace, no file log
+     *
+     * @param request Class ApiRequest instance
+     * @return        Class ApiResponse instance
+     */
+    private static ApiResponse rejected(ApiRequest request)
+    {
         ApiResponse response = new ApiResponse(request);
+        response.setSuccess(false);
+        response.setResponseCode(503);
+        response.setResponse("JAVA CORE - API REQUEST REJECTED. Circuit breaker is open for " + request.apiMethod + ".");
+        return response;
+    }
+
+
+    /**
+     * Jittered exponential delay before retry
+     *
+     * @param attempt  - failed attempt, from 0
+     * @return boolean - false if thread is interrupted
+     */
+    private static boolean sleepBeforeRetry(int attempt)
+    {
+        long delay = Math.min(retryMaxDelay, retryBaseDelay << Math.min(attempt, 20));
 
-        //noinspection Duplicates
         try {
+            // half of delay is random
+            Thread.sleep(ThreadLocalRandom.current().nextLong(delay / 2, delay + 1));
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-            /*
-             * Create URI
-             */
-            URIBuilder uribuilder = new URIBuilder().setScheme(request.coordinates.get("scheme")).setHost(request.coordinates.get("site")).addParameter("r", request.apiMethod);
 
-            /*
-             * Get url from URI builder
-             */
-            URL url = uribuilder.build().toURL();
+    /**
+     * Get shared client, create it with defaults if pool is not configured yet
+     *
+     * @return CloseableHttpClient
+     */
+    private static CloseableHttpClient getClient()
+    {
+        CloseableHttpClient current = client;
+
+        if(current == null) {
+            synchronized (lock) {
+                if(client == null) {
+                    client = ApiCaller.createClient(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_CONNECT_TIMEOUT,
+                            DEFAULT_READ_TIMEOUT, DEFAULT_POOL_TIMEOUT, DEFAULT_KEEP_ALIVE);
+                }
+                current = client;
+            }
+        }
+
+        return current;
+    }
 
-            byte[] postDataBytes = request.postJson.getBytes("UTF-8");
 
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-            conn.setRequestProperty("Accept", "text/html,application/json");
-            conn.setRequestProperty("Authorization", "Bearer " + request.coordinates.get("token"));
-            conn.setRequestProperty("Content-Length", String.valueOf(postDataBytes.length));
-            conn.setDoOutput(true);
-            conn.getOutputStream().write(postDataBytes);
+    /**
+     * Pooled http client
+     * One SSL context is shared by all connections, so JSSE session cache lets TLS sessions resume
+     * Must be called holding lock
+     *
+     * @return CloseableHttpClient
+     */
+    private static CloseableHttpClient createClient(int maxConnections, int maxConnectionsPerRoute, int connectTimeout, int readTimeout, int poolTimeout, int keepAlive)
+    {
+        SSLContext sslContext = SSLContexts.createSystemDefault();
+
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext))
+                .build();
+
+        /*
+         * Every physical connection created is a pool miss
+         */
+        HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory = (route, config) -> {
+            connectionCount.incrementAndGet();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+        };
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry, connectionFactory);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setValidateAfterInactivity(2000);
+
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setConnectionRequestTimeout(poolTimeout)
+                .build();
+
+        DefaultConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return (duration > 0) ? duration : keepAlive;
+            }
+        };
+
+        manager = connectionManager;
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .disableConnectionState()
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                .build();
+    }
 
-            response.setResponseCode(conn.getResponseCode());
 
-            if (response.responseCode == 201) {
+    /**
+     * Close client without exceptions
+     *
+     * @param toClose client to close
+     */
+    private static void closeQuietly(CloseableHttpClient toClose)
+    {
+        if(toClose != null) {
+            // noinspection EmptyCatchBlock
+            try {
+                toClose.close();
+            }
+            catch (Exception e) {}
+        }
+    }
 
-                response.setSuccess(true);
+
+    /**
+     * Response entity, which counts bytes read from its content stream
+     */
+    private static final class CountingEntity extends HttpEntityWrapper {
+
+        private CountingInputStream content = null;
+
+        CountingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if(this.content == null) {
+                this.content = new CountingInputStream(super.getContent());
             }
-            else {
-                /*
-                 * Writing response body only in case of an error
-                 * We don't use success responses and they are too big. Memory economy.
-                 */
-                BufferedReader responseBuffer;
-
-                if (response.responseCode >= 400) {
-                    responseBuffer = new BufferedReader(new InputStreamReader(conn.getErrorStream(), "UTF-8"));
-                }
-                else {
-                    responseBuffer = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
-                }
+            return this.content;
+        }
 
-                StringBuilder sb = new StringBuilder();
+        long getCount() {
+            return (this.content == null) ? 0 : this.content.count;
+        }
+    }
 
-                for (int c; (c = responseBuffer.read()) >= 0; ) {
-                    sb.append((char) c);
-                }
 
-                responseBuffer.close();
+    /**
+     * Input stream, which counts read bytes
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
 
-                response.setResponse(sb.toString());
+        @Override
+        public int read() throws IOException {
+            int current = super.read();
+            if(current != -1) {
+                this.count++;
             }
+            return current;
+        }
 
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if(read > 0) {
+                this.count += read;
+            }
+            return read;
         }
-        catch(Exception e) {
 
-            StringBuilder sb = new StringBuilder();
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            this.count  += Math.max(0, skipped);
+            return skipped;
+        }
+    }
 
-            /*
-             * Stack trace to string
-             */
-            for (StackTraceElement element : e.getStackTrace()) {
-                sb.append(element.toString());
-                sb.append("\n");
+
+    /**
+     * Input stream, which keeps copy of read bytes up to limit
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream(8192);
+        private final long limit;
+        private boolean overflown = false;
+
+        TeeInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int current = super.read();
+            if(current != -1) {
+                this.keep(new byte[] {(byte) current}, 0, 1);
             }
+            return current;
+        }
 
-            response.setException(e.getClass().getSimpleName() + ". Message: " +e.getMessage());
-            response.setStackTrace(sb.toString());
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if(count > 0) {
+                this.keep(b, off, count);
+            }
+            return count;
+        }
 
-            ApiCaller.setFileLog(request, response);
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be copied too
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int count     = this.read(buffer, 0, buffer.length);
+            return Math.max(0, count);
+        }
 
+        @Override
+        public boolean markSupported() {
+            return false;
         }
 
-        return response;
+        /**
+         * Read rest of stream, consumer could stop before end of body
+         */
+        void drain() throws IOException {
+            byte[] buffer = new byte[8192];
+            //noinspection StatementWithEmptyBody
+            while (this.read(buffer, 0, buffer.length) != -1) {}
+        }
+
+        boolean isOverflown() { return this.overflown; }
+
+        byte[] getCopy() { return this.copy.toByteArray(); }
+
+        private void keep(byte[] b, int off, int len) {
+            if(this.overflown) {
+                return;
+            }
+            if(this.copy.size() + len > this.limit) {
+                this.overflown = true;
+                this.copy.reset();
+                return;
+            }
+            this.copy.write(b, off, len);
+        }
     }
 
 
@@ -0,0 +1,136 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Circuit breaker of one API method
+ * closed    - requests pass, consecutive failures are counted
+ * open      - requests are rejected without network call until open duration passes
+ * half-open - one probe request passes, its result closes or opens breaker again
+ */
+class ApiCircuitBreaker {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String apiMethod;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger failures       = new AtomicInteger();
+    private final AtomicLong openedAt          = new AtomicLong();
+    private final AtomicBoolean probe          = new AtomicBoolean(false);
+    private final AtomicLong trips             = new AtomicLong();
+    private final AtomicLong rejected          = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param apiMethod - API method
+     */
+    ApiCircuitBreaker(String apiMethod) {
+        this.apiMethod = apiMethod;
+    }
+
+
+    /**
+     * Check if request can be sent
+     *
+     * @param openDuration - time breaker stays open, ms
+     * @return boolean
+     */
+    boolean allowRequest(long openDuration) {
+
+        switch (this.state.get()) {
+
+            case CLOSED:
+                return true;
+
+            case OPEN:
+                if(System.currentTimeMillis() - this.openedAt.get() >= openDuration && this.state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                    this.probe.set(true);
+                    return true;
+                }
+                break;
+
+            case HALF_OPEN:
+                if(this.probe.compareAndSet(false, true)) {
+                    return true;
+                }
+                break;
+        }
+
+        this.rejected.incrementAndGet();
+        return false;
+    }
+
+
+    /**
+     * Request succeeded
+     */
+    void onSuccess() {
+        this.failures.set(0);
+        if(this.state.get() != State.CLOSED) {
+            this.state.set(State.CLOSED);
+            this.probe.set(false);
+        }
+    }
+
+
+    /**
+     * Request failed: transport error or server error
+     *
+     * @param failureThreshold - consecutive failures to open breaker
+     */
+    void onFailure(int failureThreshold) {
+
+        int current = this.failures.incrementAndGet();
+
+        State currentState = this.state.get();
+
+        if(currentState == State.HALF_OPEN || (currentState == State.CLOSED && current >= failureThreshold)) {
+            if(this.state.compareAndSet(currentState, State.OPEN)) {
+                this.openedAt.set(System.currentTimeMillis());
+                this.probe.set(false);
+                this.trips.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * @return ApiBreakerStats
+     */
+    ApiBreakerStats getStats() {
+
+        ApiBreakerStats stats = new ApiBreakerStats();
+
+        stats.apiMethod = this.apiMethod;
+        stats.state     = this.state.get().name().toLowerCase();
+        stats.failures  = this.failures.get();
+        stats.trips     = this.trips.get();
+        stats.rejected  = this.rejected.get();
+
+        return stats;
+    }
+
+}
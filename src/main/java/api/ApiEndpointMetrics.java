@@ -0,0 +1,124 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Metrics of one API method
+ * Latency, status codes, bytes and in-flight requests. All counters are lock-free.
+ */
+class ApiEndpointMetrics {
+
+    private final String apiMethod;
+    private final long createdAt = System.currentTimeMillis();
+
+    private final ApiLatencyHistogram latency = new ApiLatencyHistogram();
+
+    private final AtomicInteger inFlight    = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final LongAdder bytesSent       = new LongAdder();
+    private final LongAdder bytesReceived   = new LongAdder();
+
+    // Response code => count, 0 - transport error
+    private final Map<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+
+    ApiEndpointMetrics(String apiMethod) {
+        this.apiMethod = apiMethod;
+    }
+
+
+    /**
+     * Http exchange is started
+     *
+     * @return long - start time, ns
+     */
+    long begin() {
+        int current = this.inFlight.incrementAndGet();
+        this.maxInFlight.accumulateAndGet(current, Math::max);
+        return System.nanoTime();
+    }
+
+
+    /**
+     * Http exchange is finished
+     *
+     * @param startedAt    - begin() result
+     * @param responseCode - http code, 0 on transport error
+     * @param sent         - request body bytes
+     * @param received     - response body bytes
+     */
+    void end(long startedAt, int responseCode, long sent, long received) {
+        this.inFlight.decrementAndGet();
+        this.latency.record((System.nanoTime() - startedAt) / 1000);
+        this.statusCodes.computeIfAbsent(responseCode, code -> new LongAdder()).increment();
+        this.bytesSent.add(Math.max(0, sent));
+        this.bytesReceived.add(Math.max(0, received));
+    }
+
+
+    /**
+     * @return ApiEndpointStats
+     */
+    ApiEndpointStats getStats() {
+
+        ApiEndpointStats stats = new ApiEndpointStats();
+
+        stats.apiMethod     = this.apiMethod;
+        stats.requests      = this.latency.getCount();
+        stats.inFlight      = this.inFlight.get();
+        stats.maxInFlight   = this.maxInFlight.get();
+        stats.bytesSent     = this.bytesSent.sum();
+        stats.bytesReceived = this.bytesReceived.sum();
+
+        long seconds        = Math.max(1, (System.currentTimeMillis() - this.createdAt) / 1000);
+        stats.ratePerMinute = Math.round(stats.requests * 600.0 / seconds) / 10.0;
+
+        stats.meanMs = ApiEndpointMetrics.toMs(Math.round(this.latency.getMean()));
+        stats.p50Ms  = ApiEndpointMetrics.toMs(this.latency.getValueAtPercentile(50));
+        stats.p90Ms  = ApiEndpointMetrics.toMs(this.latency.getValueAtPercentile(90));
+        stats.p99Ms  = ApiEndpointMetrics.toMs(this.latency.getValueAtPercentile(99));
+        stats.maxMs  = ApiEndpointMetrics.toMs(this.latency.getMax());
+
+        Map<String, Long> codes = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : this.statusCodes.entrySet()) {
+            codes.put(String.valueOf(entry.getKey()), entry.getValue().sum());
+        }
+        stats.statusCodes = codes;
+
+        long errors = 0;
+        for (Map.Entry<Integer, LongAdder> entry : this.statusCodes.entrySet()) {
+            if(entry.getKey() == 0 || entry.getKey() >= 500) {
+                errors += entry.getValue().sum();
+            }
+        }
+        stats.errors = errors;
+
+        return stats;
+    }
+
+    private static double toMs(long micros) {
+        return Math.round(micros / 100.0) / 10.0;
+    }
+
+}
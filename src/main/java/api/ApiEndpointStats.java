@@ -0,0 +1,54 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Api method metrics dto
+ * @noinspection WeakerAccess
+ */
+public class ApiEndpointStats {
+
+    public String apiMethod     = null;
+
+    // Http exchanges, finished and in progress
+    public long requests        = 0;
+    public int inFlight         = 0;
+    public int maxInFlight      = 0;
+    public double ratePerMinute = 0;
+
+    // Transport errors and 5xx responses
+    public long errors          = 0;
+
+    // Latency, ms
+    public double meanMs        = 0;
+    public double p50Ms         = 0;
+    public double p90Ms         = 0;
+    public double p99Ms         = 0;
+    public double maxMs         = 0;
+
+    public long bytesSent       = 0;
+    public long bytesReceived   = 0;
+
+    // Response code => count, 0 - transport error
+    public Map<String, Long> statusCodes = new TreeMap<>();
+
+}
@@ -0,0 +1,44 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+import com.google.gson.Gson;
+
+
+/**
+ * Shared Gson instance
+ * Gson is thread-safe and caches type adapters, so one instance serves all API calls, tasks and workers.
+ * Implemented using the singleton pattern.
+ */
+public final class ApiGsonSingleton {
+
+    private static final Gson _instance = new Gson();
+
+    /*
+     * Instances not allowed
+     */
+    private ApiGsonSingleton() {}
+
+    /**
+     * @return shared Gson
+     */
+    public static Gson getInstance() {
+        return _instance;
+    }
+
+}
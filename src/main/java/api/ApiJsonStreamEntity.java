@@ -0,0 +1,120 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Http entity, written by ApiJsonWriter directly to connection
+ * Sent with chunked transfer encoding, length is unknown upfront
+ */
+class ApiJsonStreamEntity extends AbstractHttpEntity {
+
+    private final ApiJsonWriter jsonWriter;
+    private final boolean gzip;
+
+    // Bytes written to connection, after compression
+    private volatile long bytesWritten = 0;
+
+    /**
+     * @param jsonWriter - body writer
+     * @param gzip       - compress body
+     */
+    ApiJsonStreamEntity(ApiJsonWriter jsonWriter, boolean gzip) {
+        this.jsonWriter = jsonWriter;
+        this.gzip       = gzip;
+
+        this.setChunked(true);
+        this.setContentType(ContentType.APPLICATION_JSON.toString());
+
+        if(gzip) {
+            this.setContentEncoding("gzip");
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() {
+        throw new UnsupportedOperationException("Streamed entity has no content stream");
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+
+        OutputStream counted = new FilterOutputStream(outStream) {
+            @Override
+            public void write(int b) throws IOException {
+                this.out.write(b);
+                ApiJsonStreamEntity.this.bytesWritten++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+                ApiJsonStreamEntity.this.bytesWritten += len;
+            }
+        };
+
+        GZIPOutputStream gzipStream = (this.gzip) ? new GZIPOutputStream(counted, 8192) : null;
+
+        // Connection stream is closed by http client, json writer is only flushed
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter((gzipStream != null) ? gzipStream : counted, StandardCharsets.UTF_8));
+
+        this.jsonWriter.write(writer);
+        writer.flush();
+
+        if(gzipStream != null) {
+            gzipStream.finish();
+        }
+
+        counted.flush();
+    }
+
+    /**
+     * @return long - bytes written to connection
+     */
+    long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+}
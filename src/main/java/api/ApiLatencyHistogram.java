@@ -0,0 +1,138 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Lock-free latency histogram, microseconds
+ * Log-linear buckets like HdrHistogram: 32 linear sub-buckets per power of two, ~3% value precision.
+ * Recording is one atomic increment, percentiles are computed from bucket counts on read.
+ */
+class ApiLatencyHistogram {
+
+    private static final int SUB_BITS  = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    // Values above ~38 hours are counted as max trackable value
+    private static final int MAX_SHIFT  = 31;
+    private static final long MAX_VALUE = ((long) SUB_COUNT * 2 << MAX_SHIFT) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * SUB_COUNT);
+    private final LongAdder count        = new LongAdder();
+    private final LongAdder sum          = new LongAdder();
+    private final AtomicLong max         = new AtomicLong();
+
+
+    /**
+     * @param micros - latency, microseconds
+     */
+    void record(long micros) {
+
+        long value = Math.min(Math.max(0, micros), MAX_VALUE);
+
+        this.counts.incrementAndGet(ApiLatencyHistogram.indexOf(value));
+        this.count.increment();
+        this.sum.add(value);
+
+        long current;
+        while (value > (current = this.max.get())) {
+            if(this.max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    long getCount() { return this.count.sum(); }
+
+    long getMax() { return this.max.get(); }
+
+    /**
+     * @return double - mean latency, microseconds
+     */
+    double getMean() {
+        long total = this.count.sum();
+        return (total == 0) ? 0 : (double) this.sum.sum() / total;
+    }
+
+
+    /**
+     * Latency at percentile
+     * Reported as highest value of bucket, so it is never lower than real value
+     *
+     * @param percentile - 0..100
+     * @return long      - microseconds
+     */
+    long getValueAtPercentile(double percentile) {
+
+        long total = 0;
+        long[] snapshot = new long[this.counts.length()];
+
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = this.counts.get(i);
+            total      += snapshot[i];
+        }
+
+        if(total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen   = 0;
+
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if(seen >= target) {
+                return Math.min(ApiLatencyHistogram.highestValueAt(i), this.max.get());
+            }
+        }
+
+        return this.max.get();
+    }
+
+
+    /**
+     * Values below 64 have own bucket, above - 32 buckets per power of two
+     */
+    private static int indexOf(long value) {
+
+        if(value < SUB_COUNT * 2) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+
+        return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    private static long highestValueAt(int index) {
+
+        if(index < SUB_COUNT * 2) {
+            return index;
+        }
+
+        int shift = index / SUB_COUNT - 1;
+        long sub  = index % SUB_COUNT + SUB_COUNT;
+
+        return ((sub + 1) << shift) - 1;
+    }
+
+}
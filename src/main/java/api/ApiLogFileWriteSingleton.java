@@ -17,63 +17,482 @@
  */
 package api;
 
-import java.io.FileWriter;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
  *  Multithread log filewrite class
+ *  Callers put lines to lock-free ring buffer, one writer thread appends them to runtime/logs/javacore.log.
+ *  File is kept open, rotated by size and age. Age is counted from file start, kept in javacore.log.started,
+ *  because file system creation time is not reliable for appended file.
  *  Implemented using the singleton pattern.
  */
 class ApiLogFileWriteSingleton {
 
     private final static ApiLogFileWriteSingleton _instance = new ApiLogFileWriteSingleton();
 
+    private static final int  CAPACITY        = 8192;                    // ring buffer slots, power of 2
+    private static final int  BATCH_BYTES     = 64 * 1024;               // write buffer
+    private static final long MAX_FILE_SIZE   = 10 * 1024 * 1024L;       // rotate at size
+    private static final long MAX_FILE_AGE    = TimeUnit.DAYS.toMillis(1); // rotate at age
+    private static final int  MAX_FILES       = 5;                       // javacore.log.1 .. javacore.log.5
+    private static final long FULL_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /*
+     * Ring buffer
+     * Slot sequence == position: free for producer, position + 1: filled for writer
+     */
+    private final int mask = CAPACITY - 1;
+    private final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLongArray sequences          = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail                    = new AtomicLong();
+    private long head                                = 0; // writer thread only
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicLong dropped    = new AtomicLong();
+    private volatile boolean running    = true;
+    private volatile boolean sleeping   = false;
+    private volatile Thread writer      = null;
+
+    // Producers, waiting for free slot
+    private final Object notFull        = new Object();
+    private volatile int fullWaiters    = 0;
+
+    /*
+     * Writer thread state
+     */
+    private final File logFile;
+    private final ByteBuffer buffer        = ByteBuffer.allocateDirect(BATCH_BYTES);
+    private final CharsetEncoder encoder   = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private FileChannel channel            = null;
+    private long fileSize                  = 0;
+    private long fileOpened                = 0;
+
     private ApiLogFileWriteSingleton() {
         super();
+
+        for (int i = 0; i < CAPACITY; i++) {
+            this.sequences.set(i, i);
+        }
+
+        /*
+         * Getting file path
+         */
+        File jarPath = new File(ApiLogFileWriteSingleton.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+        String logPath = jarPath.getParentFile().getParentFile().getAbsolutePath();
+        this.logFile = new File(logPath + File.separator + "runtime" + File.separator + "logs" + File.separator + "javacore.log");
     }
 
     /**
-     * Synhronized file write method
+     * Non-blocking file write method
+     * Waits shortly if buffer is full, then record is dropped and counted
      *
      * @param log String log message
      */
-    synchronized void writeToFile(String log) {
+    void writeToFile(String log) {
 
-        FileWriter fw = null;
+        if(log == null) {
+            return;
+        }
 
-        try
-        {
+        /*
+         * Writer is stopped, writing directly
+         */
+        if(!this.running) {
+            this.writeDirect(log);
+            return;
+        }
 
-            /*
-             * Getting file path
-             */
-            File logPath = new File(ApiLogFileWriteSingleton.class.getProtectionDomain().getCodeSource().getLocation().getPath());
-            String propertiesPath = logPath.getParentFile().getParentFile().getAbsolutePath();
-            propertiesPath = propertiesPath + File.separator + "runtime" + File.separator + "logs" + File.separator + "javacore.log";
+        this.startWriter();
 
-            /*
-             * Writing
-             */
-            fw = new FileWriter(propertiesPath,true);
-            fw.write(log + System.getProperty( "line.separator" ));
+        if(!this.offer(log) && !this.offerWaiting(log)) {
+            this.dropped.incrementAndGet();
+            return;
+        }
 
+        if(this.sleeping) {
+            this.wakeWriter();
         }
-        catch(Exception e) {
-            // we can't do something here
-            // file logging is our LAST hope
+    }
+
+
+    /**
+     * Wait for free slot, buffer is full
+     *
+     * @param log    - record
+     * @return false - no free slot in FULL_WAIT
+     */
+    private boolean offerWaiting(String log) {
+
+        long deadline = System.nanoTime() + FULL_WAIT_NANOS;
+
+        synchronized (this.notFull) {
+
+            this.fullWaiters++;
+
+            try {
+                while (!this.offer(log)) {
+
+                    long left = deadline - System.nanoTime();
+
+                    if(left <= 0 || !this.running) {
+                        return false;
+                    }
+
+                    this.wakeWriter();
+                    this.notFull.wait(Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(left), 10)));
+                }
+                return true;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally {
+                this.fullWaiters--;
+            }
         }
-        finally {
-            // File close
-            // noinspection EmptyCatchBlock
+    }
+
+
+    /**
+     * Write all buffered records and stop writer thread
+     *
+     * @param timeout - max wait, ms
+     */
+    void shutdown(long timeout) {
+
+        this.running = false;
+
+        Thread current = this.writer;
+
+        if(current != null) {
+            LockSupport.unpark(current);
             try {
-                if (fw != null) {
-                    fw.close();
+                current.join(timeout);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Put record to ring buffer
+     *
+     * @param log    - record
+     * @return false - buffer is full
+     */
+    private boolean offer(String log) {
+
+        while (true) {
+
+            long position = this.tail.get();
+            int index     = (int) position & this.mask;
+            long diff     = this.sequences.get(index) - position;
+
+            if(diff == 0) {
+                if(this.tail.compareAndSet(position, position + 1)) {
+                    this.slots.set(index, log);
+                    this.sequences.set(index, position + 1);
+                    return true;
+                }
+            }
+            else if(diff < 0) {
+                return false;
+            }
+        }
+    }
+
+
+    /**
+     * Take record from ring buffer, writer thread only
+     *
+     * @return String - record or null, if buffer is empty
+     */
+    private String poll() {
+
+        int index = (int) this.head & this.mask;
+
+        if(this.sequences.get(index) != this.head + 1) {
+            return null;
+        }
+
+        String log = this.slots.get(index);
+        this.slots.lazySet(index, null);
+        this.sequences.lazySet(index, this.head + CAPACITY);
+        this.head++;
+
+        return log;
+    }
+
+
+    private void startWriter() {
+        if(!this.started.get() && this.started.compareAndSet(false, true)) {
+            Thread thread = new Thread(this::writeLoop, "cbackup-log-writer");
+            thread.setDaemon(true);
+            this.writer = thread;
+            thread.start();
+        }
+    }
+
+
+    private void signalNotFull() {
+        if(this.fullWaiters > 0) {
+            synchronized (this.notFull) {
+                this.notFull.notifyAll();
+            }
+        }
+    }
+
+
+    private void wakeWriter() {
+        Thread current = this.writer;
+        if(current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+
+    /**
+     * Writer thread
+     */
+    private void writeLoop() {
+
+        while (this.running) {
+
+            if(!this.drain()) {
+                this.sleeping = true;
+                // recheck, record could be added before flag was set
+                if(this.running && this.sequences.get((int) this.head & this.mask) != this.head + 1) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
                 }
+                this.sleeping = false;
+            }
+        }
+
+        /*
+         * Records left in buffer
+         */
+        while (this.drain()) {
+            // draining
+        }
+
+        this.closeChannel();
+    }
+
+
+    /**
+     * Write all available records as batches
+     *
+     * @return false - nothing was written
+     */
+    private boolean drain() {
+
+        String log = this.poll();
+
+        if(log == null) {
+            return false;
+        }
+
+        try {
+
+            long droppedCount = this.dropped.getAndSet(0);
+            if(droppedCount > 0) {
+                this.append("Log buffer overflow, " + droppedCount + " records dropped.");
+            }
+
+            while (log != null) {
+                this.append(log);
+                log = this.poll();
+            }
+
+            this.signalNotFull();
+            this.flushBuffer();
+        }
+        catch (Exception e) {
+            // we can't do something here
+            // file logging is our LAST hope
+            this.buffer.clear();
+            this.closeChannel();
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Encode record to write buffer, buffer is written to file when full
+     *
+     * @param log - record
+     * @throws IOException on write error
+     */
+    private void append(String log) throws IOException {
+
+        CharBuffer chars = CharBuffer.wrap(log + LINE_SEPARATOR);
+
+        this.encoder.reset();
+
+        while (this.encoder.encode(chars, this.buffer, true).isOverflow()) {
+            this.flushBuffer();
+        }
+
+        while (this.encoder.flush(this.buffer).isOverflow()) {
+            this.flushBuffer();
+        }
+    }
+
+
+    /**
+     * Write buffer to file, rotate file if required
+     *
+     * @throws IOException on write error
+     */
+    private void flushBuffer() throws IOException {
+
+        if(this.buffer.position() == 0) {
+            return;
+        }
+
+        this.openChannel();
+
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.fileSize += this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+
+        if(this.fileSize >= MAX_FILE_SIZE || System.currentTimeMillis() - this.fileOpened >= MAX_FILE_AGE) {
+            this.rotate();
+        }
+    }
+
+
+    private void openChannel() throws IOException {
+
+        if(this.channel != null) {
+            return;
+        }
+
+        this.channel  = FileChannel.open(this.logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.fileSize = this.channel.size();
+
+        // file age for rotation
+        this.fileOpened = (this.fileSize > 0) ? this.readStarted() : 0;
+        if(this.fileOpened <= 0) {
+            this.fileOpened = System.currentTimeMillis();
+            this.writeStarted(this.fileOpened);
+        }
+    }
+
+
+    /**
+     * Start time of current log file, saved when file was created
+     *
+     * @return long - ms, 0 if unknown
+     */
+    private long readStarted() {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(this.startedFile().toPath()), StandardCharsets.US_ASCII).trim());
+        }
+        catch (Exception e) {
+            return 0;
+        }
+    }
+
+
+    private void writeStarted(long started) {
+        // noinspection EmptyCatchBlock
+        try {
+            Files.write(this.startedFile().toPath(), String.valueOf(started).getBytes(StandardCharsets.US_ASCII));
+        }
+        catch (Exception e) {}
+    }
+
+
+    private File startedFile() {
+        return new File(this.logFile.getPath() + ".started");
+    }
+
+
+    /**
+     * javacore.log => javacore.log.1 => .. => javacore.log.MAX_FILES
+     *
+     * @throws IOException on rename error
+     */
+    private void rotate() throws IOException {
+
+        this.closeChannel();
+
+        String path = this.logFile.getPath();
+
+        Files.deleteIfExists(new File(path + "." + MAX_FILES).toPath());
+
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            File source = new File(path + "." + i);
+            if(source.exists()) {
+                Files.move(source.toPath(), new File(path + "." + (i + 1)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        Files.move(this.logFile.toPath(), new File(path + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(this.startedFile().toPath());
+    }
+
+
+    private void closeChannel() {
+
+        // noinspection EmptyCatchBlock
+        try {
+            if(this.channel != null) {
+                this.channel.force(false);
+                this.channel.close();
             }
-            catch ( Exception e) {}
         }
+        catch (Exception e) {}
 
+        this.channel = null;
+    }
+
+
+    /**
+     * Synchronized direct write, used after writer thread is stopped
+     *
+     * @param log - record
+     */
+    private synchronized void writeDirect(String log) {
+
+        try (FileChannel direct = FileChannel.open(this.logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer bytes = ByteBuffer.wrap((log + LINE_SEPARATOR).getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                direct.write(bytes);
+            }
+        }
+        catch (Exception e) {
+            // we can't do something here
+            // file logging is our LAST hope
+        }
     }
 
     static ApiLogFileWriteSingleton getInstance() {
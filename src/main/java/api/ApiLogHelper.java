@@ -33,6 +33,9 @@ import java.util.Map;
  */
 public class ApiLogHelper {
 
+    // Gson is thread-safe, one instance for all log records
+    private static final Gson gson = ApiGsonSingleton.getInstance();
+
     /*
      * Instances not allowed
      */
@@ -216,39 +219,37 @@ public class ApiLogHelper {
 
     /**
      * Log sending
+     * Record is queued and sent by ApiLogShipper thread
      *
      * @param dto           - data object, containing db table log_scheduler fields
      * @param coordinates   - schedule, task, node, etc..
      */
     private static void sendLog(Map<String, String> dto, Map<String, String> coordinates)
     {
-        Gson gson = new Gson();
-
         ApiRequest log = new ApiRequest(coordinates)
                 .setRequestMethod(ApiRequestMethods.POST)
                 .setApiMethod("v1/core/set-schedule-log")
                 .setPostJson(gson.toJson(dto));
 
-        ApiCaller.request(log);
+        ApiLogShipper.getInstance().enqueue(log, dto);
     }
 
 
     /**
      * System log sending
+     * Record is queued and sent by ApiLogShipper thread
      *
      * @param dto           - data object, containing db table log_scheduler fields
      * @param coordinates   - schedule, task, node, etc..
      */
     private static void sendSystemLog(Map<String, String> dto, Map<String, String> coordinates)
     {
-        Gson gson = new Gson();
-
         ApiRequest log = new ApiRequest(coordinates)
                 .setRequestMethod(ApiRequestMethods.POST)
                 .setApiMethod("v1/core/set-system-log")
                 .setPostJson(gson.toJson(dto));
 
-        ApiCaller.request(log);
+        ApiLogShipper.getInstance().enqueue(log, dto);
     }
 
 
@@ -333,7 +334,6 @@ public class ApiLogHelper {
              * Trying to get message from bad API response
              */
             try {
-                Gson gson = new Gson();
                 Type responseType = new TypeToken<HashMap<String, String>>(){}.getType();
                 Map<String, String> responseBody;
                 responseBody = gson.fromJson(response.response, responseType);
@@ -350,8 +350,10 @@ public class ApiLogHelper {
             footer += "Exception: " + response.exception + "\n";
         }
 
-        if(response.stackTrace.length() > 0) {
-            footer += "Stack trace: \n" + response.stackTrace + "\n";
+        String stackTrace = response.getStackTrace();
+
+        if(stackTrace.length() > 0) {
+            footer += "Stack trace: \n" + stackTrace + "\n";
         }
 
         return header + "\n" + footer;
@@ -0,0 +1,304 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  Asynchronous log record shipping
+ *  Callers only put records to bounded queue, one background thread sends them to API in batches.
+ *  Single sender thread is a bulkhead: log storm can hold at most one pooled API connection.
+ *  Implemented using the singleton pattern.
+ */
+public class ApiLogShipper {
+
+    private final static ApiLogShipper _instance = new ApiLogShipper();
+
+    private volatile int capacity      = 10000;
+    private volatile int batchSize     = 100;
+    private volatile int flushInterval = 1000;
+    private volatile boolean spill     = true;
+
+    private final LinkedBlockingQueue<LogRecord> queue = new LinkedBlockingQueue<>();
+
+    private final AtomicLong queued  = new AtomicLong();
+    private final AtomicLong shipped = new AtomicLong();
+    private final AtomicLong failed  = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+
+    private Thread shipperThread = null;
+    private volatile boolean running = false;
+
+    /*
+     * Queued log record
+     */
+    private static final class LogRecord {
+        private final ApiRequest request;
+        private final Map<String, String> dto;
+
+        private LogRecord(ApiRequest request, Map<String, String> dto) {
+            this.request = request;
+            this.dto     = dto;
+        }
+    }
+
+    private ApiLogShipper() {
+        super();
+    }
+
+    static ApiLogShipper getInstance() {
+        return _instance;
+    }
+
+
+    /**
+     * Shipper settings
+     *
+     * @param capacity      - max records waiting in queue
+     * @param batchSize     - max records sent in one flush
+     * @param flushInterval - max time record waits for batch to fill, ms
+     * @param spill         - write records to javacore.log when queue is full or sending fails, drop silently otherwise
+     */
+    public static void configure(int capacity, int batchSize, int flushInterval, boolean spill) {
+        _instance.capacity      = Math.max(1, capacity);
+        _instance.batchSize     = Math.max(1, batchSize);
+        _instance.flushInterval = Math.max(1, flushInterval);
+        _instance.spill         = spill;
+    }
+
+
+    /**
+     * Stop shipper thread, sending records left in queue
+     *
+     * @param timeout - max time for sending left records, ms
+     */
+    public static void shutdown(long timeout) {
+        _instance.stop(timeout);
+    }
+
+
+    /**
+     * Shipper stats
+     *
+     * @return ApiLogShipperStats
+     */
+    public static ApiLogShipperStats getStats() {
+
+        ApiLogShipperStats stats = new ApiLogShipperStats();
+
+        stats.capacity = _instance.capacity;
+        stats.depth    = _instance.queue.size();
+        stats.queued   = _instance.queued.get();
+        stats.shipped  = _instance.shipped.get();
+        stats.failed   = _instance.failed.get();
+        stats.dropped  = _instance.dropped.get();
+        stats.spilled  = _instance.spilled.get();
+
+        return stats;
+    }
+
+
+    /**
+     * Put log record to queue
+     *
+     * @param request - ready to send POST request
+     * @param dto     - log record fields
+     */
+    void enqueue(ApiRequest request, Map<String, String> dto) {
+
+        this.ensureStarted();
+
+        // LinkedBlockingQueue.size() is constant time, bound may be exceeded by few concurrent records
+        if(this.queue.size() < this.capacity && this.queue.offer(new LogRecord(request, dto))) {
+            this.queued.incrementAndGet();
+            return;
+        }
+
+        this.dropped.incrementAndGet();
+
+        if(this.spill) {
+            this.spillToFile(dto);
+        }
+    }
+
+
+    /**
+     * Start shipper thread on first record
+     */
+    private synchronized void ensureStarted() {
+
+        if(this.running) {
+            return;
+        }
+
+        this.running       = true;
+        this.shipperThread = new Thread(this::shipLoop, "cbackup-log-shipper");
+        this.shipperThread.setDaemon(true);
+        this.shipperThread.start();
+    }
+
+
+    /**
+     * Stop shipper thread, send left records
+     *
+     * @param timeout - max time for sending left records, ms
+     */
+    private void stop(long timeout) {
+
+        Thread toStop;
+
+        synchronized (this) {
+            if(!this.running) {
+                return;
+            }
+            this.running = false;
+            toStop = this.shipperThread;
+            this.shipperThread = null;
+        }
+
+        toStop.interrupt();
+
+        try {
+            toStop.join(timeout);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Shipper thread loop
+     * Batch is sent when it is full or when first record waited flushInterval
+     */
+    private void shipLoop() {
+
+        List<LogRecord> batch = new ArrayList<>();
+
+        while (this.running) {
+            try {
+                LogRecord first = this.queue.poll(this.flushInterval, TimeUnit.MILLISECONDS);
+
+                if(first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+
+                long deadline = System.currentTimeMillis() + this.flushInterval;
+
+                while (batch.size() < this.batchSize) {
+
+                    this.queue.drainTo(batch, this.batchSize - batch.size());
+
+                    long wait = deadline - System.currentTimeMillis();
+
+                    if(batch.size() >= this.batchSize || wait <= 0) {
+                        break;
+                    }
+
+                    LogRecord next = this.queue.poll(wait, TimeUnit.MILLISECONDS);
+
+                    if(next == null) {
+                        break;
+                    }
+
+                    batch.add(next);
+                }
+
+                this.ship(batch);
+                batch.clear();
+            }
+            catch (InterruptedException e) {
+                // stop() called, left records are sent below
+                break;
+            }
+            catch (Exception e) {
+                // shipper thread must survive any record
+                batch.clear();
+            }
+        }
+
+        /*
+         * Send records left in queue
+         */
+        Thread.interrupted();
+        this.queue.drainTo(batch);
+        this.ship(batch);
+    }
+
+
+    /**
+     * Send batch
+     * Web core accepts one record per request, batch is sent over pooled keep-alive connection
+     * Record, which failed or was rejected, is written to javacore.log, if spill is on
+     *
+     * @param batch - log records
+     */
+    private void ship(List<LogRecord> batch) {
+
+        for (LogRecord record : batch) {
+            ApiResponse response = ApiCaller.request(record.request);
+
+            if(response.success) {
+                this.shipped.incrementAndGet();
+            }
+            else {
+                this.failed.incrementAndGet();
+                if(this.spill) {
+                    this.spillToFile(record.dto);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Write dropped or failed record to javacore.log
+     *
+     * @param dto - log record fields
+     */
+    private void spillToFile(Map<String, String> dto) {
+
+        try {
+            DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd  HH:mm:ss");
+            String date = dateFormat.format(new Date());
+
+            String logMessage = date + " severity: " + dto.get("severity") + "." + System.getProperty( "line.separator" )
+                    + "action: " + dto.get("action") + System.getProperty( "line.separator" )
+                    + "message: " + dto.get("message");
+
+            ApiLogFileWriteSingleton.getInstance().writeToFile(logMessage);
+            this.spilled.incrementAndGet();
+        }
+        catch (Exception e) {
+            // file logging is our LAST hope
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+
+/**
+ * Api log shipper stats dto
+ * @noinspection WeakerAccess
+ */
+public class ApiLogShipperStats {
+
+    public int capacity  = 0;
+    public int depth     = 0;   // records waiting in queue
+
+    public long queued   = 0;   // records accepted to queue
+    public long shipped  = 0;   // records successfully sent to API
+    public long failed   = 0;   // records rejected by API or failed in transport
+    public long dropped  = 0;   // records not accepted, queue was full
+    public long spilled  = 0;   // dropped or failed records written to javacore.log instead
+
+}
@@ -0,0 +1,42 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+
+/**
+ * Api connection pool stats dto
+ * @noinspection WeakerAccess
+ */
+public class ApiPoolStats {
+
+    public int maxConnections         = 0;
+    public int maxConnectionsPerRoute = 0;
+    public int leased                 = 0;
+    public int available              = 0;
+    public int pending                = 0;
+
+    // Requests sent, served by pooled (hits) or new (misses) connections
+    public long requests              = 0;
+    public long hits                  = 0;
+    public long misses                = 0;
+
+    // GET calls, which shared in-flight identical GET instead of sending own request
+    public long coalesced             = 0;
+    public int inFlight               = 0;
+
+}
@@ -30,21 +30,40 @@ public class ApiRequest {
     public String apiMethod     = null;
     public String postJson      = null;
 
-    // Request coordinates - schedule, task, node, etc...
-    public Map<String, String> coordinates = new HashMap<>();
+    // Streamed POST body, used instead of postJson. Sent chunked, optionally gzip-compressed
+    public ApiJsonWriter postStream = null;
+    public boolean gzip             = false;
+
+    // Idempotency-Key header, lets web core drop repeated POST
+    public String idempotencyKey    = null;
+
+    // Request coordinates - schedule, task, node, etc... Immutable, shared with caller
+    public Map<String, String> coordinates = ExecutionContext.EMPTY;
 
     // GET params
     public Map<String, String> params = new HashMap<>();
 
+    // Extra request headers
+    public Map<String, String> headers = new HashMap<>();
+
+    // Streamed GET body may be kept in response cache and revalidated with conditional request
+    public boolean cached           = false;
+
     // Request method(GET, POST)
     public ApiRequestMethods requestMethod = null;
 
+    // GET, which triggers action on web core, is never retried or shared with other callers
+    public boolean idempotent       = true;
+
+    // Socket read timeout, ms. 0 - no timeout, -1 - timeout of connection pool
+    public int readTimeout          = -1;
+
     /**
      * @param coordinates  - process coordinates - schedule, task, node..
      */
     public ApiRequest(Map<String, String> coordinates)
     {
-        this.coordinates.putAll(coordinates);
+        this.coordinates = ExecutionContext.of(coordinates);
     }
 
     /**
@@ -77,6 +96,28 @@ public class ApiRequest {
         return this;
     }
 
+    /**
+     * @param postStream Api post streamed json body setter
+     * @param gzip       compress body
+     * @return           Returns this context
+     */
+    public ApiRequest setPostStream(ApiJsonWriter postStream, boolean gzip)
+    {
+        this.postStream = postStream;
+        this.gzip       = gzip;
+        return this;
+    }
+
+    /**
+     * @param idempotencyKey Idempotency key setter
+     * @return               Returns this context
+     */
+    public ApiRequest setIdempotencyKey(String idempotencyKey)
+    {
+        this.idempotencyKey = idempotencyKey;
+        return this;
+    }
+
     /**
      * @param params Api request GET params HashMap setter
      * @return       Returns this context
@@ -87,6 +128,52 @@ public class ApiRequest {
         return this;
     }
 
+    /**
+     * @param name  Header name
+     * @param value Header value, null removes header
+     * @return      Returns this context
+     */
+    public ApiRequest setHeader(String name, String value)
+    {
+        if(value == null) {
+            this.headers.remove(name);
+        }
+        else {
+            this.headers.put(name, value);
+        }
+        return this;
+    }
+
+    /**
+     * @param cached Keep streamed response body in response cache
+     * @return       Returns this context
+     */
+    public ApiRequest setCached(boolean cached)
+    {
+        this.cached = cached;
+        return this;
+    }
+
+    /**
+     * @param idempotent false - request is not retried and not coalesced with identical requests
+     * @return           Returns this context
+     */
+    public ApiRequest setIdempotent(boolean idempotent)
+    {
+        this.idempotent = idempotent;
+        return this;
+    }
+
+    /**
+     * @param readTimeout Socket read timeout, ms. 0 - no timeout, -1 - timeout of connection pool
+     * @return            Returns this context
+     */
+    public ApiRequest setReadTimeout(int readTimeout)
+    {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
     /**
      * @return boolean
      */
@@ -98,7 +185,7 @@ public class ApiRequest {
             toReturn = false;
         }
         else {
-            if (this.requestMethod.toString().equals("POST") && this.postJson == null) {
+            if (this.requestMethod.toString().equals("POST") && this.postJson == null && this.postStream == null) {
                 toReturn = false;
             }
         }
@@ -17,7 +17,6 @@
  */
 package api;
 
-import java.util.HashMap;
 import java.util.Map;
 
 
@@ -36,12 +35,25 @@ public class ApiResponse {
     public String exception     = "";
     public String stackTrace    = "";
 
-    // Request coordinates - schedule, task, node, etc...
-    public Map<String, String> coordinates = new HashMap<>();
+    // Exception of failed request. Stack trace is formatted from it only when response is logged
+    public transient Throwable error = null;
+
+    // Request was sent, but response was not read in time. Web core may still process request
+    public boolean readTimedOut = false;
+
+    // Validators of GET response, used for conditional requests
+    public String etag          = null;
+    public String lastModified  = null;
+
+    // Parsed body of cached request. Shared with other callers, must not be modified
+    public Object parsed        = null;
+
+    // Request coordinates - schedule, task, node, etc... Immutable, shared with request
+    public Map<String, String> coordinates = ExecutionContext.EMPTY;
 
     public ApiResponse(ApiRequest request) {
 
-        this.coordinates.putAll(request.coordinates);
+        this.coordinates    = request.coordinates;
         this.apiMethod      = request.apiMethod;
         this.requestMethod  = request.requestMethod.toString();
     }
@@ -98,4 +110,68 @@ public class ApiResponse {
         return this;
     }
 
+    /**
+     * @param error  Exception of failed request
+     * @return       Returns this context
+     */
+    public ApiResponse setError(Throwable error)
+    {
+        this.error = error;
+        return this;
+    }
+
+    /**
+     * Stack trace, formatted from exception on first call
+     *
+     * @return String
+     */
+    public String getStackTrace()
+    {
+        if(this.stackTrace.isEmpty() && this.error != null) {
+
+            StringBuilder sb = new StringBuilder();
+
+            for (StackTraceElement element : this.error.getStackTrace()) {
+                sb.append(element.toString());
+                sb.append("\n");
+            }
+
+            this.stackTrace = sb.toString();
+        }
+
+        return this.stackTrace;
+    }
+
+    /**
+     * @param etag          ETag header value
+     * @param lastModified  Last-Modified header value
+     * @return              Returns this context
+     */
+    public ApiResponse setValidators(String etag, String lastModified)
+    {
+        this.etag         = etag;
+        this.lastModified = lastModified;
+        return this;
+    }
+
+    /**
+     * @param parsed  Parsed body setter
+     * @return        Returns this context
+     */
+    public ApiResponse setParsed(Object parsed)
+    {
+        this.parsed = parsed;
+        return this;
+    }
+
+    /**
+     * @param <T>  Parsed body type
+     * @return     Parsed body of cached request, read only
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getParsed()
+    {
+        return (T) this.parsed;
+    }
+
 }
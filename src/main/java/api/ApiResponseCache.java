@@ -0,0 +1,237 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Cache of GET response bodies for conditional requests
+ * Entry keeps body, ETag/Last-Modified validators, body hash and parsed object.
+ * LRU, bounded by approximate size of bodies and parsed objects.
+ * Implemented using the singleton pattern.
+ */
+final class ApiResponseCache {
+
+    private final static ApiResponseCache _instance = new ApiResponseCache();
+
+    // Access ordered, guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private volatile long maxBytes = 32 * 1024 * 1024L;
+
+    /*
+     * Stats
+     */
+    private final AtomicLong requests    = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong hashHits    = new AtomicLong();
+    private final AtomicLong misses      = new AtomicLong();
+    private final AtomicLong evictions   = new AtomicLong();
+
+    /*
+     * Cached response
+     * Parsed object is shared by all callers, it must not be modified
+     */
+    static final class Entry {
+        final String body;
+        final String etag;
+        final String lastModified;
+        final String hash;
+        final Object parsed;
+        final Type parsedType;
+        final long size;
+
+        Entry(String body, String etag, String lastModified, String hash, Object parsed, Type parsedType) {
+            this.body         = body;
+            this.etag         = etag;
+            this.lastModified = lastModified;
+            this.hash         = hash;
+            this.parsed       = parsed;
+            this.parsedType   = parsedType;
+            // chars are 2 bytes, parsed object is counted as big as body
+            this.size         = (long) body.length() * ((parsed == null) ? 2 : 4) + 256;
+        }
+    }
+
+
+    private ApiResponseCache() {
+        super();
+    }
+
+    static ApiResponseCache getInstance() {
+        return _instance;
+    }
+
+
+    /**
+     * @param maxBytes - max cache size, bytes. 0 disables cache
+     */
+    void configure(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        synchronized (this) {
+            this.evict();
+        }
+    }
+
+
+    /**
+     * Max body size of streamed entry, bytes
+     * Body is cached as string, it takes twice as much memory
+     *
+     * @return long
+     */
+    long getMaxEntryBytes() {
+        return this.maxBytes / 4;
+    }
+
+
+    /**
+     * Cache key: API method and sorted GET params
+     *
+     * @param request - GET request
+     * @return String
+     */
+    static String key(ApiRequest request) {
+        return request.apiMethod + "?" + new TreeMap<>(request.params).toString();
+    }
+
+
+    /**
+     * Body hash
+     *
+     * @param body    - response body
+     * @return String - hash
+     */
+    static String hash(String body) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(md.digest(body.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (Exception e) {
+            return body.length() + ":" + body.hashCode();
+        }
+    }
+
+
+    /**
+     * Cached entry of key
+     *
+     * @param key    - cache key
+     * @return Entry - entry or null
+     */
+    Entry get(String key) {
+        this.requests.incrementAndGet();
+        synchronized (this) {
+            return this.entries.get(key);
+        }
+    }
+
+
+    /**
+     * Store entry, evict least recently used entries over size limit
+     *
+     * @param key   - cache key
+     * @param entry - entry
+     */
+    void put(String key, Entry entry) {
+
+        if(entry.size > this.maxBytes / 2) {
+            this.remove(key);
+            return;
+        }
+
+        synchronized (this) {
+            Entry previous = this.entries.put(key, entry);
+            if(previous != null) {
+                this.bytes -= previous.size;
+            }
+            this.bytes += entry.size;
+            this.evict();
+        }
+    }
+
+
+    /**
+     * @param key - cache key
+     */
+    void remove(String key) {
+        synchronized (this) {
+            Entry previous = this.entries.remove(key);
+            if(previous != null) {
+                this.bytes -= previous.size;
+            }
+        }
+    }
+
+
+    /**
+     * Must be called holding this
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+        while (this.bytes > this.maxBytes && it.hasNext()) {
+            this.bytes -= it.next().getValue().size;
+            it.remove();
+            this.evictions.incrementAndGet();
+        }
+    }
+
+
+    void onNotModified() { this.notModified.incrementAndGet(); }
+
+    void onHashHit() { this.hashHits.incrementAndGet(); }
+
+    void onMiss() { this.misses.incrementAndGet(); }
+
+
+    /**
+     * @return ApiCacheStats
+     */
+    ApiCacheStats getStats() {
+
+        ApiCacheStats stats = new ApiCacheStats();
+
+        synchronized (this) {
+            stats.entries = this.entries.size();
+            stats.bytes   = this.bytes;
+        }
+
+        stats.maxBytes    = this.maxBytes;
+        stats.requests    = this.requests.get();
+        stats.notModified = this.notModified.get();
+        stats.hashHits    = this.hashHits.get();
+        stats.misses      = this.misses.get();
+        stats.evictions   = this.evictions.get();
+
+        long answered  = stats.notModified + stats.hashHits + stats.misses;
+        stats.hitRatio = (answered == 0) ? 0 : Math.round((stats.notModified + stats.hashHits) * 10000.0 / answered) / 10000.0;
+
+        return stats;
+    }
+
+}
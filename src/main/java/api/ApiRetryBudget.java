@@ -0,0 +1,93 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Global retry budget
+ * Every request deposits a part of token, every retry takes one token.
+ * So retries can't exceed given share of requests, and a stalled web core is not flooded with retries.
+ */
+class ApiRetryBudget {
+
+    private static final long TOKEN = 1000;
+
+    private final AtomicLong balance  = new AtomicLong();
+    private final AtomicLong retries  = new AtomicLong();
+    private final AtomicLong denied   = new AtomicLong();
+
+    private volatile long deposit  = 100;          // 10% of request
+    private volatile long capacity = 100 * TOKEN;  // max saved retries
+
+    ApiRetryBudget() {
+        this.balance.set(10 * TOKEN);
+    }
+
+
+    /**
+     * @param ratio    - retries per request, 0..1
+     * @param capacity - max saved retries
+     */
+    void configure(double ratio, int capacity) {
+        this.deposit  = Math.max(0, Math.round(Math.min(1.0, ratio) * TOKEN));
+        this.capacity = Math.max(1, capacity) * TOKEN;
+    }
+
+
+    /**
+     * Request was sent
+     */
+    void onRequest() {
+        long current;
+        do {
+            current = this.balance.get();
+            if(current >= this.capacity) {
+                return;
+            }
+        } while (!this.balance.compareAndSet(current, Math.min(this.capacity, current + this.deposit)));
+    }
+
+
+    /**
+     * Take token for retry
+     *
+     * @return false - budget is exhausted
+     */
+    boolean tryAcquire() {
+        long current;
+        do {
+            current = this.balance.get();
+            if(current < TOKEN) {
+                this.denied.incrementAndGet();
+                return false;
+            }
+        } while (!this.balance.compareAndSet(current, current - TOKEN));
+
+        this.retries.incrementAndGet();
+        return true;
+    }
+
+    long getRetries() { return this.retries.get(); }
+
+    long getDenied() { return this.denied.get(); }
+
+    long getAvailable() { return this.balance.get() / TOKEN; }
+
+}
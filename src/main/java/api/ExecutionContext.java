@@ -0,0 +1,236 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package api;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Immutable execution coordinates: schedule, task, node, worker, etc..
+ * Context is a chain of small layers, child layer is derived without copying parent (task -> node -> worker).
+ * Passed by reference to requests, responses, workers, protocols and logs instead of map copies.
+ * Modification methods of Map throw UnsupportedOperationException.
+ */
+public final class ExecutionContext extends AbstractMap<String, String> {
+
+    public static final ExecutionContext EMPTY = new ExecutionContext(null, new String[0], new String[0]);
+
+    // Longer chains are flattened, so lookup stays short
+    private static final int MAX_DEPTH = 8;
+
+    private static final Object NOT_FOUND = new Object();
+
+    private final ExecutionContext parent;
+    private final String[] keys;
+    private final String[] values;
+    private final int depth;
+
+    // Flattened entries, created on demand
+    private volatile Map<String, String> flat = null;
+
+    private ExecutionContext(ExecutionContext parent, String[] keys, String[] values) {
+        this.parent = parent;
+        this.keys   = keys;
+        this.values = values;
+        this.depth  = (parent == null) ? 0 : parent.depth + 1;
+    }
+
+
+    /**
+     * Context of map
+     * Map is copied once, context is returned as is
+     *
+     * @param map                 - coordinates
+     * @return ExecutionContext
+     */
+    public static ExecutionContext of(Map<String, String> map) {
+
+        if(map instanceof ExecutionContext) {
+            return (ExecutionContext) map;
+        }
+
+        if(map == null || map.isEmpty()) {
+            return EMPTY;
+        }
+
+        return EMPTY.with(map);
+    }
+
+
+    /**
+     * Derived context with one more value
+     *
+     * @param key                 - coordinate name
+     * @param value               - coordinate value
+     * @return ExecutionContext
+     */
+    public ExecutionContext with(String key, String value) {
+        return this.derive(new String[] {key}, new String[] {value});
+    }
+
+
+    /**
+     * Derived context with more values
+     *
+     * @param keysAndValues       - key1, value1, key2, value2, ..
+     * @return ExecutionContext
+     */
+    public ExecutionContext with(String... keysAndValues) {
+
+        if(keysAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("Context keys and values must come in pairs.");
+        }
+
+        String[] newKeys   = new String[keysAndValues.length / 2];
+        String[] newValues = new String[keysAndValues.length / 2];
+
+        for (int i = 0; i < newKeys.length; i++) {
+            newKeys[i]   = keysAndValues[i * 2];
+            newValues[i] = keysAndValues[i * 2 + 1];
+        }
+
+        return this.derive(newKeys, newValues);
+    }
+
+
+    /**
+     * Derived context with values of map, map values override values of this context
+     *
+     * @param map                 - coordinates
+     * @return ExecutionContext
+     */
+    public ExecutionContext with(Map<String, String> map) {
+
+        if(map == null || map.isEmpty()) {
+            return this;
+        }
+
+        if(this == EMPTY && map instanceof ExecutionContext) {
+            return (ExecutionContext) map;
+        }
+
+        String[] newKeys   = new String[map.size()];
+        String[] newValues = new String[map.size()];
+        int i = 0;
+
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            newKeys[i]   = entry.getKey();
+            newValues[i] = entry.getValue();
+            i++;
+        }
+
+        return this.derive(newKeys, newValues);
+    }
+
+
+    /**
+     * @param newKeys   - layer keys
+     * @param newValues - layer values
+     * @return ExecutionContext
+     */
+    private ExecutionContext derive(String[] newKeys, String[] newValues) {
+
+        if(newKeys.length == 0) {
+            return this;
+        }
+
+        if(this == EMPTY) {
+            return new ExecutionContext(null, newKeys, newValues);
+        }
+
+        if(this.depth + 1 >= MAX_DEPTH) {
+            Map<String, String> merged = new LinkedHashMap<>(this.flatten());
+            for (int i = 0; i < newKeys.length; i++) {
+                merged.put(newKeys[i], newValues[i]);
+            }
+            return EMPTY.with(merged);
+        }
+
+        return new ExecutionContext(this, newKeys, newValues);
+    }
+
+
+    /**
+     * Value or NOT_FOUND, nearest layer wins
+     */
+    private Object find(Object key) {
+
+        for (ExecutionContext current = this; current != null; current = current.parent) {
+            String[] currentKeys = current.keys;
+            for (int i = currentKeys.length - 1; i >= 0; i--) {
+                if(currentKeys[i] == key || (currentKeys[i] != null && currentKeys[i].equals(key))) {
+                    return current.values[i];
+                }
+            }
+        }
+
+        return NOT_FOUND;
+    }
+
+
+    /**
+     * All layers merged, parent values overridden by child values
+     */
+    private Map<String, String> flatten() {
+
+        Map<String, String> current = this.flat;
+
+        if(current == null) {
+            Map<String, String> merged = (this.parent == null) ? new LinkedHashMap<>() : new LinkedHashMap<>(this.parent.flatten());
+            for (int i = 0; i < this.keys.length; i++) {
+                merged.put(this.keys[i], this.values[i]);
+            }
+            current   = Collections.unmodifiableMap(merged);
+            this.flat = current;
+        }
+
+        return current;
+    }
+
+
+    @Override
+    public String get(Object key) {
+        Object found = this.find(key);
+        return (found == NOT_FOUND) ? null : (String) found;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.find(key) != NOT_FOUND;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this == EMPTY || this.flatten().isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return this.flatten().size();
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return this.flatten().entrySet();
+    }
+
+}
@@ -48,6 +48,11 @@ public class CronMailer extends it.sauronsoftware.cron4j.Task  {
     @Override
     public void execute(TaskExecutionContext context) throws RuntimeException
     {
+        // Sharded daemons send event from one instance
+        if(!ShardCoordinator.getInstance().owns("event:" + this.coordinates.get("eventName"))) {
+            return;
+        }
+
         Mailer currentMail = new Mailer(this.coordinates, this.settings);
         currentMail.run();
     }
@@ -30,16 +30,19 @@ public class CronTask extends it.sauronsoftware.cron4j.Task  {
 
     private Map<String, String> settings    = new HashMap<>();
     private Map<String, String> coordinates = new HashMap<>();
+    private WorkerExecutor workerExecutor;
 
     /**
      * Constructor
      *
-     * @param coordinates  - schedule, task, node, etc..
-     * @param settings     - app settings
+     * @param coordinates    - schedule, task, node, etc..
+     * @param settings       - app settings
+     * @param workerExecutor - worker threads, shared by tasks
      */
-    CronTask(Map<String, String> settings, Map<String, String> coordinates) {
-        this.settings    = settings;
-        this.coordinates = coordinates;
+    CronTask(Map<String, String> settings, Map<String, String> coordinates, WorkerExecutor workerExecutor) {
+        this.settings       = settings;
+        this.coordinates    = coordinates;
+        this.workerExecutor = workerExecutor;
     }
 
     /**
@@ -48,7 +51,51 @@ public class CronTask extends it.sauronsoftware.cron4j.Task  {
     @Override
     public void execute(TaskExecutionContext context) throws RuntimeException
     {
-        Task currentTask = new Task(this.coordinates, this.settings);
-        currentTask.run();
+        TaskGovernor governor = TaskGovernor.getInstance();
+
+        String taskName     = this.coordinates.get("taskName");
+        boolean interactive = Task.priorityOf(this.coordinates) == WorkerExecutor.Priority.INTERACTIVE;
+        String key      = (this.coordinates.get("runOnNode") != null) ? taskName + "@" + this.coordinates.get("runOnNode") : taskName;
+
+        // Sharded daemons split nodes of node tasks, other tasks run on one instance
+        if(!interactive && !"node_task".equals(this.coordinates.get("taskType")) && !ShardCoordinator.getInstance().owns("task:" + taskName)) {
+            return;
+        }
+
+        TaskGovernor.Outcome outcome;
+
+        try {
+            outcome = governor.enter(key, governor.policyOf(taskName, this.coordinates.get("overlapPolicy")), interactive);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if(outcome != TaskGovernor.Outcome.ADMITTED) {
+            new Task(this.coordinates, this.settings, this.workerExecutor).logOverlap(outcome);
+            return;
+        }
+
+        boolean released = false;
+
+        try {
+            // Coalesced triggers are run once more by the same thread
+            while (!released) {
+                Task currentTask = new Task(this.coordinates, this.settings, this.workerExecutor);
+                currentTask.run();
+                // Cancelled run drops pending rerun
+                if(currentTask.isCancelled()) {
+                    break;
+                }
+                released = !governor.exit(key);
+            }
+        }
+        finally {
+            // Slot is freed after cancel, exception or error too
+            if(!released) {
+                governor.abort(key);
+            }
+        }
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import abstractions.DTOShardMember;
+import api.ApiGsonSingleton;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Membership in shared directory
+ * Member record is <instance id>.member json, directory is locked by members.lock while records are written or read.
+ * Lease time is taken from heartbeat time in record, clocks of hosts must be synchronized.
+ */
+final class FileShardMembership implements ShardMembership {
+
+    private static final String SUFFIX = ".member";
+
+    private final File directory;
+    private final Gson gson = ApiGsonSingleton.getInstance();
+
+
+    /**
+     * @param location - shared directory path
+     */
+    public FileShardMembership(String location) {
+        this.directory = new File(location);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void heartbeat(DTOShardMember self) throws IOException {
+
+        Files.createDirectories(this.directory.toPath());
+
+        File memberFile = this.memberFile(self.instanceId);
+        File tmpFile    = new File(memberFile.getPath() + ".tmp");
+
+        try (RandomAccessFile lockFile = this.lockFile()) {
+            FileLock lock = lockFile.getChannel().lock();
+            try {
+                try (Writer out = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+                    this.gson.toJson(self, out);
+                }
+                Files.move(tmpFile.toPath(), memberFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                lock.release();
+            }
+        }
+    }
+
+
+    /**
+     * Records with lease expired long ago are removed
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<DTOShardMember> members(long leaseTtl) throws IOException {
+
+        List<DTOShardMember> members = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        Files.createDirectories(this.directory.toPath());
+
+        try (RandomAccessFile lockFile = this.lockFile()) {
+            FileLock lock = lockFile.getChannel().lock();
+            try {
+                File[] files = this.directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+
+                if(files == null) {
+                    throw new IOException("Can't list shard directory " + this.directory.getPath() + ".");
+                }
+
+                for (File file : files) {
+
+                    DTOShardMember member;
+
+                    try (Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                        member = this.gson.fromJson(in, DTOShardMember.class);
+                    }
+                    catch (JsonSyntaxException | IOException e) {
+                        // Removed by other member or damaged
+                        continue;
+                    }
+
+                    if(member == null || member.instanceId == null) {
+                        continue;
+                    }
+
+                    if(now - member.heartbeatAt <= leaseTtl) {
+                        members.add(member);
+                    }
+                    else if(now - member.heartbeatAt > leaseTtl * 10) {
+                        Files.deleteIfExists(file.toPath());
+                    }
+                }
+            }
+            finally {
+                lock.release();
+            }
+        }
+
+        return members;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void leave(String instanceId) throws IOException {
+        if(!this.directory.isDirectory()) {
+            return;
+        }
+        try (RandomAccessFile lockFile = this.lockFile()) {
+            FileLock lock = lockFile.getChannel().lock();
+            try {
+                Files.deleteIfExists(this.memberFile(instanceId).toPath());
+            }
+            finally {
+                lock.release();
+            }
+        }
+    }
+
+
+    /**
+     * Lock file of shard directory, locked exclusively while records are written or read
+     */
+    private RandomAccessFile lockFile() throws IOException {
+        return new RandomAccessFile(new File(this.directory, "members.lock"), "rw");
+    }
+
+
+    private File memberFile(String instanceId) {
+        return new File(this.directory, instanceId.replaceAll("[^A-Za-z0-9._-]", "_") + SUFFIX);
+    }
+
+
+    @Override
+    public String toString() {
+        return "file:" + this.directory.getPath();
+    }
+
+}
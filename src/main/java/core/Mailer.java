@@ -21,6 +21,8 @@ import api.ApiRequest;
 import api.ApiResponse;
 import api.ApiCaller;
 import api.ApiRequestMethods;
+import api.ApiGsonSingleton;
+import api.ExecutionContext;
 import abstractions.AbstractCoreUnit;
 
 import java.util.*;
@@ -38,7 +40,7 @@ import com.google.gson.reflect.TypeToken;
  */
 public class Mailer extends AbstractCoreUnit implements Runnable {
 
-    private Gson gson = new Gson();
+    private Gson gson = ApiGsonSingleton.getInstance();
 
     /**
      * Constructor
@@ -48,8 +50,8 @@ public class Mailer extends AbstractCoreUnit implements Runnable {
      */
     Mailer(Map<String, String> coordinates, Map<String, String> settings)
     {
-        this.coordinates.putAll(coordinates);
-        this.settings.putAll(settings);
+        this.coordinates = ExecutionContext.of(coordinates);
+        this.settings    = ExecutionContext.of(settings);
     }
 
     /**
@@ -0,0 +1,166 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import abstractions.DTOTaskSpec;
+import api.ApiGsonSingleton;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Last good settings, task list and mailer events, as received from API
+ * Stored in runtime/snapshot.json, used at boot to arm cron before API answers.
+ * Revision is raised on every saved change, snapshot of other format version is ignored.
+ */
+final class ScheduleSnapshot {
+
+    private static final int VERSION = 1;
+
+    int version                      = VERSION;
+    long revision                    = 0;
+    long savedAt                     = 0;
+    String checksum                  = "";
+    Map<String, String> settings     = new HashMap<>();
+    List<DTOTaskSpec> tasks          = new ArrayList<>();
+    List<Map<String, String>> events = new ArrayList<>();
+
+
+    /**
+     * Load snapshot
+     *
+     * @param maxAge             - max snapshot age, seconds, 0 - any
+     * @return ScheduleSnapshot  - or null, if file is missing, too old, damaged or of other version
+     * @throws IOException if file can't be read
+     */
+    static ScheduleSnapshot load(long maxAge) throws IOException {
+
+        File snapshotFile = ScheduleSnapshot.getSnapshotFile();
+
+        if(!snapshotFile.isFile()) {
+            return null;
+        }
+
+        Gson gson = ApiGsonSingleton.getInstance();
+        ScheduleSnapshot loaded;
+
+        try (Reader in = Files.newBufferedReader(snapshotFile.toPath(), StandardCharsets.UTF_8)) {
+            loaded = gson.fromJson(in, ScheduleSnapshot.class);
+        }
+        catch (JsonSyntaxException e) {
+            return null;
+        }
+
+        if(loaded == null || loaded.version != VERSION || loaded.settings == null || loaded.tasks == null || loaded.events == null) {
+            return null;
+        }
+
+        if(!loaded.checksum.equals(ScheduleSnapshot.checksum(gson, loaded.settings, loaded.tasks, loaded.events))) {
+            return null;
+        }
+
+        if(maxAge > 0 && System.currentTimeMillis() - loaded.savedAt > maxAge * 1000L) {
+            return null;
+        }
+
+        return loaded;
+    }
+
+
+    /**
+     * Save new revision, if content differs from previous snapshot
+     * File is replaced atomically
+     *
+     * @param previous           - current snapshot or null
+     * @param settings           - settings from API
+     * @param tasks              - task list from API
+     * @param events             - mailer events from API
+     * @return ScheduleSnapshot  - saved snapshot, or previous one if nothing changed
+     * @throws IOException if file can't be written
+     */
+    static ScheduleSnapshot save(ScheduleSnapshot previous, Map<String, String> settings, List<DTOTaskSpec> tasks,
+                                 List<Map<String, String>> events) throws IOException {
+
+        Gson gson       = ApiGsonSingleton.getInstance();
+        String checksum = ScheduleSnapshot.checksum(gson, settings, tasks, events);
+
+        if(previous != null && previous.checksum.equals(checksum)) {
+            return previous;
+        }
+
+        ScheduleSnapshot snapshot = new ScheduleSnapshot();
+        snapshot.revision = (previous == null) ? 1 : previous.revision + 1;
+        snapshot.savedAt  = System.currentTimeMillis();
+        snapshot.checksum = checksum;
+        snapshot.settings = new HashMap<>(settings);
+        snapshot.tasks    = new ArrayList<>(tasks);
+        snapshot.events   = new ArrayList<>(events);
+
+        File snapshotFile = ScheduleSnapshot.getSnapshotFile();
+        File tmpFile      = new File(snapshotFile.getPath() + ".tmp");
+
+        Files.createDirectories(snapshotFile.getParentFile().toPath());
+
+        try (Writer out = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            gson.toJson(snapshot, out);
+        }
+
+        Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return snapshot;
+    }
+
+
+    /**
+     * Content checksum, order of settings keys does not matter
+     */
+    private static String checksum(Gson gson, Map<String, String> settings, List<DTOTaskSpec> tasks, List<Map<String, String>> events) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(gson.toJson(new TreeMap<>(settings)).getBytes(StandardCharsets.UTF_8));
+            md.update(gson.toJson(tasks).getBytes(StandardCharsets.UTF_8));
+            md.update(gson.toJson(events).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(md.digest());
+        }
+        catch (Exception e) {
+            return String.valueOf(gson.toJson(settings).hashCode() * 31 + gson.toJson(tasks).hashCode() * 17 + gson.toJson(events).hashCode());
+        }
+    }
+
+
+    private static File getSnapshotFile() {
+        File jarPath = new File(ScheduleSnapshot.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+        return new File(jarPath.getParentFile().getParentFile().getAbsolutePath() + File.separator + "runtime" + File.separator + "snapshot.json");
+    }
+
+}
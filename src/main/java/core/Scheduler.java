@@ -18,19 +18,40 @@
 package core;
 
 import abstractions.AbstractCoreUnit;
+import abstractions.DTOGovernorStats;
+import abstractions.DTOOutboxStats;
+import abstractions.DTOSettings;
+import abstractions.DTOShardMember;
+import abstractions.DTOShardStats;
 import abstractions.DTOShellResponse;
+import abstractions.DTOTaskProgress;
+import abstractions.DTOTaskSpec;
+import abstractions.DTOWorkerPoolStats;
+import abstractions.NodeHashIndex;
+import abstractions.ResultOutbox;
+import api.ApiBreakerStats;
+import api.ApiCacheStats;
 import api.ApiCaller;
+import api.ApiEndpointStats;
+import api.ApiGsonSingleton;
+import api.ApiLogShipper;
+import api.ApiLogShipperStats;
+import api.ApiPoolStats;
 import api.ApiRequest;
 import api.ApiRequestMethods;
 import api.ApiResponse;
+import api.ApiRetryStats;
+import api.ExecutionContext;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import it.sauronsoftware.cron4j.SchedulingPattern;
 import java.lang.reflect.Type;
 import java.util.*;
 import org.springframework.stereotype.Component;
 import sshd.shell.springboot.autoconfiguration.SshdShellCommand;
 import org.springframework.beans.factory.annotation.Value;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 
 /**
@@ -41,8 +62,96 @@ import javax.annotation.PostConstruct;
 @SshdShellCommand(value = "cbackup", description = "Type 'cbackup' for supported subcommands")
 public class Scheduler extends AbstractCoreUnit {
 
-    private List<String> scheduleIds = new ArrayList<>();
-    private Gson gson = new Gson();
+    // Scheduled tasks and mailer events: 'task:<scheduleId>' / 'event:<scheduleId>' => entry, guarded by itself
+    private final Map<String, ScheduleEntry> schedules = new LinkedHashMap<>();
+
+    // Periodic schedule check job, cron4j id
+    private String reloadScheduleId = null;
+
+    // Worker threads, shared by all tasks. Created on start, shut down on stop
+    private WorkerExecutor workerExecutor = null;
+
+    // Settings as received from API, before local settings are added
+    private Map<String, String> receivedSettings = new HashMap<>();
+
+    // Last saved local snapshot, guarded by snapshotLock. Pending - scheduler was armed from snapshot, API is not asked yet
+    private final Object snapshotLock       = new Object();
+    private ScheduleSnapshot snapshot       = null;
+    private volatile boolean snapshotPending = false;
+    private Gson gson = ApiGsonSingleton.getInstance();
+
+    // Task list json: [{task fields}, ..]
+    private static final Type TASKS_TYPE  = new TypeToken<ArrayList<DTOTaskSpec>>(){}.getType();
+    private static final Type EVENTS_TYPE = new TypeToken<ArrayList<HashMap<String, String>>>(){}.getType();
+
+    /*
+     * Scheduled cron4j task with cron string and fingerprint of task fields
+     */
+    private static final class ScheduleEntry {
+        final String name;
+        final String action;
+        final String fingerprint;
+        String cron;
+        final it.sauronsoftware.cron4j.Task task;
+        String cronId = null;
+
+        ScheduleEntry(String name, String action, String cron, Map<String, String> fields, it.sauronsoftware.cron4j.Task task) {
+            Map<String, String> sorted = new TreeMap<>(fields);
+            sorted.remove("scheduleCron");
+            this.name        = name;
+            this.action      = action;
+            this.cron        = cron;
+            this.fingerprint = sorted.toString();
+            this.task        = task;
+        }
+    }
+
+    /*
+     * Schedule changes
+     */
+    private static final class ScheduleDiff {
+        int added     = 0;
+        int changed   = 0;
+        int removed   = 0;
+        int unchanged = 0;
+
+        boolean isEmpty() {
+            return this.added + this.changed + this.removed == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Added: " + this.added + ", changed: " + this.changed + ", removed: " + this.removed + ", unchanged: " + this.unchanged + ".";
+        }
+    }
+
+    /*
+     * Startup phase durations
+     */
+    private static final class BootTimer {
+        private final long started = System.nanoTime();
+        private long last          = this.started;
+        private final Map<String, Long> phases = new LinkedHashMap<>();
+
+        void mark(String phase) {
+            long now = System.nanoTime();
+            this.phases.merge(phase, (now - this.last) / 1000000L, Long::sum);
+            this.last = now;
+        }
+
+        long total() {
+            return (System.nanoTime() - this.started) / 1000000L;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            for (Map.Entry<String, Long> phase : this.phases.entrySet()) {
+                result.append((result.length() == 0) ? "" : ", ").append(phase.getKey()).append(" ").append(phase.getValue()).append(" ms");
+            }
+            return result.toString();
+        }
+    }
 
     /* Bind cbackup properties from application.properties */
     @Value("${cbackup.scheme}")
@@ -52,13 +161,157 @@ public class Scheduler extends AbstractCoreUnit {
     @Value("${cbackup.token}")
     private String token;
 
+    /* API connection pool, timeouts in milliseconds */
+    @Value("${cbackup.api.max-connections:50}")
+    private int apiMaxConnections;
+    @Value("${cbackup.api.max-connections-per-route:20}")
+    private int apiMaxConnectionsPerRoute;
+    @Value("${cbackup.api.connect-timeout:10000}")
+    private int apiConnectTimeout;
+    @Value("${cbackup.api.read-timeout:60000}")
+    private int apiReadTimeout;
+    @Value("${cbackup.api.pool-timeout:30000}")
+    private int apiPoolTimeout;
+    @Value("${cbackup.api.keep-alive:30000}")
+    private int apiKeepAlive;
+
+    /* Read timeout of system and console task requests, web core replies when work is done. 0 - no timeout */
+    @Value("${cbackup.api.action-timeout:0}")
+    private int apiActionTimeout;
+
+    /* API circuit breakers and GET retries */
+    @Value("${cbackup.api.breaker.failure-threshold:5}")
+    private int apiBreakerFailureThreshold;
+    @Value("${cbackup.api.breaker.open-duration:30000}")
+    private long apiBreakerOpenDuration;
+    @Value("${cbackup.api.retry.max-retries:2}")
+    private int apiMaxRetries;
+    @Value("${cbackup.api.retry.base-delay:200}")
+    private long apiRetryBaseDelay;
+    @Value("${cbackup.api.retry.max-delay:5000}")
+    private long apiRetryMaxDelay;
+    @Value("${cbackup.api.retry.budget-ratio:0.1}")
+    private double apiRetryBudgetRatio;
+
+    /* Cache of configuration and inventory responses, revalidated with conditional GET */
+    @Value("${cbackup.api.cache.max-bytes:33554432}")
+    private long apiCacheMaxBytes;
+
+    /* Asynchronous API log shipping */
+    @Value("${cbackup.log.queue-capacity:10000}")
+    private int logQueueCapacity;
+    @Value("${cbackup.log.batch-size:100}")
+    private int logBatchSize;
+    @Value("${cbackup.log.flush-interval:1000}")
+    private int logFlushInterval;
+    @Value("${cbackup.log.spill-to-file:true}")
+    private boolean logSpillToFile;
+
+    /* Worker result batch upload */
+    @Value("${cbackup.result.batch-size:50}")
+    private int resultBatchSize;
+    @Value("${cbackup.result.batch-bytes:4194304}")
+    private int resultBatchBytes;
+    @Value("${cbackup.result.gzip:true}")
+    private boolean resultBatchGzip;
+
+    /* Node credentials prefetch */
+    @Value("${cbackup.credentials.page-size:100}")
+    private int credentialsPageSize;
+
+    /* Worker job plans cache, 0 - plans are cached for one task run */
+    @Value("${cbackup.jobs.plan-ttl:0}")
+    private long jobPlanTtl;
+
+    /* Local result hash index, entry time to live. Without bulk hashes endpoint only own uploads refresh entries */
+    @Value("${cbackup.hashes.ttl:600000}")
+    private long hashIndexTtl;
+    private boolean hashIndexLoaded = false;
+
+    /* Outbox of results, which could not be sent to API */
+    @Value("${cbackup.outbox.segment-size:16777216}")
+    private int outboxSegmentSize;
+    @Value("${cbackup.outbox.replay-interval:5000}")
+    private long outboxReplayInterval;
+
+    /* Task runs: overlap policy (skip, queue, coalesce), concurrency caps, 0 - no limit */
+    @Value("${cbackup.tasks.overlap-policy:skip}")
+    private String taskOverlapPolicy;
+    @Value("${cbackup.tasks.overlap-policies:}")
+    private String taskOverlapPolicies;
+    @Value("${cbackup.tasks.max-queued-runs:1}")
+    private int taskMaxQueuedRuns;
+    @Value("${cbackup.tasks.max-concurrent:0}")
+    private int taskMaxConcurrent;
+    @Value("${cbackup.tasks.max-worker-threads:0}")
+    private int taskMaxWorkerThreads;
+
+    /* Node task spread window, seconds, 0 - all nodes at once. Per task: 'taskName=seconds,..' */
+    @Value("${cbackup.tasks.spread-window:0}")
+    private long taskSpreadWindow;
+    @Value("${cbackup.tasks.spread-windows:}")
+    private String taskSpreadWindows;
+
+    /* Shared worker pool: threads (0 - threadCount setting from API), max queued workers, ms of waiting to raise worker priority */
+    @Value("${cbackup.workers.threads:0}")
+    private int workerPoolThreads;
+    @Value("${cbackup.workers.queue-capacity:100000}")
+    private int workerPoolQueueCapacity;
+    @Value("${cbackup.workers.priority-aging:30000}")
+    private long workerPoolPriorityAging;
+
+    /* Worker thread mode: platform or virtual (Java 21+), max concurrent devices in virtual mode */
+    @Value("${cbackup.workers.mode:platform}")
+    private String workerPoolMode;
+    @Value("${cbackup.workers.max-devices:1000}")
+    private int workerPoolMaxDevices;
+
+    /* Periodic check of task and mailer schedules, conditional GET, empty - disabled */
+    @Value("${cbackup.schedule.reload-cron:* * * * *}")
+    private String scheduleReloadCron;
+
+    /* Node task sharding between daemons: backend (empty - off, file, or membership class name), location, instance id (empty - host name and process id), lease ms */
+    @Value("${cbackup.shard.backend:}")
+    private String shardBackend;
+    @Value("${cbackup.shard.location:}")
+    private String shardLocation;
+    @Value("${cbackup.shard.instance-id:}")
+    private String shardInstanceId;
+    @Value("${cbackup.shard.lease-ttl:30000}")
+    private long shardLeaseTtl;
+    @Value("${cbackup.shard.virtual-nodes:128}")
+    private int shardVirtualNodes;
+
+    /* Boot from local snapshot of settings, tasks and events, max snapshot age in seconds, 0 - any */
+    @Value("${cbackup.snapshot.enabled:true}")
+    private boolean snapshotEnabled;
+    @Value("${cbackup.snapshot.max-age:604800}")
+    private long snapshotMaxAge;
+
 
     /**
      * Init and start after construct
      */
     @PostConstruct
     private void PostConstruct() {
-        this.start();
+        this.start(true);
+    }
+
+
+    /**
+     * Release shared resources before destroy
+     */
+    @PreDestroy
+    private void PreDestroy() {
+        this.clearAndStopScheduler();
+        try {
+            NodeHashIndex.getInstance().save();
+        } catch (Exception e) {
+            this.logSystemException("WARNING", "SCHEDULER STOP", "Can't save local hash index.", e);
+        }
+        ResultOutbox.getInstance().close(5000);
+        ApiLogShipper.shutdown(5000);
+        ApiCaller.shutdown();
     }
 
 
@@ -214,6 +467,35 @@ public class Scheduler extends AbstractCoreUnit {
     }
 
 
+    /**
+     * Shell command 'cbackup cancel <TASK NAME|RUN ID>'
+     *
+     * @param arg String - command argument
+     * @return String    - command result
+     */
+    @SshdShellCommand(value = "cancel", description = "Cancel running task by name or run id. Usage: 'cbackup cancel <TASK NAME|RUN ID> [-json]'")
+    public String shellCommandCancel(String arg) {
+
+        Boolean returnJson = false;
+        DTOShellResponse response;
+
+        if( arg != null && arg.contains("-json")) {
+            returnJson = true;
+            arg = arg.replace("-json", "");
+        }
+
+        if(arg == null || arg.trim().length() == 0) {
+            response = new DTOShellResponse();
+            response.message = "Please enter task name or run id. Example: 'cbackup cancel <TASK NAME|RUN ID> [-json]'";
+        }
+        else {
+            response = this.cancelTask(arg.trim());
+        }
+
+        return (returnJson)? this.gson.toJson(response) : response.message;
+    }
+
+
     /**
      * Shell command 'cbackup status'
      *
@@ -243,6 +525,133 @@ public class Scheduler extends AbstractCoreUnit {
     }
 
 
+    /**
+     * Shell command 'cbackup reload'
+     *
+     * @param arg String - command argument
+     * @return String    - command result
+     */
+    @SshdShellCommand(value = "reload", description = "Reload changed task and mailer schedules. Usage: 'cbackup reload [-json]'")
+    public String shellCommandReload(String arg) {
+
+        Boolean returnJson = false;
+        DTOShellResponse response;
+
+        if( arg != null && arg.contains("-json")) {
+            returnJson = true;
+            arg = arg.replace("-json", "");
+        }
+
+        if(arg != null && arg.trim().length() > 0) {
+            response = new DTOShellResponse();
+            response.message = "Command 'cbackup reload' has no valid arguments. Use command 'cbackup reload [-json]' instead.";
+        }
+        else {
+            response  = this.reload();
+        }
+
+        return (returnJson)? this.gson.toJson(response) : response.message;
+    }
+
+
+    /**
+     * Shell command 'cbackup apistats'
+     *
+     * @param arg String - command argument
+     * @return String    - command result
+     */
+    @SshdShellCommand(value = "apistats", description = "Get API client stats per method. Usage: 'cbackup apistats [-json]'")
+    public String shellCommandApistats(String arg) {
+
+        Boolean returnJson = false;
+        DTOShellResponse response;
+
+        if( arg != null && arg.contains("-json")) {
+            returnJson = true;
+            arg = arg.replace("-json", "");
+        }
+
+        if(arg != null && arg.trim().length() > 0) {
+            response = new DTOShellResponse();
+            response.message = "Command 'cbackup apistats' has no valid arguments. Use command 'cbackup apistats [-json]' instead.";
+        }
+        else {
+            response  = this.apiStats();
+        }
+
+        return (returnJson)? this.gson.toJson(response) : response.message;
+    }
+
+
+    /**
+     * Shell command 'cbackup tasks'
+     *
+     * @param arg String - command argument
+     * @return String    - command result
+     */
+    @SshdShellCommand(value = "tasks", description = "Show progress of running and last finished task runs. Usage: 'cbackup tasks [-json]'")
+    public String shellCommandTasks(String arg) {
+
+        Boolean returnJson = false;
+        DTOShellResponse response;
+
+        if( arg != null && arg.contains("-json")) {
+            returnJson = true;
+            arg = arg.replace("-json", "");
+        }
+
+        if(arg != null && arg.trim().length() > 0) {
+            response = new DTOShellResponse();
+            response.message = "Command 'cbackup tasks' has no valid arguments. Use command 'cbackup tasks [-json]' instead.";
+        }
+        else {
+            response  = this.tasks();
+        }
+
+        return (returnJson)? this.gson.toJson(response) : response.message;
+    }
+
+
+    /**
+     * Shell command 'cbackup top'
+     *
+     * @param arg String - command argument
+     * @return String    - command result
+     */
+    @SshdShellCommand(value = "top", description = "Show running tasks by current throughput. Usage: 'cbackup top [SECONDS] [-json]'")
+    public String shellCommandTop(String arg) {
+
+        Boolean returnJson = false;
+        DTOShellResponse response;
+        int interval       = 2;
+
+        if( arg != null && arg.contains("-json")) {
+            returnJson = true;
+            arg = arg.replace("-json", "");
+        }
+
+        if(arg != null && arg.trim().length() > 0) {
+            try {
+                interval = Integer.parseInt(arg.trim());
+            }
+            catch (NumberFormatException e) {
+                interval = 0;
+            }
+        }
+
+        if(interval < 1 || interval > 60) {
+            response = new DTOShellResponse();
+            response.message = "Command 'cbackup top' has no valid arguments. Use command 'cbackup top [SECONDS] [-json]' instead, SECONDS 1-60.";
+        }
+        else {
+            response  = this.top(interval);
+        }
+
+        // Frame is drawn from top left corner of cleared screen
+        return (returnJson)? this.gson.toJson(response) : "\033[H\033[2J" + response.message;
+    }
+
+
     /**
      * Shell command 'cbackup version'
      *
@@ -279,8 +688,21 @@ public class Scheduler extends AbstractCoreUnit {
      * @return DTOShellResponse
      */
     private DTOShellResponse start() {
+        return this.start(false);
+    }
+
+
+    /**
+     * Start scheduler
+     * At boot schedules are armed from local snapshot, if there is one, and refreshed from API in background
+     *
+     * @param fromSnapshot        - use local snapshot
+     * @return DTOShellResponse
+     */
+    private DTOShellResponse start(boolean fromSnapshot) {
 
         DTOShellResponse response = new DTOShellResponse();
+        BootTimer timer           = new BootTimer();
 
         try {
 
@@ -292,14 +714,43 @@ public class Scheduler extends AbstractCoreUnit {
                 return response;
             }
 
-            /* Get settings from API */
-            this.init();
+            /* Last good settings, tasks and events */
+            ScheduleSnapshot bootSnapshot = null;
+
+            if (fromSnapshot && this.snapshotEnabled) {
+                try {
+                    bootSnapshot = ScheduleSnapshot.load(this.snapshotMaxAge);
+                }
+                catch (Exception e) {
+                    this.logSystemException("WARNING", "SCHEDULER START", "Can't load local snapshot. Settings and schedules will be requested from API.", e);
+                }
+                timer.mark("snapshot");
+            }
+
+            /* Get settings from API or snapshot */
+            this.init(timer, (bootSnapshot != null) ? bootSnapshot.settings : null);
 
-            /* Create task schedules */
-            this.createTaskSchedule();
+            /* Create task and mail schedules */
+            List<DTOTaskSpec> tasks          = (bootSnapshot != null) ? bootSnapshot.tasks : this.requestTasks();
+            timer.mark("tasks");
+            List<Map<String, String>> events = (bootSnapshot != null) ? bootSnapshot.events : this.requestEvents();
+            timer.mark("events");
 
-            /* Create mail schedules */
-            this.createMailSchedule();
+            Map<String, ScheduleEntry> plan = new LinkedHashMap<>();
+            this.createTaskSchedule(plan, tasks);
+            this.createMailSchedule(plan, events);
+            this.applySchedule(plan);
+            timer.mark("schedule");
+
+            /* Periodic schedule check */
+            if (this.scheduleReloadCron != null && this.scheduleReloadCron.trim().length() > 0) {
+                try {
+                    this.reloadScheduleId = CronSingleton.getInstance().scheduleJob(this.scheduleReloadCron.trim(), (Runnable) this::reloadQuietly);
+                }
+                catch (Exception e) {
+                    this.logSystemMessage("WARNING", "SCHEDULER START", "Can't schedule periodic schedule check: malformed cron string " + this.scheduleReloadCron + ".");
+                }
+            }
 
             /* Start scheduler */
             try {
@@ -312,6 +763,31 @@ public class Scheduler extends AbstractCoreUnit {
                 response.exception = e.getMessage();
                 return response;
             }
+            timer.mark("cron");
+
+            String source;
+
+            if (bootSnapshot != null) {
+                synchronized (this.snapshotLock) {
+                    this.snapshot = bootSnapshot;
+                }
+                this.snapshotPending = true;
+                source = "snapshot revision " + bootSnapshot.revision + " of " + new Date(bootSnapshot.savedAt);
+
+                // Spring startup is not held by API
+                Thread refresh = new Thread(this::refreshSnapshotQuietly, "cbackup-snapshot-refresh");
+                refresh.setDaemon(true);
+                refresh.start();
+            }
+            else {
+                this.snapshotPending = false;
+                this.saveSnapshot(tasks, events);
+                timer.mark("snapshot save");
+                source = "API";
+            }
+
+            this.logSystemMessage("INFO", "SCHEDULER START", "Scheduler started from " + source + " in " + timer.total() + " ms: " + timer + ".");
+
             response.message = "Scheduler started";
             response.success = true;
             response.object  = true;
@@ -418,7 +894,7 @@ public class Scheduler extends AbstractCoreUnit {
     private DTOShellResponse runTaskOnNode(String nodeId, String taskName) {
 
         DTOShellResponse response = new DTOShellResponse();
-        ArrayList<Map<String, String>> task;
+        List<DTOTaskSpec> task;
 
         try {
 
@@ -462,10 +938,9 @@ public class Scheduler extends AbstractCoreUnit {
 
             String taskJson = taskBackupResponse.response;
 
-            Type tasksType = new TypeToken<ArrayList<HashMap<String, String>>>(){}.getType();
 
             try {
-                task = this.gson.fromJson(taskJson, tasksType);
+                task = this.gson.fromJson(taskJson, TASKS_TYPE);
             }
             catch(Exception e) {
                 this.logSystemException("ERROR", "SCHEDULER RUN TASK", "Can't parse task list from json.", e);
@@ -484,12 +959,12 @@ public class Scheduler extends AbstractCoreUnit {
             /*
              * Task data validation
              */
-            Map<String, String> currentTask = task.get(0);
+            DTOTaskSpec currentTask = task.get(0);
 
-            String curTaskName = currentTask.get("taskName");
-            String curTaskType = currentTask.get("taskType");
-            String curPut      = currentTask.get("put");
-            String curTable    = currentTask.get("table");
+            String curTaskName = currentTask.getTaskName();
+            String curTaskType = currentTask.getTaskType();
+            String curPut      = currentTask.getPut();
+            String curTable    = currentTask.getTable();
 
             if(curTaskName == null || curTaskName.length() == 0) {
                 this.logSystemMessage("ERROR", "SCHEDULER RUN TASK", "Can't add single node task. Task name is empty.");
@@ -512,12 +987,11 @@ public class Scheduler extends AbstractCoreUnit {
                 return response;
             }
 
-            Map<String, String> currentCoordinates = new HashMap<>();
-            currentCoordinates.put("runOnNode", nodeId);
-            currentCoordinates.putAll(currentTask);
-            currentCoordinates.putAll(this.coordinates);
+            Map<String, String> currentCoordinates = ExecutionContext.EMPTY.with("runOnNode", nodeId, "priority", "interactive")
+                    .with(currentTask.asMap())
+                    .with(this.coordinates);
 
-            CronTask taskObject = new CronTask(this.settings, currentCoordinates);
+            CronTask taskObject = new CronTask(this.settings, currentCoordinates, this.workerExecutor);
 
             try {
                 CronSingleton.getInstance().getScheduler().launch(taskObject);
@@ -554,7 +1028,7 @@ public class Scheduler extends AbstractCoreUnit {
     private DTOShellResponse runTask(String taskName) {
 
         DTOShellResponse response = new DTOShellResponse();
-        ArrayList<Map<String, String>> task;
+        List<DTOTaskSpec> task;
 
         try {
 
@@ -598,10 +1072,9 @@ public class Scheduler extends AbstractCoreUnit {
 
             String taskJson = taskResponse.response;
 
-            Type tasksType = new TypeToken<ArrayList<HashMap<String, String>>>(){}.getType();
 
             try {
-                task = this.gson.fromJson(taskJson, tasksType);
+                task = this.gson.fromJson(taskJson, TASKS_TYPE);
             }
             catch(Exception e) {
                 this.logSystemException("ERROR", "SCHEDULER RUN TASK", "Can't parse task list from json.", e);
@@ -618,12 +1091,12 @@ public class Scheduler extends AbstractCoreUnit {
             }
 
             // TODO: rework. we don't need loop here
-            for(Map<String, String> currentTask : task) {
+            for(DTOTaskSpec currentTask : task) {
 
-                String curTaskName = currentTask.get("taskName");
-                String curTaskType = currentTask.get("taskType");
-                String curPut      = currentTask.get("put");
-                String curTable    = currentTask.get("table");
+                String curTaskName = currentTask.getTaskName();
+                String curTaskType = currentTask.getTaskType();
+                String curPut      = currentTask.getPut();
+                String curTable    = currentTask.getTable();
 
                 /*
                  * Task data validation
@@ -644,11 +1117,10 @@ public class Scheduler extends AbstractCoreUnit {
                     return response;
                 }
 
-                Map<String, String> currentCoordinates = new HashMap<>();
-                currentCoordinates.putAll(currentTask);
-                currentCoordinates.putAll(this.coordinates);
+                // Whole task is bulk work even on demand: priority of task type, queue bound, task limit and shard split are kept
+                Map<String, String> currentCoordinates = ExecutionContext.of(currentTask.asMap()).with(this.coordinates);
 
-                CronTask taskObject = new CronTask(this.settings, currentCoordinates);
+                CronTask taskObject = new CronTask(this.settings, currentCoordinates, this.workerExecutor);
 
                 try {
                     CronSingleton.getInstance().getScheduler().launch(taskObject);
@@ -678,142 +1150,835 @@ public class Scheduler extends AbstractCoreUnit {
 
 
     /**
-     * Show scheduler status
+     * Reload task and mail schedules
+     * Only added, changed and removed schedules are touched, running tasks are not interrupted
      *
      * @return DTOShellResponse
      */
-    private DTOShellResponse status() {
+    private DTOShellResponse reload() {
 
         DTOShellResponse response = new DTOShellResponse();
 
+        /* Stop executing if Scheduler is not started */
+        if (!CronSingleton.getInstance().isStarted()) {
+            response.message = "Scheduler is not started. Please use command 'cbackup start' to start scheduler";
+            response.success = true;
+            response.object  = false;
+            return response;
+        }
+
         try {
-            response.message = (CronSingleton.getInstance().isStarted()) ?  "Scheduler is running" : "Scheduler is not running";
-            response.object  = CronSingleton.getInstance().isStarted();
+            ScheduleDiff diff = this.reloadSchedules();
+
+            response.message = "Schedules reloaded. " + diff;
             response.success = true;
+            response.object  = !diff.isEmpty();
+            response.details = diff;
             return response;
         }
         catch (Exception e) {
-            this.logSystemMessage("ERROR", "SCHEDULER STATUS", "Can't get scheduler status.");
-            response.message   = "Can't get scheduler status";
+            response.message   = "Can't reload schedules. Current schedules are kept.";
             response.exception = e.getMessage();
             return response;
         }
+    }
+
+
+    /**
+     * Periodic schedule check, run by cron4j
+     * Lists are requested with conditional GET, unchanged lists cost a 304 response
+     */
+    private void reloadQuietly() {
+
+        // Scheduler was armed from snapshot and API was not available since
+        if (this.snapshotPending) {
+            this.refreshSnapshotQuietly();
+            return;
+        }
 
+        try {
+            this.reloadSchedules();
+        }
+        catch (Exception e) {
+            // Failure is logged by list loaders, schedules are kept
+        }
     }
 
 
     /**
-     * Get setting from API
+     * Get task and mail schedules from API and apply difference
      *
-     * @throws Exception if a error occurs.
+     * @return ScheduleDiff
+     * @throws Exception if lists can't be received, nothing is changed then
      */
-    private void init() throws Exception {
+    private ScheduleDiff reloadSchedules() throws Exception {
 
-        /*
-         * Getting API address and token
-         */
-        Properties config = new Properties();
+        List<DTOTaskSpec> tasks          = this.requestTasks();
+        List<Map<String, String>> events = this.requestEvents();
 
-        try {
+        Map<String, ScheduleEntry> plan = new LinkedHashMap<>();
+        this.createTaskSchedule(plan, tasks);
+        this.createMailSchedule(plan, events);
 
-            this.coordinates.put("scheme", this.scheme);
-            this.coordinates.put("site", this.site);
-            this.coordinates.put("token", this.token);
+        ScheduleDiff diff = this.applySchedule(plan);
 
-            /*
-             * API address-token verification
-             */
-            if (this.coordinates.get("scheme") == null || this.coordinates.get("scheme").length() == 0) {
-                throw new Exception("Can't get API protocol scheme (http/https) from config file application.properties.");
-            }
-            if (!(this.coordinates.get("scheme").equals("http")) && !(this.coordinates.get("scheme").equals("https"))) {
-                throw new Exception("Unknown API protocol scheme.");
-            }
-            if (this.coordinates.get("site") == null || this.coordinates.get("site").length() == 0) {
-                throw new Exception("Can't read API address from config file application.properties.");
-            }
-            if (this.coordinates.get("token") == null || this.coordinates.get("token").length() == 0) {
-                throw new Exception("Can't get API auth token from config file application.properties.");
-            }
+        if (!diff.isEmpty()) {
+            this.logSystemMessage("INFO", "SCHEDULER RELOAD", "Schedules reloaded. " + diff);
+        }
 
-            /*
-             * Getting system settings:
-             * - dataPath
-             * - threadCount
-             * - snmpTimeout
-             * - snmpRetries
-             * - telnetTimeout
-             * - telnetBeforeSendDelay
-             * - sshTimeout
-             * - sshBeforeSendDelay
-             * - systemLogLevel
-             */
-            ApiRequest settingsRequest = new ApiRequest(this.coordinates)
-                    .setRequestMethod(ApiRequestMethods.GET)
-                    .setApiMethod("v1/core/get-config");
+        this.saveSnapshot(tasks, events);
 
-            ApiResponse settingsResponse = ApiCaller.request(settingsRequest);
+        return diff;
+    }
 
-            if (!settingsResponse.success) {
-                /*
-                 * Log record
-                 * Cannot get settings
-                 */
-                this.logSystemBadResponse("ERROR", "SCHEDULER INIT", "Can't get settings from API.", settingsResponse);
-                throw new Exception("Can't get settings from API.");
-            }
 
-            String settingsJson = settingsResponse.response;
+    /**
+     * Refresh settings and schedules, armed from local snapshot, from API
+     * On failure scheduler keeps running on snapshot, refresh is retried by periodic schedule check
+     */
+    private synchronized void refreshSnapshotQuietly() {
 
-            Type settingsType = new TypeToken<HashMap<String, String>>() {}.getType();
+        // Refreshed meanwhile by other thread, or scheduler was stopped
+        if (!this.snapshotPending || !CronSingleton.getInstance().isStarted()) {
+            return;
+        }
 
-            try {
-                this.settings = this.gson.fromJson(settingsJson, settingsType);
-            } catch (Exception e) {
-                this.logSystemException("ERROR", "SCHEDULER INIT", "Can't parse settings from json.", e);
-                throw new Exception("Can't parse settings from json.", e);
+        long started = System.currentTimeMillis();
+
+        try {
+            // Everything is received before anything is changed, snapshot schedules keep running on failure
+            Map<String, String> received     = this.requestSettings();
+            List<DTOTaskSpec> tasks          = this.requestTasks();
+            List<Map<String, String>> events = this.requestEvents();
+
+            boolean settingsChanged = !received.equals(this.receivedSettings);
+            String threadCount      = this.settings.get("threadCount");
+
+            if (settingsChanged) {
+                this.applySettings(received);
             }
 
-            /*
-             * Settings verification
-             */
-            if (this.settings.get("dataPath") == null || this.settings.get("dataPath").length() == 0) {
-                this.logSystemMessage("ERROR", "SCHEDULER INIT", "Can't get file save path from API.");
-                throw new Exception("Can't get file save path from API.");
+            Map<String, ScheduleEntry> plan = new LinkedHashMap<>();
+            this.createTaskSchedule(plan, tasks);
+            this.createMailSchedule(plan, events);
+
+            // Tasks and events keep settings, they were created with, so all of them are replaced in place
+            ScheduleDiff diff = this.applySchedule(plan, settingsChanged);
+
+            this.snapshotPending = false;
+            this.saveSnapshot(tasks, events);
+
+            if (settingsChanged) {
+                this.logSystemMessage("INFO", "SCHEDULER RELOAD", "Settings from API differ from local snapshot. Schedules are recreated with new settings.");
+
+                if (this.workerPoolThreads <= 0 && threadCount != null && !threadCount.equals(this.settings.get("threadCount"))) {
+                    this.logSystemMessage("WARNING", "SCHEDULER RELOAD", "Thread count was changed. New worker pool size is applied after 'cbackup restart'.");
+                }
             }
+
+            this.logSystemMessage("INFO", "SCHEDULER RELOAD", "Local snapshot refreshed from API in " + (System.currentTimeMillis() - started) + " ms. " + diff);
         }
         catch (Exception e) {
-            throw new Exception(e.getMessage());
+            this.logSystemMessage("WARNING", "SCHEDULER RELOAD", "Can't refresh local snapshot from API, scheduler runs on snapshot. Refresh is retried by periodic schedule check.");
         }
-
     }
 
 
     /**
-     * Add tasks to schedule
+     * Save local snapshot of current settings and given lists, if they were changed
      *
-     * @throws Exception if a error occurs.
+     * @param tasks  - task list from API
+     * @param events - mailer events from API
      */
-    private void createTaskSchedule() throws Exception {
+    private void saveSnapshot(List<DTOTaskSpec> tasks, List<Map<String, String>> events) {
 
-        ArrayList<Map<String, String>> tasks;
+        if (!this.snapshotEnabled || this.snapshotPending) {
+            return;
+        }
+
+        synchronized (this.snapshotLock) {
+            try {
+                // Revision is continued from snapshot of previous daemon run
+                if (this.snapshot == null) {
+                    this.snapshot = ScheduleSnapshot.load(0);
+                }
+                this.snapshot = ScheduleSnapshot.save(this.snapshot, this.receivedSettings, tasks, events);
+            }
+            catch (Exception e) {
+                this.logSystemException("WARNING", "SCHEDULER SNAPSHOT", "Can't save local snapshot.", e);
+            }
+        }
+    }
+
+
+    /**
+     * Apply planned schedules
+     * New ones are scheduled, removed ones are descheduled.
+     * Changed cron string is rescheduled in place, changed task fields replace the task.
+     *
+     * @param plan          - schedule key => entry
+     * @return ScheduleDiff
+     */
+    private ScheduleDiff applySchedule(Map<String, ScheduleEntry> plan) {
+        return this.applySchedule(plan, false);
+    }
+
+
+    /**
+     * Apply planned schedules
+     *
+     * @param plan          - schedule key => entry
+     * @param replaceAll    - replace unchanged entries too, e.g. when settings of their tasks are changed
+     * @return ScheduleDiff
+     */
+    private ScheduleDiff applySchedule(Map<String, ScheduleEntry> plan, boolean replaceAll) {
+
+        ScheduleDiff diff = new ScheduleDiff();
+        it.sauronsoftware.cron4j.Scheduler cron = CronSingleton.getInstance().getScheduler();
+
+        synchronized (this.schedules) {
+
+            Iterator<Map.Entry<String, ScheduleEntry>> it = this.schedules.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, ScheduleEntry> current = it.next();
+                if (!plan.containsKey(current.getKey())) {
+                    cron.deschedule(current.getValue().cronId);
+                    it.remove();
+                    diff.removed++;
+                }
+            }
+
+            for (Map.Entry<String, ScheduleEntry> planned : plan.entrySet()) {
+
+                ScheduleEntry current = this.schedules.get(planned.getKey());
+                ScheduleEntry next    = planned.getValue();
+
+                if (current != null && !replaceAll && current.fingerprint.equals(next.fingerprint)) {
+                    if (current.cron.equals(next.cron)) {
+                        diff.unchanged++;
+                    }
+                    else {
+                        // Task object is kept, only cron string is new
+                        cron.reschedule(current.cronId, next.cron);
+                        current.cron = next.cron;
+                        diff.changed++;
+                    }
+                    continue;
+                }
+
+                if (current != null) {
+                    cron.deschedule(current.cronId);
+                    this.schedules.remove(planned.getKey());
+                }
+
+                try {
+                    next.cronId = CronSingleton.getInstance().scheduleJob(next.cron, next.task);
+                    this.schedules.put(planned.getKey(), next);
+                    if (current != null) {
+                        diff.changed++;
+                    }
+                    else {
+                        diff.added++;
+                    }
+                }
+                catch (Exception e) {
+                    this.logSystemMessage("ERROR", next.action, "Can't add " + next.name + ": malformed cron string.");
+                    if (current != null) {
+                        diff.removed++;
+                    }
+                }
+            }
+        }
+
+        return diff;
+    }
+
+
+    /**
+     * Show scheduler status
+     *
+     * @return DTOShellResponse
+     */
+    private DTOShellResponse status() {
+
+        DTOShellResponse response = new DTOShellResponse();
+
+        try {
+            ApiPoolStats poolStats      = ApiCaller.getPoolStats();
+            ApiLogShipperStats logStats = ApiLogShipper.getStats();
+            List<ApiBreakerStats> breakerStats = ApiCaller.getBreakerStats();
+            ApiRetryStats retryStats    = ApiCaller.getRetryStats();
+            DTOOutboxStats outboxStats  = ResultOutbox.getInstance().getStats();
+            ApiCacheStats cacheStats    = ApiCaller.getCacheStats();
+            DTOGovernorStats taskStats  = TaskGovernor.getInstance().getStats();
+            WorkerExecutor executor     = this.workerExecutor;
+            DTOWorkerPoolStats workerStats = (executor != null) ? executor.getStats() : new DTOWorkerPoolStats();
+
+            long openBreakers = breakerStats.stream().filter(current -> !current.state.equals("closed")).count();
+            long breakerTrips = breakerStats.stream().mapToLong(current -> current.trips).sum();
+
+            Map<String, Object> details = new LinkedHashMap<>();
+            details.put("apiConnectionPool", poolStats);
+            details.put("apiLogShipper", logStats);
+            details.put("apiCircuitBreakers", breakerStats);
+            details.put("apiRetries", retryStats);
+            details.put("resultOutbox", outboxStats);
+            details.put("apiResponseCache", cacheStats);
+            details.put("taskGovernor", taskStats);
+            details.put("workerPool", workerStats);
+
+            DTOShardStats shardStats = ShardCoordinator.getInstance().getStats();
+            details.put("shards", shardStats);
+
+            ScheduleSnapshot currentSnapshot;
+            synchronized (this.snapshotLock) {
+                currentSnapshot = this.snapshot;
+            }
+
+            response.message = (CronSingleton.getInstance().isStarted()) ?  "Scheduler is running" : "Scheduler is not running";
+            response.message += "\nAPI connection pool: leased " + poolStats.leased + ", available " + poolStats.available +
+                    ", pending " + poolStats.pending + ", max " + poolStats.maxConnections + ". Hits: " + poolStats.hits + ", misses: " + poolStats.misses +
+                    ", coalesced GETs: " + poolStats.coalesced + ".";
+            response.message += "\nAPI log queue: " + logStats.depth + "/" + logStats.capacity + ". Queued: " + logStats.queued +
+                    ", shipped: " + logStats.shipped + ", failed: " + logStats.failed + ", dropped: " + logStats.dropped + ", spilled: " + logStats.spilled + ".";
+            response.message += "\nAPI circuit breakers: " + openBreakers + " not closed of " + breakerStats.size() + ". Trips: " + breakerTrips +
+                    ". Retries: " + retryStats.retries + ", denied by budget: " + retryStats.denied + ".";
+            response.message += "\nResult outbox: " + outboxStats.backlog + " queued (" + outboxStats.backlogBytes + " bytes, " + outboxStats.segments +
+                    " segments). Replayed: " + outboxStats.replayed + ", rejected: " + outboxStats.rejected + ", last replay rate: " + outboxStats.replayRate + "/s.";
+            response.message += "\nAPI response cache: " + cacheStats.entries + " entries (" + cacheStats.bytes + "/" + cacheStats.maxBytes + " bytes). Not modified: " +
+                    cacheStats.notModified + ", unchanged: " + cacheStats.hashHits + ", misses: " + cacheStats.misses + ", evictions: " + cacheStats.evictions +
+                    ", hit ratio: " + cacheStats.hitRatio + ".";
+            response.message += "\nTask runs: " + taskStats.runningTasks + " running" + ((taskStats.maxTasks > 0) ? " of " + taskStats.maxTasks : "") +
+                    ", " + taskStats.waitingTasks + " waiting. Worker threads: " + taskStats.workerThreads + ((taskStats.maxWorkerThreads > 0) ? "/" + taskStats.maxWorkerThreads : "") +
+                    ". Started: " + taskStats.started + ", skipped: " + taskStats.skipped + ", queued: " + taskStats.queued + ", coalesced: " + taskStats.coalesced +
+                    ", delayed by limit: " + taskStats.throttled + ". Overlap policy: " + taskStats.defaultPolicy + ".";
+            if (currentSnapshot != null) {
+                response.message += "\nLocal snapshot: revision " + currentSnapshot.revision + " of " + new Date(currentSnapshot.savedAt) +
+                        ((this.snapshotPending) ? ", scheduler runs on snapshot, API refresh is pending." : ", in sync with API.");
+            }
+            response.message += "\nWorker pool (" + workerStats.mode + "): " + workerStats.active + "/" + workerStats.threads + " busy, queued " + workerStats.queued +
+                    "/" + workerStats.capacity + ", delayed " + workerStats.delayed + " in " + workerStats.lanes + " task lanes. Completed: " + workerStats.completed +
+                    ", rejected: " + workerStats.rejected + ", started " + workerStats.admissionRate + "/s last minute.";
+            for (Map.Entry<String, DTOWorkerPoolStats.PriorityStats> entry : workerStats.priorities.entrySet()) {
+                DTOWorkerPoolStats.PriorityStats current = entry.getValue();
+                response.message += "\n  " + entry.getKey() + ": " + current.lanes + " lanes, " + current.queued + " queued. Started: " + current.started +
+                        ", wait mean " + current.meanWaitMs + " ms, max " + current.maxWaitMs + " ms.";
+            }
+            if (!shardStats.backend.isEmpty()) {
+                response.message += "\nShards (" + shardStats.backend + "): " + shardStats.members.size() + " instances, this is " + shardStats.instanceId +
+                        ". Rebalances: " + shardStats.rebalances + ((shardStats.lastError.isEmpty()) ? "." : ". Membership error: " + shardStats.lastError);
+                for (DTOShardMember member : shardStats.members) {
+                    response.message += "\n  " + member.instanceId + ": " + Math.round(member.share * 1000) / 10.0 + "% of nodes, heartbeat " +
+                            (System.currentTimeMillis() - member.heartbeatAt) / 1000 + " s ago. Last run nodes: " +
+                            ((member.taskNodes.isEmpty()) ? "none" : new TreeMap<>(member.taskNodes).toString()) + ".";
+                }
+            }
+            response.object  = CronSingleton.getInstance().isStarted();
+            response.details = details;
+            response.success = true;
+            return response;
+        }
+        catch (Exception e) {
+            this.logSystemMessage("ERROR", "SCHEDULER STATUS", "Can't get scheduler status.");
+            response.message   = "Can't get scheduler status";
+            response.exception = e.getMessage();
+            return response;
+        }
+
+    }
+
+
+    /**
+     * Show API client stats per API method
+     *
+     * @return DTOShellResponse
+     */
+    private DTOShellResponse apiStats() {
+
+        DTOShellResponse response = new DTOShellResponse();
+
+        try {
+            List<ApiEndpointStats> stats = ApiCaller.getEndpointStats();
+
+            StringBuilder message = new StringBuilder(String.format("%-40s %9s %6s %8s %7s %9s %9s %9s %9s %12s %12s",
+                    "API method", "requests", "active", "per min", "errors", "p50 ms", "p90 ms", "p99 ms", "max ms", "sent", "received"));
+
+            for (ApiEndpointStats current : stats) {
+                message.append(String.format("%n%-40s %9d %6d %8.1f %7d %9.1f %9.1f %9.1f %9.1f %12d %12d",
+                        current.apiMethod, current.requests, current.inFlight, current.ratePerMinute, current.errors,
+                        current.p50Ms, current.p90Ms, current.p99Ms, current.maxMs, current.bytesSent, current.bytesReceived));
+            }
+
+            if(stats.isEmpty()) {
+                message.append("\nNo API requests yet");
+            }
+
+            response.message = message.toString();
+            response.object  = stats.size();
+            response.details = stats;
+            response.success = true;
+            return response;
+        }
+        catch (Exception e) {
+            this.logSystemMessage("ERROR", "SCHEDULER STATUS", "Can't get API client stats.");
+            response.message   = "Can't get API client stats";
+            response.exception = e.getMessage();
+            return response;
+        }
+
+    }
+
+
+    /**
+     * Cancel running task runs and wait until their workers are finished
+     *
+     * @param target              - task name or run id
+     * @return DTOShellResponse
+     */
+    private DTOShellResponse cancelTask(String target) {
+
+        DTOShellResponse response = new DTOShellResponse();
+
+        try {
+            List<Task> tasks = TaskRegistry.getInstance().find(target);
+
+            if(tasks.isEmpty()) {
+                response.message = "No running task with name or run id " + target + ". Use 'cbackup tasks' to list running tasks";
+                response.success = true;
+                response.object  = false;
+                return response;
+            }
+
+            long started   = System.nanoTime();
+            List<Map<String, Object>> details = new ArrayList<>();
+            StringBuilder message = new StringBuilder();
+
+            // All runs are cancelled first, then drained together
+            for (Task task : tasks) {
+                DTOTaskProgress before = task.getProgress().getSnapshot();
+                Map<String, Object> run = new LinkedHashMap<>();
+                run.put("runId", before.runId);
+                run.put("taskName", before.taskName);
+                run.put("queuedDropped", before.queued);
+                run.put("runningInterrupted", before.running);
+                run.put("sessionsClosed", task.cancel());
+                details.add(run);
+            }
+
+            long deadline = System.currentTimeMillis() + Task.CANCEL_DRAIN_TIMEOUT;
+            int left      = 0;
+
+            for (Task task : tasks) {
+                left += task.awaitDrained(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+
+            long drainMs = (System.nanoTime() - started) / 1000000L;
+
+            for (Map<String, Object> run : details) {
+                message.append(String.format("Task %s, run %s: cancelled, %s queued workers dropped, %s running workers interrupted, %s device sessions closed%n",
+                        run.get("taskName"), run.get("runId"), run.get("queuedDropped"), run.get("runningInterrupted"), run.get("sessionsClosed")));
+            }
+
+            if(left > 0) {
+                message.append("Drain timed out after ").append(drainMs).append(" ms, ").append(left).append(" workers still running");
+            }
+            else {
+                message.append("Drained in ").append(drainMs).append(" ms");
+            }
+
+            this.logSystemMessage("WARNING", "SCHEDULER CANCEL TASK", "Task " + target + " was cancelled from shell. " + tasks.size() +
+                    " runs, drained in " + drainMs + " ms, workers left: " + left + ".");
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("runs", details);
+            result.put("drainMs", drainMs);
+            result.put("stillRunning", left);
+
+            response.message = message.toString();
+            response.object  = left == 0;
+            response.details = result;
+            response.success = true;
+            return response;
+        }
+        catch (Exception e) {
+            this.logSystemMessage("ERROR", "SCHEDULER CANCEL TASK", "Can't cancel task " + target + ".");
+            response.message   = "Can't cancel task " + target;
+            response.exception = e.getMessage();
+            return response;
+        }
+    }
+
+
+    /**
+     * Progress of running and last finished task runs
+     *
+     * @return DTOShellResponse
+     */
+    private DTOShellResponse tasks() {
+
+        DTOShellResponse response = new DTOShellResponse();
+
+        try {
+            List<DTOTaskProgress> running  = TaskRegistry.getInstance().getRunning();
+            List<DTOTaskProgress> finished = TaskRegistry.getInstance().getFinished();
+
+            StringBuilder message = new StringBuilder("Running tasks:\n");
+            message.append(this.formatProgress(running, null));
+            message.append("\n\nFinished tasks:\n");
+            message.append(this.formatProgress(finished, null));
+
+            Map<String, List<DTOTaskProgress>> details = new LinkedHashMap<>();
+            details.put("running", running);
+            details.put("finished", finished);
+
+            response.message = message.toString();
+            response.object  = running.size();
+            response.details = details;
+            response.success = true;
+            return response;
+        }
+        catch (Exception e) {
+            this.logSystemMessage("ERROR", "SCHEDULER STATUS", "Can't get task progress.");
+            response.message   = "Can't get task progress";
+            response.exception = e.getMessage();
+            return response;
+        }
+    }
+
+
+    /**
+     * Running tasks by throughput in sampling interval
+     *
+     * @param interval            - sampling interval, seconds
+     * @return DTOShellResponse
+     */
+    private DTOShellResponse top(int interval) {
+
+        DTOShellResponse response = new DTOShellResponse();
+
+        try {
+            Map<String, Long> before = new HashMap<>();
+            for (DTOTaskProgress current : TaskRegistry.getInstance().getRunning()) {
+                before.put(current.runId, current.succeeded + current.failed);
+            }
+
+            Thread.sleep(interval * 1000L);
+
+            // Nodes done per second in interval, runs started in interval are counted from zero
+            List<DTOTaskProgress> running = TaskRegistry.getInstance().getRunning();
+            Map<String, Double> rates     = new HashMap<>();
+            for (DTOTaskProgress current : running) {
+                long done = current.succeeded + current.failed - before.getOrDefault(current.runId, 0L);
+                rates.put(current.runId, Math.round(done * 100.0 / interval) / 100.0);
+            }
+            running.sort((first, second) -> Double.compare(rates.get(second.runId), rates.get(first.runId)));
+
+            WorkerExecutor executor        = this.workerExecutor;
+            DTOWorkerPoolStats workerStats = (executor != null) ? executor.getStats() : new DTOWorkerPoolStats();
+
+            StringBuilder message = new StringBuilder(String.format("cbackup top - %s, sampled %d s%n", new Date(), interval));
+            message.append(String.format("Tasks: %d running. Workers: %d/%d active, %d queued, %d delayed, %.1f started/s%n%n",
+                    running.size(), workerStats.active, workerStats.threads, workerStats.queued, workerStats.delayed, workerStats.admissionRate));
+            message.append(this.formatProgress(running, rates));
+
+            Map<String, Object> details = new LinkedHashMap<>();
+            details.put("interval", interval);
+            details.put("rates", rates);
+            details.put("running", running);
+            details.put("workers", workerStats);
+
+            response.message = message.toString();
+            response.object  = running.size();
+            response.details = details;
+            response.success = true;
+            return response;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.message = "Sampling was interrupted";
+            return response;
+        }
+        catch (Exception e) {
+            this.logSystemMessage("ERROR", "SCHEDULER STATUS", "Can't get task progress.");
+            response.message   = "Can't get task progress";
+            response.exception = e.getMessage();
+            return response;
+        }
+    }
+
+
+    /**
+     * Task progress table
+     *
+     * @param runs    - task runs
+     * @param rates   - current nodes per second by run id, null - average of run is shown
+     * @return String
+     */
+    private String formatProgress(List<DTOTaskProgress> runs, Map<String, Double> rates) {
+
+        StringBuilder table = new StringBuilder(String.format("%-6s %-30s %-11s %-9s %8s %7s %7s %7s %9s %7s %9s %7s %8s %8s %8s %8s",
+                "run", "task", "priority", "state", "elapsed", "nodes", "queued", "running", "succeeded", "failed", "unchanged", "outbox",
+                "nodes/s", "p50 ms", "p95 ms", "eta"));
+
+        for (DTOTaskProgress current : runs) {
+            double rate = (rates == null) ? current.nodesPerSec : rates.get(current.runId);
+            table.append(String.format("%n%-6s %-30s %-11s %-9s %8.1f %7d %7d %7d %9d %7d %9d %7d %8.2f %8d %8d %8s",
+                    current.runId, current.taskName, current.priority, current.state, current.elapsedSec, current.nodes,
+                    current.queued, current.running, current.succeeded, current.failed, current.unchanged, current.outboxed, rate,
+                    current.p50Ms, current.p95Ms, (current.etaSec < 0) ? "-" : current.etaSec + "s"));
+        }
+
+        if(runs.isEmpty()) {
+            table.append("\nNo tasks");
+        }
+
+        return table.toString();
+    }
+
+
+    /**
+     * Get setting from API or local snapshot
+     *
+     * @param timer            - startup phase durations
+     * @param snapshotSettings - settings from local snapshot, null - request from API
+     * @throws Exception if a error occurs.
+     */
+    private void init(BootTimer timer, Map<String, String> snapshotSettings) throws Exception {
+
+        /*
+         * Getting API address and token
+         */
+        Properties config = new Properties();
+
+        try {
+
+            this.coordinates = ExecutionContext.EMPTY.with("scheme", this.scheme, "site", this.site, "token", this.token);
+
+            /*
+             * API address-token verification
+             */
+            if (this.coordinates.get("scheme") == null || this.coordinates.get("scheme").length() == 0) {
+                throw new Exception("Can't get API protocol scheme (http/https) from config file application.properties.");
+            }
+            if (!(this.coordinates.get("scheme").equals("http")) && !(this.coordinates.get("scheme").equals("https"))) {
+                throw new Exception("Unknown API protocol scheme.");
+            }
+            if (this.coordinates.get("site") == null || this.coordinates.get("site").length() == 0) {
+                throw new Exception("Can't read API address from config file application.properties.");
+            }
+            if (this.coordinates.get("token") == null || this.coordinates.get("token").length() == 0) {
+                throw new Exception("Can't get API auth token from config file application.properties.");
+            }
+
+            /*
+             * Shared API connection pool
+             */
+            ApiCaller.configure(this.apiMaxConnections, this.apiMaxConnectionsPerRoute, this.apiConnectTimeout, this.apiReadTimeout,
+                    this.apiPoolTimeout, this.apiKeepAlive);
+            ApiCaller.configureBreakers(this.apiBreakerFailureThreshold, this.apiBreakerOpenDuration, this.apiMaxRetries,
+                    this.apiRetryBaseDelay, this.apiRetryMaxDelay, this.apiRetryBudgetRatio);
+            ApiCaller.configureCache(this.apiCacheMaxBytes);
+            ApiLogShipper.configure(this.logQueueCapacity, this.logBatchSize, this.logFlushInterval, this.logSpillToFile);
+            TaskGovernor.getInstance().configure(this.taskMaxConcurrent, this.taskMaxWorkerThreads, this.taskOverlapPolicy,
+                    this.taskOverlapPolicies, this.taskMaxQueuedRuns);
+            timer.mark("config");
+
+            /*
+             * Local result hash index, loaded once per daemon run
+             */
+            NodeHashIndex.getInstance().setTtl(this.hashIndexTtl);
+
+            if(!this.hashIndexLoaded) {
+                this.hashIndexLoaded = true;
+                try {
+                    NodeHashIndex.getInstance().load();
+                } catch (Exception e) {
+                    this.logSystemException("WARNING", "SCHEDULER INIT", "Can't load local hash index. Hashes will be requested from API.", e);
+                }
+            }
+            timer.mark("hash index");
+
+            /*
+             * Result outbox, replayed in background
+             */
+            try {
+                ResultOutbox.getInstance().open(this.coordinates, this.outboxSegmentSize, this.outboxReplayInterval);
+            } catch (Exception e) {
+                this.logSystemException("WARNING", "SCHEDULER INIT", "Can't open result outbox. Failed results will not be queued.", e);
+            }
+            timer.mark("outbox");
+
+            /*
+             * Shard membership, nodes of tasks are split between daemons
+             */
+            try {
+                ShardCoordinator.getInstance().start(this.coordinates, this.shardBackend, this.shardLocation, this.shardInstanceId,
+                        this.shardLeaseTtl, this.shardVirtualNodes);
+            } catch (Exception e) {
+                this.logSystemException("WARNING", "SCHEDULER INIT", "Can't start shard membership " + this.shardBackend + ". All nodes are run by this instance.", e);
+            }
+            timer.mark("shards");
+
+            this.applySettings((snapshotSettings != null) ? snapshotSettings : this.requestSettings());
+            timer.mark("settings");
+
+            /*
+             * Worker threads, shared by all tasks
+             */
+            int poolThreads = this.workerPoolThreads;
+            if(poolThreads <= 0) {
+                try {
+                    poolThreads = Integer.parseInt(this.settings.get("threadCount"));
+                } catch (NumberFormatException e) {
+                    poolThreads = 10;
+                    this.logSystemException("WARNING", "SCHEDULER INIT", "Can't read thread number from settings. Worker pool has " + poolThreads + " threads.", e);
+                }
+            }
+
+            if(this.workerExecutor != null) {
+                this.workerExecutor.shutdown(5000);
+                this.workerExecutor = null;
+            }
+
+            if("virtual".equalsIgnoreCase(this.workerPoolMode)) {
+                this.workerExecutor = WorkerExecutor.virtual("cbackup-worker", this.workerPoolMaxDevices, this.workerPoolQueueCapacity);
+                if(this.workerExecutor == null) {
+                    this.logSystemMessage("WARNING", "SCHEDULER INIT", "Virtual threads are not supported by this JVM, Java 21 or newer is required. Using platform threads.");
+                }
+            }
+
+            if(this.workerExecutor == null) {
+                this.workerExecutor = new WorkerExecutor("cbackup-worker", poolThreads, this.workerPoolQueueCapacity);
+            }
+
+            this.workerExecutor.setAging(this.workerPoolPriorityAging);
+            timer.mark("worker pool");
+        }
+        catch (Exception e) {
+            throw new Exception(e.getMessage());
+        }
+
+    }
+
+
+    /**
+     * Get system settings from API:
+     * - dataPath
+     * - threadCount
+     * - snmpTimeout
+     * - snmpRetries
+     * - telnetTimeout
+     * - telnetBeforeSendDelay
+     * - sshTimeout
+     * - sshBeforeSendDelay
+     * - systemLogLevel
+     *
+     * @return Map<String, String> - settings
+     * @throws Exception if settings can't be received
+     */
+    private Map<String, String> requestSettings() throws Exception {
+
+        ApiRequest settingsRequest = new ApiRequest(this.coordinates)
+                .setRequestMethod(ApiRequestMethods.GET)
+                .setApiMethod("v1/core/get-config");
+
+        ApiResponse settingsResponse;
+
+        try {
+            settingsResponse = ApiCaller.requestCached(settingsRequest, DTOSettings.class);
+        } catch (Exception e) {
+            this.logSystemException("ERROR", "SCHEDULER INIT", "Can't parse settings from json.", e);
+            throw new Exception("Can't parse settings from json.", e);
+        }
+
+        if (!settingsResponse.success) {
+            /*
+             * Log record
+             * Cannot get settings
+             */
+            this.logSystemBadResponse("ERROR", "SCHEDULER INIT", "Can't get settings from API.", settingsResponse);
+            throw new Exception("Can't get settings from API.");
+        }
+
+        // Cached settings are shared, copy is returned
+        DTOSettings cachedSettings = settingsResponse.getParsed();
+        return (cachedSettings == null) ? new HashMap<>() : new HashMap<>(cachedSettings.asMap());
+    }
+
+
+    /**
+     * Verify received settings, add local settings and freeze
+     *
+     * @param received - settings from API or snapshot
+     * @throws Exception if settings are not valid
+     */
+    private void applySettings(Map<String, String> received) throws Exception {
+
+        Map<String, String> current = this.settings;
+        this.settings = new HashMap<>(received);
 
         /*
-         * Getting tasks
-         * Data example:
-         * [[
-         * "scheduleId"   => ..,
-         * "taskName"     => ..,
-         * "scheduleCron" => ..,
-         * "put"          => ..,
-         * "table"        => ..,
-         * ],..]
+         * Settings verification
          */
+        if (this.settings.get("dataPath") == null || this.settings.get("dataPath").length() == 0) {
+            this.settings = current;
+            this.logSystemMessage("ERROR", "SCHEDULER INIT", "Can't get file save path from API.");
+            throw new Exception("Can't get file save path from API.");
+        }
+
+        this.putLocalSettings();
+
+        // Shared read-only by all tasks and workers
+        this.settings         = ExecutionContext.of(this.settings);
+        this.receivedSettings = new HashMap<>(received);
+    }
+
+
+    /**
+     * Add local worker settings to settings, received from API
+     */
+    private void putLocalSettings() {
+        this.settings.put("resultBatchSize", String.valueOf(this.resultBatchSize));
+        this.settings.put("resultBatchBytes", String.valueOf(this.resultBatchBytes));
+        this.settings.put("resultBatchGzip", String.valueOf(this.resultBatchGzip));
+        this.settings.put("credentialsPageSize", String.valueOf(this.credentialsPageSize));
+        this.settings.put("jobPlanTtl", String.valueOf(this.jobPlanTtl));
+        this.settings.put("apiActionTimeout", String.valueOf(this.apiActionTimeout));
+        this.settings.put("spreadWindow", String.valueOf(this.taskSpreadWindow));
+        this.settings.put("spreadWindows", this.taskSpreadWindows);
+    }
+
+
+    /**
+     * Get task list from API
+     * Data example:
+     * [[
+     * "scheduleId"   => ..,
+     * "taskName"     => ..,
+     * "scheduleCron" => ..,
+     * "put"          => ..,
+     * "table"        => ..,
+     * ],..]
+     *
+     * @return List<DTOTaskSpec> - cached list, read only
+     * @throws Exception if list can't be received
+     */
+    private List<DTOTaskSpec> requestTasks() throws Exception {
+
         ApiRequest tasksRequest = new ApiRequest(this.coordinates)
                 .setRequestMethod(ApiRequestMethods.GET)
                 .setApiMethod("v1/core/get-tasks");
 
-        ApiResponse tasksResponse = ApiCaller.request(tasksRequest);
+
+        ApiResponse tasksResponse;
+
+        try {
+            tasksResponse = ApiCaller.requestCached(tasksRequest, TASKS_TYPE);
+        }
+        catch(Exception e) {
+            this.logSystemException("ERROR", "SCHEDULER TASK INIT", "Can't parse task list from json.", e);
+            throw new Exception("Can't parse task list from json.", e);
+        }
 
         if(!tasksResponse.success) {
                 /*
@@ -824,17 +1989,19 @@ public class Scheduler extends AbstractCoreUnit {
             throw new Exception("Can't get task list from API.");
         }
 
-        String tasksJson = tasksResponse.response;
+        List<DTOTaskSpec> tasks = tasksResponse.getParsed();
 
-        Type tasksType = new TypeToken<ArrayList<HashMap<String, String>>>(){}.getType();
+        return (tasks == null) ? new ArrayList<>() : tasks;
+    }
 
-        try {
-            tasks = this.gson.fromJson(tasksJson, tasksType);
-        }
-        catch(Exception e) {
-            this.logSystemException("ERROR", "SCHEDULER TASK INIT", "Can't parse task list from json.", e);
-            throw new Exception("Can't parse task list from json.", e);
-        }
+
+    /**
+     * Add tasks to schedule plan
+     *
+     * @param plan  - schedule key => entry
+     * @param tasks - task list from API or snapshot
+     */
+    private void createTaskSchedule(Map<String, ScheduleEntry> plan, List<DTOTaskSpec> tasks) {
 
         /*
          * Task list verification
@@ -856,14 +2023,14 @@ public class Scheduler extends AbstractCoreUnit {
          * - site
          * - token
          */
-        for(Map<String, String> currentTask : tasks) {
+        for(DTOTaskSpec currentTask : tasks) {
 
-            String curTaskName     = currentTask.get("taskName");
-            String curScheduleId   = currentTask.get("scheduleId");
-            String curScheduleCron = currentTask.get("scheduleCron");
-            String curTaskType     = currentTask.get("taskType");
-            String curPut          = currentTask.get("put");
-            String curTable        = currentTask.get("table");
+            String curTaskName     = currentTask.getTaskName();
+            String curScheduleId   = currentTask.getScheduleId();
+            String curScheduleCron = currentTask.getScheduleCron();
+            String curTaskType     = currentTask.getTaskType();
+            String curPut          = currentTask.getPut();
+            String curTable        = currentTask.getTable();
 
             /*
              * Task data validation
@@ -892,48 +2059,49 @@ public class Scheduler extends AbstractCoreUnit {
             /*
              * Creating coordinates for every task
              */
-            Map<String, String> currentCoordinates = new HashMap<>();
-            currentCoordinates.putAll(currentTask);
-            currentCoordinates.putAll(this.coordinates);
-
-            CronTask taskObject = new CronTask(this.settings, currentCoordinates);
+            Map<String, String> currentCoordinates = ExecutionContext.of(currentTask.asMap()).with(this.coordinates);
 
-            try {
-                String taskScheduleId = CronSingleton.getInstance().scheduleJob(curScheduleCron, taskObject);
-                this.scheduleIds.add(taskScheduleId);
-            }
-            catch (Exception e) {
+            if(!SchedulingPattern.validate(curScheduleCron)) {
                 this.logSystemMessage("ERROR", "SCHEDULER TASK INIT", "Can't add task " + curTaskName + ": malformed cron string.");
+                continue;
             }
 
+            CronTask taskObject = new CronTask(this.settings, currentCoordinates, this.workerExecutor);
+
+            plan.put("task:" + curScheduleId, new ScheduleEntry("task " + curTaskName, "SCHEDULER TASK INIT", curScheduleCron, currentTask.asMap(), taskObject));
+
         }
 
     }
 
 
     /**
-     * Add mailer tasks to schedule
+     * Get mailer events from API
+     * Data example:
+     * [[
+     * "scheduleId"   => ..,
+     * "eventName"    => ..,
+     * "scheduleCron" => ..,
+     * ],..]
      *
-     * @throws Exception if a error occurs.
+     * @return List<Map<String, String>> - cached list, read only
+     * @throws Exception if list can't be received
      */
-    private void createMailSchedule() throws Exception {
-
-        ArrayList<Map<String, String>> events;
+    private List<Map<String, String>> requestEvents() throws Exception {
 
-        /*
-         * Getting mail tasks
-         * Data example:
-         * [[
-         * "scheduleId"   => ..,
-         * "eventName"    => ..,
-         * "scheduleCron" => ..,
-         * ],..]
-         */
         ApiRequest eventsRequest = new ApiRequest(this.coordinates)
                 .setRequestMethod(ApiRequestMethods.GET)
                 .setApiMethod("v1/core/get-mailer-events");
 
-        ApiResponse eventsResponse = ApiCaller.request(eventsRequest);
+        ApiResponse eventsResponse;
+
+        try {
+            eventsResponse = ApiCaller.requestCached(eventsRequest, EVENTS_TYPE);
+        }
+        catch(Exception e) {
+            this.logSystemException("ERROR", "SCHEDULER MAILER INIT", "Can't parse events list from json.", e);
+            throw new Exception("Can't parse events list from json.", e);
+        }
 
         if(!eventsResponse.success) {
             /*
@@ -944,17 +2112,19 @@ public class Scheduler extends AbstractCoreUnit {
             throw new Exception("Can't get events list from API.");
         }
 
-        String eventsJson = eventsResponse.response;
+        List<Map<String, String>> events = eventsResponse.getParsed();
 
-        Type eventsType = new TypeToken<ArrayList<HashMap<String, String>>>(){}.getType();
+        return (events == null) ? new ArrayList<>() : events;
+    }
 
-        try {
-            events = this.gson.fromJson(eventsJson, eventsType);
-        }
-        catch(Exception e) {
-            this.logSystemException("ERROR", "SCHEDULER MAILER INIT", "Can't parse events list from json.", e);
-            throw new Exception("Can't parse events list from json.", e);
-        }
+
+    /**
+     * Add mailer tasks to schedule plan
+     *
+     * @param plan   - schedule key => entry
+     * @param events - mailer events from API or snapshot
+     */
+    private void createMailSchedule(Map<String, ScheduleEntry> plan, List<Map<String, String>> events) {
 
         for(Map<String, String> currentEvent : events) {
 
@@ -978,20 +2148,17 @@ public class Scheduler extends AbstractCoreUnit {
             /*
              * Creating coordinates for every event
              */
-            Map<String, String> currentEventCoordinates = new HashMap<>();
-            currentEventCoordinates.putAll(currentEvent);
-            currentEventCoordinates.putAll(this.coordinates);
+            Map<String, String> currentEventCoordinates = ExecutionContext.of(currentEvent).with(this.coordinates);
 
-            CronMailer eventObject = new CronMailer(this.settings, currentEventCoordinates);
-
-            try {
-                String mailScheduleId = CronSingleton.getInstance().scheduleJob(curEventScheduleCron, eventObject);
-                this.scheduleIds.add(mailScheduleId);
-            }
-            catch (Exception e) {
+            if(!SchedulingPattern.validate(curEventScheduleCron)) {
                 this.logSystemMessage("ERROR", "SCHEDULER MAILER INIT", "Can't add event " + curEventName + ": malformed cron string.");
+                continue;
             }
 
+            CronMailer eventObject = new CronMailer(this.settings, currentEventCoordinates);
+
+            plan.put("event:" + curEventScheduleId, new ScheduleEntry("event " + curEventName, "SCHEDULER MAILER INIT", curEventScheduleCron, currentEvent, eventObject));
+
         }
 
     }
@@ -1007,12 +2174,26 @@ public class Scheduler extends AbstractCoreUnit {
         }
 
         /* Deschedule all tasks */
-        for (String ids : this.scheduleIds){
-            CronSingleton.getInstance().getScheduler().deschedule(ids);
+        synchronized (this.schedules) {
+            for (ScheduleEntry entry : this.schedules.values()) {
+                CronSingleton.getInstance().getScheduler().deschedule(entry.cronId);
+            }
+            this.schedules.clear();
+        }
+
+        if (this.reloadScheduleId != null) {
+            CronSingleton.getInstance().getScheduler().deschedule(this.reloadScheduleId);
+            this.reloadScheduleId = null;
         }
 
-        /* Clear scheduleIds ArrayList */
-        this.scheduleIds.clear();
+        /* Leave shard members, other instances take nodes of this one */
+        ShardCoordinator.getInstance().stop();
+
+        /* Cancel queued workers, interrupt running ones */
+        if (this.workerExecutor != null) {
+            this.workerExecutor.shutdown(5000);
+            this.workerExecutor = null;
+        }
     }
 
 }
@@ -0,0 +1,425 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import abstractions.AbstractCoreUnit;
+import abstractions.DTOShardMember;
+import abstractions.DTOShardStats;
+import abstractions.NodeHashIndex;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Node task sharding between daemons, pointed at the same web core
+ * Members are found by membership backend, nodes of task are split by consistent hash ring on node id.
+ * Ring is rebuilt on heartbeat, run of task keeps ring it was started with.
+ * Implemented using the singleton pattern.
+ */
+final class ShardCoordinator extends AbstractCoreUnit {
+
+    private final static ShardCoordinator _instance = new ShardCoordinator();
+
+    // Guarded by this
+    private ShardMembership membership = null;
+    private Thread heartbeat           = null;
+    private boolean running            = false;
+    private long rebalances            = 0;
+    private String lastError           = "";
+    private List<DTOShardMember> members = new ArrayList<>();
+
+    private volatile String instanceId = "";
+    private volatile long leaseTtl     = 30000;
+    private volatile int virtualNodes  = 128;
+    private volatile ShardRing ring    = null;
+
+    // Own record is written, false while other live daemon has the same id: then this instance owns nothing
+    private volatile boolean joined    = false;
+
+    private final long startedAt = System.currentTimeMillis();
+    private final Map<String, Integer> taskNodes = new ConcurrentHashMap<>();
+
+
+    private ShardCoordinator() {
+        super();
+    }
+
+    static ShardCoordinator getInstance() {
+        return _instance;
+    }
+
+
+    /**
+     * Join members and start heartbeat
+     * First heartbeat is done at once, so first task run sees other members
+     * Join is postponed to next heartbeat, while other live daemon has the same id
+     *
+     * @param coordinates  - API coordinates for log
+     * @param backend      - empty - sharding is off, 'file' or membership class name
+     * @param location     - backend location: shared directory for 'file'
+     * @param instanceId   - own id, empty - host name and process id
+     * @param leaseTtl     - member lease, ms
+     * @param virtualNodes - ring points per member
+     * @throws Exception if backend can't be created
+     */
+    void start(Map<String, String> coordinates, String backend, String location, String instanceId, long leaseTtl, int virtualNodes) throws Exception {
+
+        this.stop();
+
+        synchronized (this) {
+
+            this.coordinates  = coordinates;
+            this.leaseTtl     = Math.max(1000, leaseTtl);
+            this.virtualNodes = Math.max(1, virtualNodes);
+            this.instanceId   = (instanceId == null || instanceId.trim().isEmpty()) ? ShardCoordinator.defaultInstanceId() : instanceId.trim();
+            this.rebalances   = 0;
+            this.lastError    = "";
+            this.members      = new ArrayList<>();
+            this.joined       = false;
+
+            if(backend == null || backend.trim().isEmpty()) {
+                return;
+            }
+
+            if(backend.trim().equalsIgnoreCase("file")) {
+                this.membership = new FileShardMembership(location);
+            }
+            else {
+                this.membership = (ShardMembership) Class.forName(backend.trim()).getConstructor(String.class).newInstance(location);
+            }
+
+            this.running = true;
+
+            this.beat();
+
+            this.heartbeat = new Thread(this::heartbeatLoop, "cbackup-shard-heartbeat");
+            this.heartbeat.setDaemon(true);
+            this.heartbeat.start();
+        }
+    }
+
+
+    /**
+     * Stop heartbeat and leave, share of this instance is taken over by other members
+     */
+    void stop() {
+
+        Thread current;
+        ShardMembership left;
+
+        synchronized (this) {
+            this.running    = false;
+            current         = this.heartbeat;
+            left            = this.membership;
+            this.heartbeat  = null;
+            this.membership = null;
+            this.ring       = null;
+            this.notifyAll();
+        }
+
+        if(current != null) {
+            current.interrupt();
+            try {
+                current.join(5000);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if(left != null) {
+            try {
+                left.leave(this.instanceId);
+            }
+            catch (Exception e) {
+                this.logSystemException("WARNING", "SHARD LEAVE", "Instance " + this.instanceId + " can't remove own member record. It expires with lease.", e);
+            }
+        }
+    }
+
+
+    /**
+     * Current ring, task run keeps it till the end
+     *
+     * @return ShardRing - or null, if sharding is off
+     */
+    ShardRing getRing() {
+        return this.ring;
+    }
+
+
+    String getInstanceId() {
+        return this.instanceId;
+    }
+
+
+    /**
+     * Key belongs to this instance
+     * Used for tasks and events, which are not split by nodes and must run on one instance
+     *
+     * @param key      - task or event key
+     * @return boolean - true if sharding is off
+     */
+    boolean owns(String key) {
+        return this.owns(this.ring, key);
+    }
+
+
+    /**
+     * Key belongs to this instance on given ring
+     *
+     * @param ring     - ring of task run, null - sharding is off
+     * @param key      - node id, task or event key
+     * @return boolean - false for any key while instance is not joined
+     */
+    boolean owns(ShardRing ring, String key) {
+        return ring == null || (this.joined && this.instanceId.equals(ring.owner(key)));
+    }
+
+
+    /**
+     * Nodes, taken by this instance in task run, published on heartbeat
+     *
+     * @param taskName - task name
+     * @param nodes    - nodes of this instance
+     */
+    void putTaskNodes(String taskName, int nodes) {
+        this.taskNodes.put(taskName, nodes);
+    }
+
+
+    /**
+     * @return DTOShardStats
+     */
+    synchronized DTOShardStats getStats() {
+
+        DTOShardStats stats = new DTOShardStats();
+
+        stats.backend      = (this.membership == null) ? "" : this.membership.toString();
+        stats.instanceId   = this.instanceId;
+        stats.leaseTtl     = this.leaseTtl;
+        stats.virtualNodes = this.virtualNodes;
+        stats.rebalances   = this.rebalances;
+        stats.lastError    = this.lastError;
+
+        ShardRing current = this.ring;
+        Map<String, Double> shares = (current != null) ? current.shares() : new HashMap<>();
+
+        for (DTOShardMember member : this.members) {
+            DTOShardMember copy = new DTOShardMember();
+            copy.instanceId  = member.instanceId;
+            copy.host        = member.host;
+            copy.startedAt   = member.startedAt;
+            copy.heartbeatAt = member.heartbeatAt;
+            copy.taskNodes   = (member.taskNodes == null) ? new HashMap<>() : new HashMap<>(member.taskNodes);
+            copy.share       = Math.round(shares.getOrDefault(member.instanceId, 0.0) * 10000.0) / 10000.0;
+            stats.members.add(copy);
+        }
+
+        return stats;
+    }
+
+
+    private void heartbeatLoop() {
+
+        while (true) {
+
+            synchronized (this) {
+                if(!this.running) {
+                    return;
+                }
+                try {
+                    this.wait(Math.max(1, this.leaseTtl / 3));
+                }
+                catch (InterruptedException e) {
+                    // stop() called
+                }
+                if(!this.running) {
+                    return;
+                }
+            }
+
+            this.beat();
+        }
+    }
+
+
+    /**
+     * Renew own lease, read members and rebuild ring, if members were changed
+     * If backend is not available, ring is kept till own lease expires, then this instance takes all nodes
+     */
+    private void beat() {
+
+        ShardMembership current;
+        DTOShardMember self = new DTOShardMember();
+
+        synchronized (this) {
+            current = this.membership;
+        }
+
+        if(current == null) {
+            return;
+        }
+
+        self.instanceId  = this.instanceId;
+        self.host        = ShardCoordinator.hostName();
+        self.startedAt   = this.startedAt;
+        self.heartbeatAt = System.currentTimeMillis();
+        self.taskNodes   = new HashMap<>(this.taskNodes);
+
+        List<DTOShardMember> live;
+        DTOShardMember conflict = null;
+        String error = "";
+
+        try {
+            live     = current.members(this.leaseTtl);
+            conflict = this.conflictOf(live);
+            // Record of other daemon with the same id is not overwritten
+            if(conflict == null) {
+                current.heartbeat(self);
+            }
+        }
+        catch (Exception e) {
+            live  = null;
+            error = e.getMessage();
+        }
+
+        synchronized (this) {
+
+            if(this.membership != current) {
+                return;
+            }
+
+            if(live == null) {
+                if(this.lastError.isEmpty()) {
+                    this.logSystemMessage("WARNING", "SHARD HEARTBEAT", "Instance " + this.instanceId + " can't reach shard membership " + current + ": " + error);
+                }
+                this.lastError = (error == null) ? "unknown error" : error;
+
+                // Without own lease other members do not count this instance, it takes all nodes rather than none
+                if(this.members.stream().noneMatch(member -> member.instanceId.equals(this.instanceId) && self.heartbeatAt - member.heartbeatAt <= this.leaseTtl)) {
+                    live = Collections.singletonList(self);
+                    this.joined = true;
+                }
+                else {
+                    return;
+                }
+            }
+            else if(conflict != null) {
+                String message = "Instance id " + this.instanceId + " is used by live daemon on " + conflict.host + ", started " + new Date(conflict.startedAt) + ".";
+                if(this.joined || !message.equals(this.lastError)) {
+                    this.logSystemMessage("WARNING", "SHARD JOIN", message + " This instance runs no shard nodes, join is retried on heartbeat.");
+                }
+                this.lastError = message;
+                this.joined    = false;
+            }
+            else {
+                if(!this.joined && !this.lastError.isEmpty()) {
+                    this.logSystemMessage("INFO", "SHARD JOIN", "Instance " + this.instanceId + " joined shard members.");
+                }
+                this.lastError = "";
+                this.joined    = true;
+            }
+
+            // Own record may be missing, if written with other instance id by mistake
+            if(live.stream().noneMatch(member -> member.instanceId.equals(this.instanceId))) {
+                live = new ArrayList<>(live);
+                live.add(self);
+            }
+
+            live = new ArrayList<>(live);
+            live.sort(Comparator.comparing((DTOShardMember member) -> member.instanceId));
+
+            List<String> ids = new ArrayList<>();
+            for (DTOShardMember member : live) {
+                ids.add(member.instanceId);
+            }
+
+            this.members = live;
+
+            if(this.ring == null || !this.ring.getMembers().equals(ids)) {
+                List<String> previous = (this.ring == null) ? Collections.emptyList() : this.ring.getMembers();
+                this.ring = new ShardRing(ids, this.virtualNodes);
+                // Node may have been uploaded by other instance, local hashes must be confirmed by API again
+                NodeHashIndex.getInstance().clear();
+                if(!previous.isEmpty()) {
+                    this.rebalances++;
+                    this.logSystemMessage("INFO", "SHARD REBALANCE", "Shard members changed: " + previous + " -> " + ids + ". Nodes are split anew from next task run.");
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Live record of other daemon with own id
+     * Own record, left by crashed run of this instance, has the same host: it is taken over
+     *
+     * @param live            - live members
+     * @return DTOShardMember - conflicting record or null
+     */
+    private DTOShardMember conflictOf(List<DTOShardMember> live) {
+
+        String host = ShardCoordinator.hostName();
+
+        for (DTOShardMember member : live) {
+            if(member.instanceId.equals(this.instanceId) && member.startedAt != this.startedAt && !host.equals(member.host)) {
+                return member;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Host name and process id, so daemons on one host get different ids
+     *
+     * @return String
+     */
+    private static String defaultInstanceId() {
+
+        // "<pid>@<host>" on HotSpot and OpenJ9
+        String runtime = ManagementFactory.getRuntimeMXBean().getName();
+        int at         = runtime.indexOf('@');
+        String pid     = (at > 0) ? runtime.substring(0, at) : UUID.randomUUID().toString().substring(0, 8);
+
+        return ShardCoordinator.hostName() + "-" + pid;
+    }
+
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        }
+        catch (Exception e) {
+            return "localhost";
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import abstractions.DTOShardMember;
+
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * Membership backend of node task sharding
+ * Each daemon publishes own member record on heartbeat, record is a lease valid for lease TTL.
+ * Custom backend is set by class name in cbackup.shard.backend, class must have public constructor (String location).
+ */
+public interface ShardMembership {
+
+    /**
+     * Publish own member record, lease is renewed
+     *
+     * @param self - own record
+     * @throws IOException if backend is not available
+     */
+    void heartbeat(DTOShardMember self) throws IOException;
+
+    /**
+     * Members with valid lease, own record included
+     *
+     * @param leaseTtl              - lease TTL, ms
+     * @return List<DTOShardMember> - members
+     * @throws IOException if backend is not available
+     */
+    List<DTOShardMember> members(long leaseTtl) throws IOException;
+
+    /**
+     * Remove own member record, node share is taken over by other members at once
+     *
+     * @param instanceId - own instance id
+     * @throws IOException if backend is not available
+     */
+    void leave(String instanceId) throws IOException;
+
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+
+/**
+ * Consistent hash ring of daemon instances
+ * Every instance has virtual nodes on ring, key belongs to first virtual node clockwise.
+ * When instance leaves, only its keys move to other instances. Immutable.
+ */
+final class ShardRing {
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final List<String> members;
+
+
+    /**
+     * @param members      - instance ids
+     * @param virtualNodes - virtual nodes per instance
+     */
+    ShardRing(Collection<String> members, int virtualNodes) {
+
+        this.members = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(members)));
+
+        for (String member : this.members) {
+            for (int i = 0; i < Math.max(1, virtualNodes); i++) {
+                // On rare collision the lower instance id keeps point, same on every instance
+                this.ring.putIfAbsent(ShardRing.hash(member + "#" + i), member);
+            }
+        }
+    }
+
+
+    /**
+     * @param key     - node id or task key
+     * @return String - instance id, null if ring is empty
+     */
+    String owner(String key) {
+
+        if(this.ring.isEmpty()) {
+            return null;
+        }
+
+        Map.Entry<Long, String> entry = this.ring.ceilingEntry(ShardRing.hash(key));
+
+        return (entry != null) ? entry.getValue() : this.ring.firstEntry().getValue();
+    }
+
+
+    /**
+     * @return List<String> - instance ids, sorted
+     */
+    List<String> getMembers() {
+        return this.members;
+    }
+
+
+    /**
+     * Share of hash space by instance
+     *
+     * @return Map<String, Double> - instance id => 0..1
+     */
+    Map<String, Double> shares() {
+
+        Map<String, Double> shares = new HashMap<>();
+
+        if(this.ring.isEmpty()) {
+            return shares;
+        }
+
+        // Point owns arc from previous point, first point owns wrapped arc from last one
+        long previous = this.ring.lastKey();
+
+        for (Map.Entry<Long, String> point : this.ring.entrySet()) {
+            double arc = (double) point.getKey() - (double) previous;
+            if(arc <= 0) {
+                arc += Math.pow(2, 64);
+            }
+            shares.merge(point.getValue(), arc / Math.pow(2, 64), Double::sum);
+            previous = point.getKey();
+        }
+
+        return shares;
+    }
+
+
+    /**
+     * First 8 bytes of MD5, same on every JVM
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long result   = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (digest[i] & 0xFF);
+            }
+            return result;
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -17,30 +17,43 @@
  */
 package core;
 
+import api.ApiGsonSingleton;
 import api.ApiRequest;
 import api.ApiResponse;
 import api.ApiCaller;
 import api.ApiRequestMethods;
+import api.ExecutionContext;
 import abstractions.AbstractCoreUnit;
+import abstractions.DTOCredentials;
+import abstractions.DTONodeAssignment;
 import abstractions.DTOVariableConvertResult;
+import abstractions.JobPlanCache;
+import abstractions.NodeHashIndex;
+import abstractions.TaskProgress;
+import abstractions.TaskScope;
+import abstractions.WorkerResultAggregator;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.function.BiConsumer;
 
 /*
  * Google gson
  */
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 
 /*
  * Threads executor
  */
+import java.io.IOException;
 import java.lang.reflect.Type;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Future;
 
 /*
@@ -58,26 +71,71 @@ public class Task extends AbstractCoreUnit implements Runnable
 
     private int threadCount = 10;
 
+    // Worker threads, shared by all tasks, and lane of this run
+    private final WorkerExecutor workerExecutor;
+    private WorkerExecutor.Lane lane = null;
+
+    // Live node counters of this run, shown in shell
+    private TaskProgress progress = null;
+
+    // Set by 'cbackup cancel' from shell thread
+    private volatile boolean cancelled = false;
+
+    // Ring of sharded daemons, taken at run start, null - all nodes are run here. Nodes of other instances
+    private ShardRing shard = null;
+    private int otherShards = 0;
+
+    // Max wait for interrupted workers of cancelled run, ms
+    static final long CANCEL_DRAIN_TIMEOUT = 30000;
+
     // Worker's success-fail counters for output
     private int success = 0;
     private int failed  = 0;
 
-    private Gson gson = new Gson();
-    private Map<String, Map<String, String>> nodes;
+    private Gson gson = ApiGsonSingleton.getInstance();
+    private int nodeCount = 0;
+
+    /*
+     * Json types, resolved once
+     */
+    private static final Type NETWORK_TYPE     = new TypeToken<HashMap<String, String>>(){}.getType();
+    private static final Type CREDENTIALS_TYPE = new TypeToken<HashMap<String, DTOCredentials>>(){}.getType();
+    private static final Type VARIABLES_TYPE   = new TypeToken<HashMap<String, String>>(){}.getType();
+    private static final Type HASHES_TYPE      = new TypeToken<HashMap<String, String>>(){}.getType();
+    private static final Type EXCLUSIONS_TYPE  = new TypeToken<ArrayList<String>>(){}.getType();
+    private static final Type SUCCESS_TYPE     = new TypeToken<Boolean>(){}.getType();
+
+    // Objects shared by workers of node task run
+    private volatile TaskScope taskScope = null;
+
+    // Nodes per bulk credentials request
+    private int credentialsPageSize = 100;
+
+    // Bulk credentials endpoint availability, false - web core returned 404
+    private static volatile boolean bulkCredentialsSupported = true;
+
+    // Bulk hashes endpoint availability, false - web core returned 404
+    private static volatile boolean bulkHashesSupported = true;
 
     private Map<String, DTOVariableConvertResult> variables = new HashMap<>();
 
+    // Task start and node spread window, ms. Node worker starts at hash(nodeId) offset inside window
+    private final long startedAt = System.currentTimeMillis();
+    private long spreadWindow    = 0;
+
 
     /**
      * Constructor
      *
-     * @param coordinates  - schedule, task, node, etc..
-     * @param settings     - app settings
+     * @param coordinates    - schedule, task, node, etc..
+     * @param settings       - app settings
+     * @param workerExecutor - worker threads, shared by tasks
      */
-    Task(Map<String, String> coordinates, Map<String, String> settings)
+    Task(Map<String, String> coordinates, Map<String, String> settings, WorkerExecutor workerExecutor)
     {
-        this.coordinates.putAll(coordinates);
-        this.settings.putAll(settings);
+        this.coordinates    = ExecutionContext.of(coordinates);
+        this.settings       = ExecutionContext.of(settings);
+        this.workerExecutor = workerExecutor;
     }
 
 
@@ -93,7 +151,7 @@ public class Task extends AbstractCoreUnit implements Runnable
          * Settings verification
          */
         if (this.settings.get("systemLogLevel") == null || this.settings.get("systemLogLevel").length() == 0) {
-            this.settings.put("systemLogLevel", "INFO");
+            this.settings = ExecutionContext.of(this.settings).with("systemLogLevel", "INFO");
             String logLevelNotSetMessage = "Task " + this.coordinates.get("taskName") + ": log level is not set. Using default log level: INFO.";
             this.logMessage("WARNING", "TASK EXECUTE", logLevelNotSetMessage);
         }
@@ -115,10 +173,8 @@ public class Task extends AbstractCoreUnit implements Runnable
                 this.runSystemTask();
                 break;
             case "discovery":
-                this.runDiscovery();
-                break;
             case "node_task":
-                this.runNodeTask();
+                this.runWorkerTask();
                 break;
             case "yii_console_task":
                 this.runYiiConsoleTask();
@@ -131,6 +187,112 @@ public class Task extends AbstractCoreUnit implements Runnable
     }
 
 
+    /**
+     * Cancel run from other thread
+     * Queued workers are dropped, running workers are interrupted and their device sessions are closed
+     *
+     * @return int - closed device sessions
+     */
+    int cancel() {
+
+        this.cancelled = true;
+        this.logMessage("WARNING", "TASK CANCEL", "Task " + this.coordinates.get("taskName") + " is being cancelled.");
+
+        if(this.lane != null) {
+            this.lane.cancel();
+        }
+
+        TaskScope scope = this.taskScope;
+
+        return (scope != null) ? scope.cancel() : 0;
+    }
+
+
+    /**
+     * Wait for running workers of cancelled run
+     *
+     * @param timeout - max wait, ms
+     * @return int    - workers still running
+     */
+    int awaitDrained(long timeout) {
+        return (this.lane != null) ? this.lane.awaitIdle(timeout) : 0;
+    }
+
+
+    boolean isCancelled() {
+        return this.cancelled;
+    }
+
+
+    TaskProgress getProgress() {
+        return this.progress;
+    }
+
+
+    /**
+     * Log run, which was not started, because previous run of the task is still active
+     *
+     * @param outcome - governor decision
+     */
+    void logOverlap(TaskGovernor.Outcome outcome) {
+        String action = (outcome == TaskGovernor.Outcome.COALESCED) ? "will run again after it" : "is skipped";
+        this.logMessage("WARNING", "TASK START", "Task " + this.coordinates.get("taskName") + ": previous run is still active, this run " + action + ".");
+    }
+
+
+    /**
+     * Run discovery or node task in own lane of shared worker threads
+     * Lane parallelism is granted by governor
+     */
+    private void runWorkerTask() {
+
+        if(this.workerExecutor == null || this.workerExecutor.isShutdown()) {
+            this.logMessage("ERROR", "TASK INIT", "Task " + this.coordinates.get("taskName") + " can't start: worker pool is not running.");
+            return;
+        }
+
+        TaskGovernor governor = TaskGovernor.getInstance();
+        int requested         = this.workerExecutor.parallelism(this.threadCount);
+
+        try {
+            this.threadCount = governor.acquireWorkers(requested, Task.priorityOf(this.coordinates) == WorkerExecutor.Priority.INTERACTIVE);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.logMessage("ERROR", "TASK INIT", "Task " + this.coordinates.get("taskName") + " was interrupted while waiting for worker threads.");
+            return;
+        }
+
+        if(this.threadCount < requested) {
+            this.logMessage("INFO", "TASK INIT", "Task " + this.coordinates.get("taskName") + " got " + this.threadCount + " of " + requested + " worker threads.");
+        }
+
+        this.lane     = this.workerExecutor.openLane(this.coordinates.get("taskName"), this.threadCount, Task.priorityOf(this.coordinates));
+        this.progress = TaskRegistry.getInstance().start(this, this.coordinates.get("taskName"), this.coordinates.get("taskType"),
+                Task.priorityOf(this.coordinates).name().toLowerCase());
+
+        try {
+            if(this.coordinates.get("taskType").equals("discovery")) {
+                this.runDiscovery();
+            }
+            else {
+                this.runNodeTask();
+            }
+        }
+        finally {
+            // Workers, left in queue after early return, are cancelled
+            this.lane.close();
+            governor.releaseWorkers(this.threadCount);
+            TaskRegistry.getInstance().finish(this.progress, (this.cancelled) ? "cancelled" : "finished");
+        }
+
+        if(this.lane.getRejected() > 0) {
+            this.logMessage("WARNING", "WORKER SPAWN", "Task " + this.coordinates.get("taskName") + ": " + this.lane.getRejected() +
+                    " workers were not started, worker pool is stopped.");
+        }
+    }
+
+
     /*
      * ------------------------
      * Executing system tasks
@@ -142,9 +304,12 @@ public class Task extends AbstractCoreUnit implements Runnable
 
         Boolean systemTaskSuccess = false;
 
+        // Web core does the work while request is open, it must not be repeated
         ApiRequest systemTaskRequest = new ApiRequest(this.coordinates)
                 .setRequestMethod(ApiRequestMethods.GET)
-                .setApiMethod("v1/core/" + systemTaskApiMethod);
+                .setApiMethod("v1/core/" + systemTaskApiMethod)
+                .setIdempotent(false)
+                .setReadTimeout(this.getActionTimeout());
 
         ApiResponse systemTaskResponse = ApiCaller.request(systemTaskRequest);
 
@@ -158,11 +323,8 @@ public class Task extends AbstractCoreUnit implements Runnable
 
             String systemTaskJson = systemTaskResponse.response;
 
-            Type settingsType = new TypeToken<Boolean>() {
-            }.getType();
-
             try {
-                systemTaskSuccess = gson.fromJson(systemTaskJson, settingsType);
+                systemTaskSuccess = gson.fromJson(systemTaskJson, SUCCESS_TYPE);
             } catch (Exception e) {
                 this.logSystemException("ERROR", "TASK EXECUTE", "Can't parse system task response to boolean.", e);
             }
@@ -186,51 +348,25 @@ public class Task extends AbstractCoreUnit implements Runnable
      */
     private void runDiscovery(){
 
-        HashMap<String, HashMap<String, String>> networks;
         List<String> exclusions;
 
         /*
-         * Get networks
+         * Get exclusions IP's
+         * Needed before networks are streamed in
          */
-        ApiRequest networksRequest = new ApiRequest(this.coordinates)
+        ApiRequest exclusionsRequest = new ApiRequest(this.coordinates)
                 .setRequestMethod(ApiRequestMethods.GET)
-                .setApiMethod("v1/core/get-networks");
-
-        ApiResponse networksResponse = ApiCaller.request(networksRequest);
-
-        if (!networksResponse.success) {
-
-            /*
-             * Log record
-             * Can't get node list
-             */
-            this.logBadResponse("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't get discovery network list.", networksResponse);
-            return;
-        }
-
-        String networksJson = networksResponse.response;
+                .setApiMethod("v1/core/get-exclusions");
 
-        Type networksType = new TypeToken<HashMap<String, HashMap<String, String>>>() {
-        }.getType();
+        ApiResponse exclusionsResponse;
 
         try {
-            networks = gson.fromJson(networksJson, networksType);
-
-        } catch (JsonSyntaxException e) {
-            this.logException("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't parse discovery network list from json.", e);
+            exclusionsResponse = ApiCaller.requestCached(exclusionsRequest, EXCLUSIONS_TYPE);
+        } catch (JsonParseException e) {
+            this.logException("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't parse exclusions ip list from json.", e);
             return;
         }
 
-
-        /*
-         * Get exclusions IP's
-         */
-        ApiRequest exclusionsRequest = new ApiRequest(this.coordinates)
-                .setRequestMethod(ApiRequestMethods.GET)
-                .setApiMethod("v1/core/get-exclusions");
-
-        ApiResponse exclusionsResponse = ApiCaller.request(exclusionsRequest);
-
         if (!exclusionsResponse.success) {
 
             /*
@@ -241,130 +377,60 @@ public class Task extends AbstractCoreUnit implements Runnable
             return;
         }
 
-        String exclusionsJson = exclusionsResponse.response;
+        // Cached list is shared, read only
+        exclusions = exclusionsResponse.getParsed();
 
-        Type exclusionsType = new TypeToken<ArrayList<String>>(){}.getType();
-
-        try {
-            exclusions = gson.fromJson(exclusionsJson, exclusionsType);
-        } catch (JsonSyntaxException e) {
-            this.logException("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't parse exclusions ip list from json.", e);
-            return;
+        if(exclusions == null) {
+            exclusions = new ArrayList<>();
         }
 
-
-        /*
-         * Thread executor init
-         */
-        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threadCount); // number of threads
+        final List<String> allExclusions = exclusions;
 
         /*
          * Futures for workers results return
          */
         List<Future<Boolean>> results = new ArrayList<>();
 
-        // Adding discovery workers to executor
-        // noinspection Java8MapForEach
-        networks.entrySet().forEach(node -> {
-
-            Boolean dataValid = true;
-
-            String[] allIps = {};
-            List<String> allExclusions = new ArrayList<>();
-
-            String snmpRead  = node.getValue().get("snmp_read");
-            String version   = node.getValue().get("snmp_version");
-            String port      = node.getValue().get("port_snmp");
-            String networkId = node.getValue().get("id");
-
-            Integer snmpVer  = 1;
-            Integer snmpPort = 161;
+        /*
+         * Get networks
+         * List is read to the end before discovery workers are added to task lane, so response doesn't wait on full lane
+         */
+        ApiRequest networksRequest = new ApiRequest(this.coordinates)
+                .setRequestMethod(ApiRequestMethods.GET)
+                .setApiMethod("v1/core/get-networks")
+                .setCached(true);
 
-            if(snmpRead == null || snmpRead.length() == 0) {
-                dataValid = false;
-                String unknownTaskMessage = "Task " + this.coordinates.get("taskName") + ". Network " + node.getKey() +
-                        ": empty SNMP read community.";
-                this.logMessage("ERROR", "TASK EXECUTE", unknownTaskMessage);
-            }
-            if(version == null || version.length() == 0) {
-                dataValid = false;
-                String unknownTaskMessage = "Task " + this.coordinates.get("taskName") + ". Network " + node.getKey() +
-                        ": empty SNMP version.";
-                this.logMessage("ERROR", "TASK EXECUTE", unknownTaskMessage);
-            }
-            if(port == null || port.length() == 0) {
-                dataValid = false;
-                String unknownTaskMessage = "Task " + this.coordinates.get("taskName") + ". Network " + node.getKey() +
-                        ": empty SNMP port.";
-                this.logMessage("ERROR", "TASK EXECUTE", unknownTaskMessage);
-            }
+        ApiResponse networksResponse;
+        Map<String, Map<String, String>> networks = new LinkedHashMap<>();
 
-            if(dataValid) {
-                /*
-                 * Set SNMP version
-                 */
-                try {
-                    snmpVer = Integer.parseInt(version);
-                } catch (NumberFormatException e) {
-                    dataValid = false;
-                    String parseVersionMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't parse SNMP version of network";
-                    this.logException("ERROR", "TASK EXECUTE", parseVersionMessage, e);
-                }
+        try {
+            networksResponse = ApiCaller.requestStream(networksRequest, reader -> this.readNodeMap(reader, NETWORK_TYPE, networks::put));
+        } catch (Exception e) {
+            networksResponse = null;
+            this.logException("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't parse discovery network list from json.", e);
+        }
 
-                /*
-                 * Set SNMP port
-                 */
-                try {
-                    snmpPort = Integer.parseInt(port);
-                } catch (NumberFormatException e) {
-                    dataValid = false;
-                    String parsePortMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't parse SNMP port to integer.";
-                    this.logException("WARNING", "TASK EXECUTE", parsePortMessage, e);
-                }
-            }
+        for (Map.Entry<String, Map<String, String>> network : networks.entrySet()) {
+            this.spawnDiscoveryWorkers(results, network.getKey(), network.getValue(), allExclusions);
+        }
 
+        if (networksResponse != null && !networksResponse.success) {
 
             /*
-             * Calculating all IPs of current subnet
+             * Log record
+             * Can't get node list
              */
-            if(dataValid) {
-                try {
-                    SubnetUtils subnet = new SubnetUtils(node.getKey());
-
-                    /*
-                     * If exclusions ip is in subnet range, add it to exclusuins list
-                     */
-                    for (String exclusionIp : exclusions) {
-                        try {
-                            if (subnet.getInfo().isInRange(exclusionIp)) {
-                                allExclusions.add(exclusionIp);
-                            }
-                        } catch(IllegalArgumentException e){
-                            dataValid = false;
-                            String validateExclusionsMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": wrong exclusion ip " + exclusionIp;
-                            this.logException("WARNING", "TASK EXECUTE", validateExclusionsMessage, e);
-                        }
-                    }
-
-                    allIps = subnet.getInfo().getAllAddresses();
-                } catch (Exception e) {
-                    dataValid = false;
-                    String extractIpsMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't extract IPs from subnet.";
-                    this.logException("WARNING", "TASK EXECUTE", extractIpsMessage, e);
-                }
-            }
+            this.logBadResponse("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't get discovery network list.", networksResponse);
+        }
 
-            if(dataValid) {
-                for (String ip : allIps) {
-                    if(!allExclusions.contains(ip)) {
-                        Map<String, String> currentCoord = new HashMap<>();
-                        currentCoord.putAll(this.coordinates);
-                        currentCoord.put("nodeIp", ip);
-                        results.add(executor.submit(new WorkerDiscovery(currentCoord, this.settings, networkId, snmpVer, snmpRead, snmpPort)));
-                    }
-                }
+        /*
+         * Nothing to wait for, if network list is not received
+         */
+        if (networksResponse == null || !networksResponse.success) {
+            if(results.isEmpty()) {
+                return;
             }
-        });
+        }
 
         for (Future<Boolean> result : results) {
 
@@ -379,24 +445,136 @@ public class Task extends AbstractCoreUnit implements Runnable
                     this.failed++;
                 }
 
+            } catch (CancellationException e) {
+                this.failed++;
             } catch (Exception e) {
                 this.logException("ERROR", "TASK GET WORKER RESPONSE", "Task " + this.coordinates.get("taskName") + " was interrupted while waiting for discovery worker result.", e);
                 return;
             }
         }
 
-        executor.shutdown();
-
         /*
          * Task finish log
          */
-        String finalMessage = "Task " + this.coordinates.get("taskName") + " has been finished. " +
+        String finalMessage = "Task " + this.coordinates.get("taskName") + ((this.cancelled) ? " was cancelled. " : " has been finished. ") +
                 " Success: " + this.success + ". Failed or offline: " + this.failed + ".";
         this.logMessage("INFO", "TASK FINISH", finalMessage);
 
     }
 
 
+    /**
+     * Add discovery workers of one network to task lane
+     *
+     * @param results     - worker futures
+     * @param network     - network in CIDR notation
+     * @param networkData - network SNMP settings
+     * @param exclusions  - excluded IPs
+     */
+    private void spawnDiscoveryWorkers(List<Future<Boolean>> results, String network, Map<String, String> networkData, List<String> exclusions) {
+
+        if(this.cancelled) {
+            return;
+        }
+
+        Boolean dataValid = true;
+
+        String[] allIps = {};
+        List<String> allExclusions = new ArrayList<>();
+
+        String snmpRead  = networkData.get("snmp_read");
+        String version   = networkData.get("snmp_version");
+        String port      = networkData.get("port_snmp");
+        String networkId = networkData.get("id");
+
+        Integer snmpVer  = 1;
+        Integer snmpPort = 161;
+
+        if(snmpRead == null || snmpRead.length() == 0) {
+            dataValid = false;
+            String unknownTaskMessage = "Task " + this.coordinates.get("taskName") + ". Network " + network +
+                    ": empty SNMP read community.";
+            this.logMessage("ERROR", "TASK EXECUTE", unknownTaskMessage);
+        }
+        if(version == null || version.length() == 0) {
+            dataValid = false;
+            String unknownTaskMessage = "Task " + this.coordinates.get("taskName") + ". Network " + network +
+                    ": empty SNMP version.";
+            this.logMessage("ERROR", "TASK EXECUTE", unknownTaskMessage);
+        }
+        if(port == null || port.length() == 0) {
+            dataValid = false;
+            String unknownTaskMessage = "Task " + this.coordinates.get("taskName") + ". Network " + network +
+                    ": empty SNMP port.";
+            this.logMessage("ERROR", "TASK EXECUTE", unknownTaskMessage);
+        }
+
+        if(dataValid) {
+            /*
+             * Set SNMP version
+             */
+            try {
+                snmpVer = Integer.parseInt(version);
+            } catch (NumberFormatException e) {
+                dataValid = false;
+                String parseVersionMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't parse SNMP version of network";
+                this.logException("ERROR", "TASK EXECUTE", parseVersionMessage, e);
+            }
+
+            /*
+             * Set SNMP port
+             */
+            try {
+                snmpPort = Integer.parseInt(port);
+            } catch (NumberFormatException e) {
+                dataValid = false;
+                String parsePortMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't parse SNMP port to integer.";
+                this.logException("WARNING", "TASK EXECUTE", parsePortMessage, e);
+            }
+        }
+
+
+        /*
+         * Calculating all IPs of current subnet
+         */
+        if(dataValid) {
+            try {
+                SubnetUtils subnet = new SubnetUtils(network);
+
+                /*
+                 * If exclusions ip is in subnet range, add it to exclusuins list
+                 */
+                for (String exclusionIp : exclusions) {
+                    try {
+                        if (subnet.getInfo().isInRange(exclusionIp)) {
+                            allExclusions.add(exclusionIp);
+                        }
+                    } catch(IllegalArgumentException e){
+                        dataValid = false;
+                        String validateExclusionsMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": wrong exclusion ip " + exclusionIp;
+                        this.logException("WARNING", "TASK EXECUTE", validateExclusionsMessage, e);
+                    }
+                }
+
+                allIps = subnet.getInfo().getAllAddresses();
+            } catch (Exception e) {
+                dataValid = false;
+                String extractIpsMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": can't extract IPs from subnet.";
+                this.logException("WARNING", "TASK EXECUTE", extractIpsMessage, e);
+            }
+        }
+
+        if(dataValid) {
+            for (String ip : allIps) {
+                if(!allExclusions.contains(ip)) {
+                    Map<String, String> currentCoord = ExecutionContext.of(this.coordinates).with("nodeIp", ip);
+                    results.add(this.lane.submit(this.progress.track(new WorkerDiscovery(currentCoord, this.settings, networkId, snmpVer, snmpRead, snmpPort))));
+                }
+            }
+        }
+    }
+
+
     /*
      * ---------------------
      * Executing node tasks
@@ -414,7 +592,15 @@ public class Task extends AbstractCoreUnit implements Runnable
                 .setRequestMethod(ApiRequestMethods.GET)
                 .setApiMethod("v1/core/get-variables");
 
-        ApiResponse variablesResponse = ApiCaller.request(variablesRequest);
+        ApiResponse variablesResponse;
+
+        try {
+            variablesResponse = ApiCaller.requestCached(variablesRequest, VARIABLES_TYPE);
+        }
+        catch(Exception e) {
+            this.logSystemException("ERROR", "TASK GET CUSTOM VARIABLES", "Can't parse variables list from json.", e);
+            return;
+        }
 
         if(!variablesResponse.success) {
             /*
@@ -425,14 +611,10 @@ public class Task extends AbstractCoreUnit implements Runnable
             return;
         }
 
-        String variablesJson = variablesResponse.response;
-
-        Type variablesType = new TypeToken<HashMap<String, String>>(){}.getType();
-        Map<String, String> customVariables;
+        // Cached map is shared, read only
+        Map<String, String> customVariables = variablesResponse.getParsed();
 
         try {
-            customVariables = gson.fromJson(variablesJson, variablesType);
-
             /*
              * Setting hashMap of custom user variables
              */
@@ -472,6 +654,8 @@ public class Task extends AbstractCoreUnit implements Runnable
             return;
         }
 
+        ApiRequest request;
+
         /*
          * Run node task on nodes scope
          */
@@ -484,35 +668,11 @@ public class Task extends AbstractCoreUnit implements Runnable
             params.put("schedule_id", this.coordinates.get("scheduleId"));
             params.put("task_name", this.coordinates.get("taskName"));
 
-            ApiRequest request = new ApiRequest(this.coordinates)
+            request = new ApiRequest(this.coordinates)
                     .setRequestMethod(ApiRequestMethods.GET)
                     .setApiMethod("v1/core/get-nodes-workers-by-task")
-                    .setParams(params);
-
-            ApiResponse nodesResponse = ApiCaller.request(request);
-
-            if (!nodesResponse.success) {
-                /*
-                 * Log record
-                 * Can't get node list
-                 */
-                this.logBadResponse("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't get node list from API.", nodesResponse);
-                return;
-            }
-
-            String nodesJson = nodesResponse.response;
-
-            Type nodesType = new TypeToken<HashMap<String, HashMap<String, String>>>() {
-            }.getType();
-
-            try {
-
-                this.nodes = gson.fromJson(nodesJson, nodesType);
-
-            } catch (JsonSyntaxException e) {
-                this.logException("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't parse nodes list from json.", e);
-                return;
-            }
+                    .setParams(params)
+                    .setCached(true);
         }
         else {
             /*  Run node task on single node (on demand) */
@@ -524,74 +684,134 @@ public class Task extends AbstractCoreUnit implements Runnable
             params.put("node_id", runOnNode);
             params.put("task_name", this.coordinates.get("taskName"));
 
-            ApiRequest nodeRequest = new ApiRequest(this.coordinates)
+            request = new ApiRequest(this.coordinates)
                     .setRequestMethod(ApiRequestMethods.GET)
                     .setApiMethod("v1/core/get-worker-by-node-id")
                     .setParams(params);
+        }
 
-            ApiResponse nodeResponse = ApiCaller.request(nodeRequest);
+        /*
+         * Futures for workers results return
+         */
+        List<Future<Boolean>> results = new ArrayList<>();
 
-            if (!nodeResponse.success) {
-                /*
-                 * Log record
-                 * Can't get node list
-                 */
-                this.logBadResponse("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't get node list from API.", nodeResponse);
-                return;
+        /*
+         * Worker results are uploaded in batches
+         */
+        WorkerResultAggregator resultAggregator = new WorkerResultAggregator(this.coordinates, this.settings).setProgress(this.progress);
+        long jobPlanTtl = 0;
+        try {
+            if(this.settings.get("jobPlanTtl") != null) {
+                jobPlanTtl = Long.parseLong(this.settings.get("jobPlanTtl"));
             }
+        } catch (NumberFormatException e) {
+            this.logException("WARNING", "TASK INIT", "Task " + this.coordinates.get("taskName") + " can't read job plan TTL from settings.", e);
+        }
 
-            String nodeJson = nodeResponse.response;
+        this.taskScope = new TaskScope(resultAggregator, JobPlanCache.forTask(jobPlanTtl)).setProgress(this.progress);
 
-            Type nodeType = new TypeToken<HashMap<String, HashMap<String, String>>>(){}.getType();
+        // Run was cancelled before scope was created
+        if(this.cancelled) {
+            this.taskScope.cancel();
+        }
 
-            try {
+        /*
+         * Workers are added to task lane after node list is read
+         */
+        ApiResponse nodesResponse;
 
-                this.nodes = gson.fromJson(nodeJson, nodeType);
+        try {
+            if(this.settings.get("credentialsPageSize") != null) {
+                this.credentialsPageSize = Math.max(1, Integer.parseInt(this.settings.get("credentialsPageSize")));
+            }
+        } catch (NumberFormatException e) {
+            this.logException("WARNING", "TASK INIT", "Task " + this.coordinates.get("taskName") + " can't read credentials page size from settings.", e);
+        }
 
-            } catch (JsonSyntaxException e) {
-                this.logException("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't parse nodes list from json.", e);
-                return;
+        /*
+         * Refresh local hash index for whole task
+         */
+        if(runOnNode == null && this.coordinates.get("put") != null) {
+            this.warmHashIndex();
+        }
+
+        /*
+         * Node workers of scheduled run are spread over window
+         */
+        if(runOnNode == null) {
+            this.spreadWindow = this.readSpreadWindow();
+            if(this.spreadWindow > 0) {
+                this.logMessage("INFO", "TASK INIT", "Task " + this.coordinates.get("taskName") + ": nodes are spread over " + this.spreadWindow / 1000 + " seconds.");
+            }
+        }
+
+        /*
+         * Scheduled run takes nodes of this instance only, when daemons are sharded
+         */
+        String instanceId = ShardCoordinator.getInstance().getInstanceId();
+        if(runOnNode == null && Task.priorityOf(this.coordinates) != WorkerExecutor.Priority.INTERACTIVE) {
+            this.shard = ShardCoordinator.getInstance().getRing();
+            if(this.shard != null && this.shard.getMembers().size() > 1) {
+                this.logMessage("INFO", "TASK INIT", "Task " + this.coordinates.get("taskName") + ": nodes are split between instances " +
+                        this.shard.getMembers() + ", this instance is " + instanceId + ".");
             }
         }
 
         /*
-         * Thread executor init
+         * Node list is read to the end first: nothing may block while response holds pooled connection
          */
-        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threadCount); // number of threads
+        Map<String, DTONodeAssignment> assigned = new LinkedHashMap<>();
+
+        try {
+            nodesResponse = ApiCaller.requestStream(request, reader -> this.readNodeMap(reader, DTONodeAssignment.class, (String nodeId, DTONodeAssignment node) -> {
+                if(this.shard != null && !ShardCoordinator.getInstance().owns(this.shard, nodeId)) {
+                    this.otherShards++;
+                    return;
+                }
+                this.nodeCount++;
+                assigned.put(nodeId, node);
+            }));
+        } catch (Exception e) {
+            nodesResponse = null;
+            this.logException("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't parse nodes list from json.", e);
+        }
 
         /*
-         * Futures for workers results return
+         * Credentials of page are prefetched before workers spawn
          */
-        List<Future<Boolean>> results = new ArrayList<>();
+        Map<String, DTONodeAssignment> nodePage = new LinkedHashMap<>();
 
-        // Add Workers to Executor
-        // noinspection Java8MapForEach
-        this.nodes.entrySet().forEach(node -> {
-            Map<String, String> currentCoord = new HashMap<>();
-            currentCoord.putAll(this.coordinates);
-            currentCoord.put("nodeId", node.getKey());
-            currentCoord.put("workerId", node.getValue().get("id"));
-            currentCoord.put("nodeIp", node.getValue().get("ip"));
-
-            currentCoord.put("nodeVendor", node.getValue().get("vendor"));
-            currentCoord.put("nodeModel", node.getValue().get("model"));
-
-            switch (node.getValue().get("get")) {
-                case "snmp":
-                    results.add(executor.submit(new WorkerSnmp(currentCoord, this.settings, this.variables)));
-                    break;
-                case "telnet":
-                    results.add(executor.submit(new WorkerTelnet(currentCoord, this.settings, this.variables)));
-                    break;
-                case "ssh":
-                    results.add(executor.submit(new WorkerSsh(currentCoord, this.settings, this.variables)));
-                    break;
-                default:
-                    String unknownProtocol = "Task " + this.coordinates.get("taskName") + " has unknown protocol " + node.getValue().get("get") +
-                            ". Node id: " + node.getKey();
-                    this.logMessage("ERROR", "WORKER SPAWN", unknownProtocol);
+        for (Map.Entry<String, DTONodeAssignment> entry : assigned.entrySet()) {
+            nodePage.put(entry.getKey(), entry.getValue());
+            if(nodePage.size() >= this.credentialsPageSize) {
+                this.spawnWorkerPage(results, nodePage);
             }
-        });
+        }
+
+        // Last page
+        this.spawnWorkerPage(results, nodePage);
+        assigned.clear();
+
+        if(this.shard != null) {
+            ShardCoordinator.getInstance().putTaskNodes(this.coordinates.get("taskName"), this.nodeCount);
+        }
+
+        if (nodesResponse != null && !nodesResponse.success) {
+            /*
+             * Log record
+             * Can't get node list
+             */
+            this.logBadResponse("ERROR", "TASK GET NODES", "Task " + this.coordinates.get("taskName") + " can't get node list from API.", nodesResponse);
+        }
+
+        /*
+         * Nothing to wait for, if node list is not received
+         */
+        if (nodesResponse == null || !nodesResponse.success) {
+            if(results.isEmpty()) {
+                return;
+            }
+        }
 
         for (Future<Boolean> result : results) {
 
@@ -606,24 +826,366 @@ public class Task extends AbstractCoreUnit implements Runnable
                     this.failed++;
                 }
 
+            } catch (CancellationException e) {
+                this.failed++;
             } catch (Exception e) {
                 this.logException("ERROR", "TASK GET WORKER RESPONSE", "Task " + this.coordinates.get("taskName") + " was interrupted while waiting for worker result.", e);
+                resultAggregator.close();
+                this.taskScope.clear();
+                this.saveHashIndex();
                 return;
             }
         }
 
-        executor.shutdown();
+        // Interrupted workers of cancelled run may still add results
+        if(this.cancelled) {
+            this.lane.awaitIdle(CANCEL_DRAIN_TIMEOUT);
+        }
+
+        /*
+         * Uploading rest of results
+         * Results, accepted by aggregator but not saved by API, are moved to failed
+         */
+        int notSaved = resultAggregator.close();
+        this.success -= notSaved;
+        this.failed  += notSaved;
+
+        // Results, queued in outbox, are not saved yet
+        int outboxed  = (int) this.progress.getOutboxed();
+        this.success -= outboxed;
+
+        // Wiping credentials, not taken by workers
+        this.taskScope.clear();
+
+        this.saveHashIndex();
 
         /*
          * Task finish log
          */
-        String finalMessage = "Task " + this.coordinates.get("taskName") + " has been finished. " +
-                "Nodes: " + this.nodes.size() + ". Success: " + this.success + ". Failed: " + this.failed + ".";
+        String finalMessage = "Task " + this.coordinates.get("taskName") + ((this.cancelled) ? " was cancelled. " : " has been finished. ") +
+                "Nodes: " + this.nodeCount + ". Success: " + this.success + ". Failed: " + this.failed + "." +
+                ((outboxed > 0) ? " Queued in outbox for API: " + outboxed + "." : "") +
+                ((this.shard != null && this.otherShards > 0) ? " Nodes of other instances: " + this.otherShards + "." : "");
         this.logMessage("INFO", "TASK FINISH", finalMessage);
 
     }
 
 
+    /**
+     * Prefetch credentials of nodes page and add node workers to task lane
+     * Page is cleared
+     *
+     * @param results  - worker futures
+     * @param nodePage - node id => node data
+     */
+    private void spawnWorkerPage(List<Future<Boolean>> results, Map<String, DTONodeAssignment> nodePage) {
+
+        if(nodePage.isEmpty()) {
+            return;
+        }
+
+        this.prefetchCredentials(nodePage.keySet());
+
+        for (Map.Entry<String, DTONodeAssignment> entry : nodePage.entrySet()) {
+            this.spawnWorker(results, entry.getKey(), entry.getValue());
+        }
+
+        nodePage.clear();
+    }
+
+
+    /**
+     * Get credentials of several nodes with one API call and put them to task scope
+     * Nodes without prefetched credentials are requested by workers one by one
+     *
+     * @param nodeIds - node ids
+     */
+    private void prefetchCredentials(Collection<String> nodeIds) {
+
+        if(!bulkCredentialsSupported) {
+            return;
+        }
+
+        Map<String, String> params = new HashMap<>();
+        params.put("node_ids", String.join(",", nodeIds));
+
+        ApiRequest getCredentials = new ApiRequest(this.coordinates)
+                .setRequestMethod(ApiRequestMethods.GET)
+                .setApiMethod("v1/core/get-nodes-credentials")
+                .setParams(params);
+
+        ApiResponse credentialsResponse = ApiCaller.request(getCredentials);
+
+        if(!credentialsResponse.success) {
+
+            /*
+             * Web core without bulk endpoint
+             */
+            if(credentialsResponse.responseCode == 404) {
+                bulkCredentialsSupported = false;
+                this.logSystemMessage("WARNING", "TASK GET CREDENTIALS", "Bulk credentials endpoint is not available. Credentials are requested by workers.");
+            }
+            else {
+                this.logBadResponse("WARNING", "TASK GET CREDENTIALS", "Task " + this.coordinates.get("taskName") + " can't get nodes credentials from API.", credentialsResponse);
+            }
+            return;
+        }
+
+        Map<String, DTOCredentials> credentials;
+
+        try {
+            credentials = this.gson.fromJson(credentialsResponse.response, CREDENTIALS_TYPE);
+        } catch (JsonSyntaxException e) {
+            this.logException("WARNING", "TASK GET CREDENTIALS", "Task " + this.coordinates.get("taskName") + " can't parse nodes credentials JSON.", e);
+            return;
+        }
+
+        if(credentials == null) {
+            return;
+        }
+
+        for (Map.Entry<String, DTOCredentials> entry : credentials.entrySet()) {
+            this.taskScope.putCredentials(entry.getKey(), entry.getValue());
+        }
+    }
+
+
+    /**
+     * Get last saved hashes of all task nodes with one API call and put them to local hash index
+     * If bulk call fails, workers request stale or missing hashes one by one
+     */
+    private void warmHashIndex() {
+
+        if(!bulkHashesSupported) {
+            return;
+        }
+
+        Map<String, String> params = new HashMap<>();
+        params.put("task_name", this.coordinates.get("taskName"));
+
+        ApiRequest getHashes = new ApiRequest(this.coordinates)
+                .setRequestMethod(ApiRequestMethods.GET)
+                .setApiMethod("v1/core/get-hashes")
+                .setParams(params);
+
+        ApiResponse hashesResponse = ApiCaller.request(getHashes);
+
+        if(!hashesResponse.success) {
+
+            /*
+             * Web core without bulk endpoint
+             */
+            if(hashesResponse.responseCode == 404) {
+                bulkHashesSupported = false;
+                this.logSystemMessage("WARNING", "TASK GET HASHES", "Bulk hashes endpoint is not available. Hashes are requested by workers.");
+            }
+            else {
+                this.logBadResponse("WARNING", "TASK GET HASHES", "Task " + this.coordinates.get("taskName") + " can't get node hashes from API.", hashesResponse);
+            }
+            return;
+        }
+
+        Map<String, String> hashes;
+
+        try {
+            hashes = this.gson.fromJson(hashesResponse.response, HASHES_TYPE);
+        } catch (JsonSyntaxException e) {
+            this.logException("WARNING", "TASK GET HASHES", "Task " + this.coordinates.get("taskName") + " can't parse node hashes JSON.", e);
+            return;
+        }
+
+        NodeHashIndex.getInstance().replaceTask(this.coordinates.get("taskName"), (hashes == null) ? new HashMap<>() : hashes);
+    }
+
+
+    /**
+     * Store local hash index to file
+     */
+    private void saveHashIndex() {
+        try {
+            NodeHashIndex.getInstance().save();
+        } catch (Exception e) {
+            this.logSystemException("WARNING", "TASK SAVE HASHES", "Can't save local hash index.", e);
+        }
+    }
+
+
+    /**
+     * Worker lane priority
+     * On demand node runs are marked by scheduler, otherwise priority follows task type
+     *
+     * @param coordinates             - task coordinates
+     * @return WorkerExecutor.Priority
+     */
+    static WorkerExecutor.Priority priorityOf(Map<String, String> coordinates) {
+
+        if("interactive".equals(coordinates.get("priority")) || coordinates.get("runOnNode") != null) {
+            return WorkerExecutor.Priority.INTERACTIVE;
+        }
+
+        return ("discovery".equals(coordinates.get("taskType"))) ? WorkerExecutor.Priority.DISCOVERY : WorkerExecutor.Priority.SCHEDULED;
+    }
+
+
+    /**
+     * Spread window of task, seconds in settings
+     * Window from task data wins over local per task window
+     *
+     * @return long - ms, 0 - no spreading
+     */
+    private long readSpreadWindow() {
+
+        String taskName = this.coordinates.get("taskName");
+        String window   = this.coordinates.get("spreadWindow");
+
+        if((window == null || window.length() == 0) && this.settings.get("spreadWindows") != null) {
+            for (String pair : this.settings.get("spreadWindows").split(",")) {
+                int separator = pair.indexOf('=');
+                if(separator > 0 && pair.substring(0, separator).trim().equals(taskName)) {
+                    window = pair.substring(separator + 1).trim();
+                }
+            }
+        }
+
+        if(window == null || window.length() == 0) {
+            window = this.settings.get("spreadWindow");
+        }
+
+        try {
+            return (window == null || window.length() == 0) ? 0 : Math.max(0, Long.parseLong(window)) * 1000;
+        } catch (NumberFormatException e) {
+            this.logException("WARNING", "TASK INIT", "Task " + taskName + " can't read spread window " + window + ". Nodes are not spread.", e);
+            return 0;
+        }
+    }
+
+
+    /**
+     * Delay of node worker inside spread window
+     * Offset depends on node id only, so node is processed at the same time of every run
+     *
+     * @param nodeId - node id
+     * @return long  - ms
+     */
+    private long spreadDelay(String nodeId) {
+
+        if(this.spreadWindow <= 0) {
+            return 0;
+        }
+
+        long offset = Math.floorMod(nodeId.hashCode() * 0x9E3779B97F4A7C15L >>> 16, this.spreadWindow);
+
+        return Math.max(0, this.startedAt + offset - System.currentTimeMillis());
+    }
+
+
+    /**
+     * Add node worker to task lane
+     *
+     * @param results  - worker futures
+     * @param nodeId   - node id
+     * @param node     - node data: worker id, ip, vendor, model, protocol
+     */
+    private void spawnWorker(List<Future<Boolean>> results, String nodeId, DTONodeAssignment node) {
+
+        if(this.cancelled) {
+            return;
+        }
+
+        // Node layer over task coordinates
+        Map<String, String> currentCoord = ExecutionContext.of(this.coordinates).with(
+                "nodeId", nodeId,
+                "workerId", node.getWorkerId(),
+                "nodeIp", node.getIp(),
+                "nodeVendor", node.getVendor(),
+                "nodeModel", node.getModel());
+
+        String protocol = node.getProtocol();
+        long delay      = this.spreadDelay(nodeId);
+
+        switch ((protocol == null) ? "" : protocol) {
+            case "snmp":
+                results.add(this.lane.submit(this.progress.track(new WorkerSnmp(currentCoord, this.settings, this.variables).setTaskScope(this.taskScope)), delay));
+                break;
+            case "telnet":
+                results.add(this.lane.submit(this.progress.track(new WorkerTelnet(currentCoord, this.settings, this.variables).setTaskScope(this.taskScope)), delay));
+                break;
+            case "ssh":
+                results.add(this.lane.submit(this.progress.track(new WorkerSsh(currentCoord, this.settings, this.variables).setTaskScope(this.taskScope)), delay));
+                break;
+            default:
+                String unknownProtocol = "Task " + this.coordinates.get("taskName") + " has unknown protocol " + protocol +
+                        ". Node id: " + nodeId;
+                this.logMessage("ERROR", "WORKER SPAWN", unknownProtocol);
+        }
+    }
+
+
+    /**
+     * Read json object {"key": {"field": "value", ..}, ..} entry by entry
+     * Empty list may come as [] or null
+     *
+     * @param reader   - json reader
+     * @param type     - entry value type
+     * @param consumer - entry consumer
+     * @param <T>      - entry value type
+     * @throws IOException on read or json syntax error
+     */
+    private <T> void readNodeMap(JsonReader reader, Type type, BiConsumer<String, T> consumer) throws IOException {
+
+        @SuppressWarnings("unchecked")
+        TypeAdapter<T> adapter = (TypeAdapter<T>) this.gson.getAdapter(TypeToken.get(type));
+
+        switch (reader.peek()) {
+            case NULL:
+                reader.nextNull();
+                return;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                reader.endArray();
+                return;
+            default:
+                reader.beginObject();
+        }
+
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            T value;
+
+            try {
+                value = adapter.read(reader);
+            } catch (JsonParseException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+
+            if(value != null) {
+                consumer.accept(key, value);
+            }
+        }
+
+        reader.endObject();
+    }
+
+
+    /**
+     * Read timeout of requests, which run work on web core
+     *
+     * @return int - timeout, ms. 0 - no timeout
+     */
+    private int getActionTimeout()
+    {
+        try {
+            if(this.settings.get("apiActionTimeout") != null) {
+                return Math.max(0, Integer.parseInt(this.settings.get("apiActionTimeout")));
+            }
+        } catch (NumberFormatException e) {
+            this.logException("WARNING", "TASK INIT", "Task " + this.coordinates.get("taskName") + " can't read API action timeout from settings.", e);
+        }
+
+        return 0;
+    }
+
+
     /**
      * Executing yii command task
      */
@@ -636,7 +1198,9 @@ public class Task extends AbstractCoreUnit implements Runnable
         ApiRequest runYiiCommandRequest = new ApiRequest(this.coordinates)
                 .setRequestMethod(ApiRequestMethods.GET)
                 .setApiMethod("v1/core/run-console-command")
-                .setParams(params);
+                .setParams(params)
+                .setIdempotent(false)
+                .setReadTimeout(this.getActionTimeout());
 
         ApiResponse runYiiCommandResponse = ApiCaller.request(runYiiCommandRequest);
 
@@ -0,0 +1,355 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import abstractions.DTOGovernorStats;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Admission of scheduled task runs
+ * Overlapping runs of the same task are skipped, queued or coalesced, by policy of task.
+ * Concurrent tasks and worker threads of all tasks are capped, 0 - no limit.
+ * Implemented using the singleton pattern.
+ */
+final class TaskGovernor {
+
+    private final static TaskGovernor _instance = new TaskGovernor();
+
+    /*
+     * What to do with new run, when previous run of the task is still active
+     * SKIP     - drop new run
+     * QUEUE    - wait for previous run, up to max queued runs per task
+     * COALESCE - run once more after previous run, all triggers meanwhile are merged
+     */
+    enum OverlapPolicy {
+        SKIP, QUEUE, COALESCE;
+
+        static OverlapPolicy parse(String value, OverlapPolicy fallback) {
+            if(value == null || value.trim().length() == 0) {
+                return fallback;
+            }
+            try {
+                return OverlapPolicy.valueOf(value.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                return fallback;
+            }
+        }
+    }
+
+    /*
+     * Admission outcome
+     */
+    enum Outcome { ADMITTED, SKIPPED, COALESCED }
+
+    /*
+     * Runs of one task, guarded by governor
+     */
+    private static final class Slot {
+        boolean active  = false;
+        boolean rerun   = false;
+        int waiting     = 0;
+    }
+
+    // All state below is guarded by this
+    private final Map<String, Slot> slots = new HashMap<>();
+
+    private OverlapPolicy defaultPolicy          = OverlapPolicy.SKIP;
+    private Map<String, OverlapPolicy> policies  = Collections.emptyMap();
+    private int maxQueuedRuns                    = 1;
+    private int maxTasks                         = 0;
+    private int maxWorkers                       = 0;
+
+    private int runningTasks   = 0;
+    private int waitingTasks   = 0;
+    private int workerThreads  = 0;
+    private int waitingWorkers = 0;
+
+    /*
+     * Stats
+     */
+    private long started   = 0;
+    private long skipped   = 0;
+    private long queued    = 0;
+    private long coalesced = 0;
+    private long throttled = 0;
+
+
+    private TaskGovernor() {
+        super();
+    }
+
+    static TaskGovernor getInstance() {
+        return _instance;
+    }
+
+
+    /**
+     * @param maxTasks      - max concurrent task runs, 0 - no limit
+     * @param maxWorkers    - max worker threads of all tasks, 0 - no limit
+     * @param defaultPolicy - skip, queue or coalesce
+     * @param policies      - per task policies, 'taskName=policy,..'
+     * @param maxQueuedRuns - max runs of one task waiting with queue policy
+     */
+    synchronized void configure(int maxTasks, int maxWorkers, String defaultPolicy, String policies, int maxQueuedRuns) {
+
+        this.maxTasks      = Math.max(0, maxTasks);
+        this.maxWorkers    = Math.max(0, maxWorkers);
+        this.defaultPolicy = OverlapPolicy.parse(defaultPolicy, OverlapPolicy.SKIP);
+        this.maxQueuedRuns = Math.max(1, maxQueuedRuns);
+
+        Map<String, OverlapPolicy> parsed = new HashMap<>();
+
+        if(policies != null) {
+            for (String pair : policies.split(",")) {
+                int separator = pair.indexOf('=');
+                if(separator > 0) {
+                    parsed.put(pair.substring(0, separator).trim(), OverlapPolicy.parse(pair.substring(separator + 1), this.defaultPolicy));
+                }
+            }
+        }
+
+        this.policies = parsed;
+
+        // Limits could be raised
+        this.notifyAll();
+    }
+
+
+    /**
+     * Overlap policy of task
+     * Policy sent by API wins over local per task policy
+     *
+     * @param taskName       - task name
+     * @param apiPolicy      - policy from task data, may be null
+     * @return OverlapPolicy
+     */
+    synchronized OverlapPolicy policyOf(String taskName, String apiPolicy) {
+        return OverlapPolicy.parse(apiPolicy, this.policies.getOrDefault(taskName, this.defaultPolicy));
+    }
+
+
+    /**
+     * Admit task run
+     * Blocks while queued behind previous run of the task or while all task slots are taken.
+     * Interactive runs are not held by task limit.
+     * Admitted run must be finished with exit()
+     *
+     * @param key         - task key
+     * @param policy      - overlap policy
+     * @param interactive - on demand run
+     * @return Outcome
+     * @throws InterruptedException if waiting thread is interrupted
+     */
+    synchronized Outcome enter(String key, OverlapPolicy policy, boolean interactive) throws InterruptedException {
+
+        Slot slot = this.slots.computeIfAbsent(key, current -> new Slot());
+
+        if(slot.active) {
+            switch (policy) {
+                case COALESCE:
+                    slot.rerun = true;
+                    this.coalesced++;
+                    return Outcome.COALESCED;
+                case QUEUE:
+                    if(slot.waiting >= this.maxQueuedRuns) {
+                        // Queue is full
+                        this.skipped++;
+                        return Outcome.SKIPPED;
+                    }
+                    break;
+                default:
+                    this.skipped++;
+                    return Outcome.SKIPPED;
+            }
+
+            slot.waiting++;
+            this.waitingTasks++;
+            this.queued++;
+            boolean waited = false;
+            try {
+                while (slot.active) {
+                    this.wait();
+                }
+                waited = true;
+            }
+            finally {
+                slot.waiting--;
+                this.waitingTasks--;
+                // Interrupted last waiter removes slot of finished run, as release() would
+                if(!waited && !slot.active && slot.waiting == 0) {
+                    this.slots.remove(key, slot);
+                }
+            }
+        }
+
+        slot.active = true;
+
+        if(!interactive && this.maxTasks > 0 && this.runningTasks >= this.maxTasks) {
+            this.waitingTasks++;
+            this.throttled++;
+            try {
+                while (this.maxTasks > 0 && this.runningTasks >= this.maxTasks) {
+                    this.wait();
+                }
+            }
+            catch (InterruptedException e) {
+                this.release(key, slot);
+                throw e;
+            }
+            finally {
+                this.waitingTasks--;
+            }
+        }
+
+        this.runningTasks++;
+        this.started++;
+
+        return Outcome.ADMITTED;
+    }
+
+
+    /**
+     * Finish admitted task run
+     *
+     * @param key      - task key
+     * @return boolean - true, if run was coalesced and task must run once more
+     */
+    synchronized boolean exit(String key) {
+
+        Slot slot = this.slots.get(key);
+
+        if(slot != null && slot.rerun) {
+            slot.rerun = false;
+            this.started++;
+            return true;
+        }
+
+        this.runningTasks--;
+        this.release(key, slot);
+
+        return false;
+    }
+
+
+    /**
+     * Finish admitted task run, which failed. Pending rerun is dropped
+     *
+     * @param key - task key
+     */
+    synchronized void abort(String key) {
+
+        Slot slot = this.slots.get(key);
+
+        if(slot != null) {
+            slot.rerun = false;
+        }
+
+        this.runningTasks--;
+        this.release(key, slot);
+    }
+
+
+    /**
+     * Take worker threads for task run
+     * Blocks until at least one thread is available, interactive run gets one thread over limit
+     *
+     * @param requested   - threads, wanted by task
+     * @param interactive - on demand run
+     * @return int        - granted threads, must be returned with releaseWorkers()
+     * @throws InterruptedException if waiting thread is interrupted
+     */
+    synchronized int acquireWorkers(int requested, boolean interactive) throws InterruptedException {
+
+        requested = Math.max(1, requested);
+
+        if(interactive && this.maxWorkers > 0 && this.workerThreads >= this.maxWorkers) {
+            this.workerThreads++;
+            return 1;
+        }
+
+        if(this.maxWorkers > 0 && this.workerThreads >= this.maxWorkers) {
+            this.waitingWorkers++;
+            try {
+                while (this.maxWorkers > 0 && this.workerThreads >= this.maxWorkers) {
+                    this.wait();
+                }
+            }
+            finally {
+                this.waitingWorkers--;
+            }
+        }
+
+        int granted = (this.maxWorkers > 0) ? Math.min(requested, this.maxWorkers - this.workerThreads) : requested;
+        this.workerThreads += granted;
+
+        return granted;
+    }
+
+
+    /**
+     * @param granted - acquireWorkers() result
+     */
+    synchronized void releaseWorkers(int granted) {
+        this.workerThreads -= granted;
+        this.notifyAll();
+    }
+
+
+    /**
+     * @return DTOGovernorStats
+     */
+    synchronized DTOGovernorStats getStats() {
+
+        DTOGovernorStats stats = new DTOGovernorStats();
+
+        stats.runningTasks     = this.runningTasks;
+        stats.maxTasks         = this.maxTasks;
+        stats.waitingTasks     = this.waitingTasks;
+        stats.workerThreads    = this.workerThreads;
+        stats.maxWorkerThreads = this.maxWorkers;
+        stats.waitingWorkers   = this.waitingWorkers;
+        stats.defaultPolicy    = this.defaultPolicy.name().toLowerCase();
+        stats.started          = this.started;
+        stats.skipped          = this.skipped;
+        stats.queued           = this.queued;
+        stats.coalesced        = this.coalesced;
+        stats.throttled        = this.throttled;
+
+        return stats;
+    }
+
+
+    /**
+     * Free task slot, must be called holding this
+     */
+    private void release(String key, Slot slot) {
+        if(slot != null) {
+            slot.active = false;
+            if(slot.waiting == 0) {
+                this.slots.remove(key);
+            }
+        }
+        this.notifyAll();
+    }
+
+}
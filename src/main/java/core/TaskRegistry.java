@@ -0,0 +1,147 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import abstractions.DTOTaskProgress;
+import abstractions.TaskProgress;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Registry of task runs: running ones and last finished
+ * Implemented using the singleton pattern.
+ */
+final class TaskRegistry {
+
+    private final static TaskRegistry _instance = new TaskRegistry();
+
+    private static final int FINISHED = 20;
+
+    private final AtomicLong sequence             = new AtomicLong();
+    private final Map<String, TaskProgress> runs  = new ConcurrentHashMap<>();
+    private final Map<String, Task> tasks         = new ConcurrentHashMap<>();
+
+    // Last finished runs, guarded by itself
+    private final ArrayDeque<TaskProgress> finished = new ArrayDeque<>();
+
+
+    private TaskRegistry() {
+        super();
+    }
+
+    static TaskRegistry getInstance() {
+        return _instance;
+    }
+
+
+    /**
+     * Register new run
+     *
+     * @param task          - running task
+     * @param taskName      - task name
+     * @param taskType      - task type
+     * @param priority      - worker lane priority
+     * @return TaskProgress
+     */
+    TaskProgress start(Task task, String taskName, String taskType, String priority) {
+        TaskProgress progress = new TaskProgress(String.valueOf(this.sequence.incrementAndGet()), taskName, taskType, priority);
+        this.tasks.put(progress.getRunId(), task);
+        this.runs.put(progress.getRunId(), progress);
+        return progress;
+    }
+
+
+    /**
+     * Move run to finished
+     *
+     * @param progress - run
+     * @param state    - finished, cancelled
+     */
+    void finish(TaskProgress progress, String state) {
+
+        progress.finish(state);
+        this.runs.remove(progress.getRunId());
+        this.tasks.remove(progress.getRunId());
+
+        synchronized (this.finished) {
+            this.finished.addFirst(progress);
+            while (this.finished.size() > FINISHED) {
+                this.finished.removeLast();
+            }
+        }
+    }
+
+
+    /**
+     * Running runs by run id or task name
+     *
+     * @param target      - run id or task name
+     * @return List<Task> - matching runs, oldest first
+     */
+    List<Task> find(String target) {
+        List<Task> result = new ArrayList<>();
+        for (TaskProgress progress : this.getSorted()) {
+            Task task = this.tasks.get(progress.getRunId());
+            if(task != null && (progress.getRunId().equals(target) || progress.getTaskName().equals(target))) {
+                result.add(task);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * @return List<DTOTaskProgress> - running runs by start, oldest first
+     */
+    List<DTOTaskProgress> getRunning() {
+        List<DTOTaskProgress> result = new ArrayList<>();
+        for (TaskProgress progress : this.getSorted()) {
+            result.add(progress.getSnapshot());
+        }
+        return result;
+    }
+
+
+    /**
+     * @return List<DTOTaskProgress> - finished runs, last first
+     */
+    List<DTOTaskProgress> getFinished() {
+        List<DTOTaskProgress> result = new ArrayList<>();
+        synchronized (this.finished) {
+            for (TaskProgress progress : this.finished) {
+                result.add(progress.getSnapshot());
+            }
+        }
+        return result;
+    }
+
+
+    private List<TaskProgress> getSorted() {
+        List<TaskProgress> result = new ArrayList<>(this.runs.values());
+        result.sort(Comparator.comparingLong(current -> Long.parseLong(current.getRunId())));
+        return result;
+    }
+
+}
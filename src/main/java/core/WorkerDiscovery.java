@@ -23,9 +23,11 @@ import abstractions.AbstractCoreUnit;
  * SNMP
  */
 import api.ApiCaller;
+import api.ApiGsonSingleton;
 import api.ApiRequest;
 import api.ApiRequestMethods;
 import api.ApiResponse;
+import api.ExecutionContext;
 import org.snmp4j.CommunityTarget;
 import org.snmp4j.PDU;
 import org.snmp4j.Snmp;
@@ -54,7 +56,7 @@ import java.lang.reflect.Type;
 public class WorkerDiscovery extends AbstractCoreUnit implements Callable<Boolean>
 {
 
-    private Gson gson = new Gson();
+    private Gson gson = ApiGsonSingleton.getInstance();
 
     private Integer snmpVer;
     private Integer snmpPort;
@@ -124,8 +126,8 @@ public class WorkerDiscovery extends AbstractCoreUnit implements Callable<Boolea
      */
     WorkerDiscovery(Map<String, String> coordinates, Map<String, String> settings, String networkId, Integer snmpVer, String snmpRead, Integer snmpPort)
     {
-        this.coordinates.putAll(coordinates);
-        this.settings.putAll(settings);
+        this.coordinates = ExecutionContext.of(coordinates);
+        this.settings    = ExecutionContext.of(settings);
 
         this.snmpVer   = snmpVer;
         this.snmpPort  = snmpPort;
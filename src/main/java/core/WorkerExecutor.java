@@ -0,0 +1,764 @@
+/*
+ * This file is part of cBackup, network equipment configuration backup tool
+ * Copyright (C) 2017, Oļegs Čapligins, Imants Černovs, Dmitrijs Galočkins
+ *
+ * cBackup is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import abstractions.DTOWorkerPoolStats;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Worker threads, shared by all tasks
+ * Every task run submits workers to its own lane. Lanes are served round-robin,
+ * so big task does not starve small one, and lane runs at most its parallelism workers at once.
+ * Queued workers of all lanes are bounded, submit blocks while queue is full. Caller must not hold open API
+ * response or other shared resource while it submits, back-pressure would hold that resource too.
+ * Worker could be delayed, it waits in lane until due and does not count against queue capacity.
+ *
+ * Lanes have priority: interactive before scheduled before discovery.
+ * Starvation protection: lane, not served longer than aging interval, is raised by one priority per interval.
+ * Owned by scheduler, shut down with it.
+ *
+ * Platform mode: fixed platform threads take and run workers.
+ * Virtual mode: one dispatcher thread starts every worker on its own virtual thread (Java 21+),
+ * running workers are limited by device semaphore, not by thread count.
+ */
+final class WorkerExecutor {
+
+    private final String name;
+    private final Thread[] threads;
+    private final int capacity;
+
+    // Virtual mode only: thread per worker and concurrent devices limit
+    private final ThreadFactory virtualFactory;
+    private final Semaphore devices;
+    private final int maxDevices;
+
+    /*
+     * Lane priority, highest first
+     * INTERACTIVE - on demand runs, SCHEDULED - node tasks by cron, DISCOVERY - network discovery
+     */
+    enum Priority { INTERACTIVE, SCHEDULED, DISCOVERY }
+
+    // All state below is guarded by this
+    private final Map<Priority, ArrayDeque<Lane>> ready = new EnumMap<>(Priority.class);
+    private final Set<Lane> lanes        = new HashSet<>();
+    private final Set<Job> running       = new HashSet<>();
+
+    private int queued         = 0;
+    private int delayed        = 0;
+    private int active         = 0;
+    private long completed     = 0;
+    private long rejected      = 0;
+    private boolean shutdown   = false;
+
+    // Workers started per second, last minute. Slot is second % 60
+    private final long[] admissions       = new long[60];
+    private final long[] admissionSeconds = new long[60];
+
+    // Wait from queue to start by priority: workers started, total and max wait, ns
+    private final long[] waitCount = new long[Priority.values().length];
+    private final long[] waitTotal = new long[Priority.values().length];
+    private final long[] waitMax   = new long[Priority.values().length];
+
+    private long aging = 30000L * 1000000L;
+
+
+    /**
+     * Queued worker
+     */
+    private static final class Job extends FutureTask<Boolean> {
+
+        private final Lane lane;
+        private final long dueAt;
+        private long queuedAt = 0;
+
+        private Job(Lane lane, Callable<Boolean> worker, long dueAt) {
+            super(worker);
+            this.lane  = lane;
+            this.dueAt = dueAt;
+        }
+    }
+
+
+    /**
+     * Workers of one task run
+     */
+    final class Lane {
+
+        private final String name;
+        private final int parallelism;
+        private final Priority priority;
+
+        // Guarded by executor
+        private final ArrayDeque<Job> queue = new ArrayDeque<>();
+        private final PriorityQueue<Job> waiting = new PriorityQueue<>(Comparator.comparingLong((Job job) -> job.dueAt));
+        private long servedAt    = 0;
+        private int running      = 0;
+        private int rejected     = 0;
+        private boolean scheduled = false;
+        private boolean closed    = false;
+
+        private Lane(String name, int parallelism, Priority priority) {
+            this.name        = name;
+            this.parallelism = Math.max(1, parallelism);
+            this.priority    = priority;
+        }
+
+        /**
+         * Queue worker, blocks while queue is full
+         * Rejected worker, when executor or lane is closed, is completed with false
+         * Must not be called from API stream consumer: read list to the end, then submit
+         *
+         * @param worker            - worker
+         * @return Future<Boolean>  - worker result
+         */
+        Future<Boolean> submit(Callable<Boolean> worker) {
+            return WorkerExecutor.this.submit(this, worker, 0);
+        }
+
+        /**
+         * Queue worker, which is started not earlier than after delay
+         *
+         * @param worker            - worker
+         * @param delay             - ms
+         * @return Future<Boolean>  - worker result
+         */
+        Future<Boolean> submit(Callable<Boolean> worker, long delay) {
+            return WorkerExecutor.this.submit(this, worker, delay);
+        }
+
+        /**
+         * Cancel queued workers and release lane
+         * Running workers are finished
+         */
+        void close() {
+            WorkerExecutor.this.close(this);
+        }
+
+        /**
+         * Cancel queued workers, interrupt running workers and release lane
+         */
+        void cancel() {
+            WorkerExecutor.this.cancel(this);
+        }
+
+        /**
+         * Wait until running workers of closed lane are finished
+         *
+         * @param timeout  - max wait, ms
+         * @return int     - workers still running
+         */
+        int awaitIdle(long timeout) {
+            return WorkerExecutor.this.awaitIdle(this, timeout);
+        }
+
+        int getRunning() {
+            synchronized (WorkerExecutor.this) {
+                return this.running;
+            }
+        }
+
+        int getRejected() {
+            synchronized (WorkerExecutor.this) {
+                return this.rejected;
+            }
+        }
+    }
+
+
+    /**
+     * Constructor of platform mode, threads are started at once
+     *
+     * @param name     - thread name prefix
+     * @param threads  - worker threads
+     * @param capacity - max queued workers of all lanes
+     */
+    WorkerExecutor(String name, int threads, int capacity) {
+        this(name, threads, capacity, null, 0);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param name           - thread name prefix
+     * @param threads        - worker threads, ignored in virtual mode
+     * @param capacity       - max queued workers of all lanes
+     * @param virtualFactory - virtual thread factory, null - platform mode
+     * @param maxDevices     - max running workers in virtual mode
+     */
+    private WorkerExecutor(String name, int threads, int capacity, ThreadFactory virtualFactory, int maxDevices) {
+
+        this.name           = name;
+        this.capacity       = Math.max(1, capacity);
+
+        for (Priority priority : Priority.values()) {
+            this.ready.put(priority, new ArrayDeque<>());
+        }
+
+        this.virtualFactory = virtualFactory;
+        this.maxDevices     = Math.max(1, maxDevices);
+        this.devices        = (virtualFactory != null) ? new Semaphore(this.maxDevices) : null;
+
+        if(virtualFactory != null) {
+            this.threads    = new Thread[] { new Thread(this::dispatch, name + "-dispatcher") };
+        }
+        else {
+            this.threads    = new Thread[Math.max(1, threads)];
+            for (int i = 0; i < this.threads.length; i++) {
+                this.threads[i] = new Thread(this::work, name + "-" + (i + 1));
+            }
+        }
+
+        for (Thread thread : this.threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+
+    /**
+     * Executor of virtual mode
+     *
+     * @param name            - thread name prefix
+     * @param maxDevices      - max running workers
+     * @param capacity        - max queued workers of all lanes
+     * @return WorkerExecutor - or null, if virtual threads are not supported by JVM
+     */
+    static WorkerExecutor virtual(String name, int maxDevices, int capacity) {
+        ThreadFactory factory = WorkerExecutor.virtualThreadFactory(name);
+        return (factory == null) ? null : new WorkerExecutor(name, 0, capacity, factory, maxDevices);
+    }
+
+
+    /**
+     * Virtual thread factory, looked up by reflection, code is built for Java 8
+     *
+     * @param name           - thread name prefix
+     * @return ThreadFactory - or null before Java 21
+     */
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder       = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Method naming        = builderType.getMethod("name", String.class, long.class);
+            builder              = naming.invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Parallelism of task lane
+     * In virtual mode thread count of task does not limit devices
+     *
+     * @param threadCount - task threads from settings
+     * @return int
+     */
+    int parallelism(int threadCount) {
+        return (this.virtualFactory != null) ? this.maxDevices : threadCount;
+    }
+
+
+    /**
+     * @param aging - ms of waiting, after which worker is raised by one priority
+     */
+    synchronized void setAging(long aging) {
+        this.aging = Math.max(1, aging) * 1000000L;
+    }
+
+
+    /**
+     * @param name        - lane name, task name
+     * @param parallelism - max running workers of lane
+     * @param priority    - lane priority
+     * @return Lane
+     */
+    synchronized Lane openLane(String name, int parallelism, Priority priority) {
+        Lane lane = new Lane(name, parallelism, priority);
+        if(this.shutdown) {
+            lane.closed = true;
+        }
+        else {
+            this.lanes.add(lane);
+        }
+        return lane;
+    }
+
+
+    /**
+     * Cancel queued workers, interrupt running workers and stop threads
+     *
+     * @param timeout - max wait for threads, ms
+     */
+    void shutdown(long timeout) {
+
+        synchronized (this) {
+            if(this.shutdown) {
+                return;
+            }
+            this.shutdown = true;
+            for (Lane lane : new HashSet<>(this.lanes)) {
+                this.close(lane);
+            }
+            // Interrupts running workers
+            for (Job job : this.running) {
+                job.cancel(true);
+            }
+            this.notifyAll();
+        }
+
+        for (Thread thread : this.threads) {
+            thread.interrupt();
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        try {
+            for (Thread thread : this.threads) {
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * @return boolean
+     */
+    synchronized boolean isShutdown() {
+        return this.shutdown;
+    }
+
+
+    /**
+     * @return DTOWorkerPoolStats
+     */
+    synchronized DTOWorkerPoolStats getStats() {
+
+        DTOWorkerPoolStats stats = new DTOWorkerPoolStats();
+
+        stats.mode      = (this.virtualFactory != null) ? "virtual" : "platform";
+        stats.threads   = (this.virtualFactory != null) ? this.maxDevices : this.threads.length;
+        stats.active    = this.active;
+        stats.queued    = this.queued;
+        stats.delayed   = this.delayed;
+        stats.capacity  = this.capacity;
+        stats.lanes     = this.lanes.size();
+        stats.completed = this.completed;
+        stats.rejected  = this.rejected;
+
+        long second = System.currentTimeMillis() / 1000;
+        long started = 0;
+        for (int i = 0; i < this.admissions.length; i++) {
+            if(second - this.admissionSeconds[i] < this.admissions.length) {
+                started += this.admissions[i];
+            }
+        }
+        stats.admissionRate = Math.round(started * 100.0 / this.admissions.length) / 100.0;
+
+        Map<String, DTOWorkerPoolStats.PriorityStats> priorities = new LinkedHashMap<>();
+        for (Priority priority : Priority.values()) {
+            DTOWorkerPoolStats.PriorityStats current = new DTOWorkerPoolStats.PriorityStats();
+            int index          = priority.ordinal();
+            current.started    = this.waitCount[index];
+            current.meanWaitMs = (this.waitCount[index] == 0) ? 0 : Math.round(this.waitTotal[index] / 100000.0 / this.waitCount[index]) / 10.0;
+            current.maxWaitMs  = Math.round(this.waitMax[index] / 100000.0) / 10.0;
+            for (Lane lane : this.lanes) {
+                if(lane.priority == priority) {
+                    current.lanes++;
+                    current.queued += lane.queue.size();
+                }
+            }
+            priorities.put(priority.name().toLowerCase(), current);
+        }
+        stats.priorities = priorities;
+
+        return stats;
+    }
+
+
+    private synchronized Future<Boolean> submit(Lane lane, Callable<Boolean> worker, long delay) {
+
+        if(delay > 0 && !this.shutdown && !lane.closed) {
+            Job job = new Job(lane, worker, System.nanoTime() + delay * 1000000L);
+            lane.waiting.add(job);
+            this.delayed++;
+            // Waiting threads recalculate next due time
+            this.notifyAll();
+            return job;
+        }
+
+        // Backpressure: task stops spawning workers while queue is full. On demand runs are not held
+        while (!this.shutdown && !lane.closed && this.queued >= this.capacity && lane.priority != Priority.INTERACTIVE) {
+            try {
+                this.wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if(this.shutdown || lane.closed || (this.queued >= this.capacity && lane.priority != Priority.INTERACTIVE)) {
+            this.rejected++;
+            lane.rejected++;
+            return CompletableFuture.completedFuture(false);
+        }
+
+        Job job      = new Job(lane, worker, 0);
+        job.queuedAt = System.nanoTime();
+        if(lane.queue.isEmpty()) {
+            lane.servedAt = job.queuedAt;
+        }
+        lane.queue.add(job);
+        this.queued++;
+        this.schedule(lane);
+
+        return job;
+    }
+
+
+    private synchronized void close(Lane lane) {
+
+        if(!lane.closed) {
+            lane.closed = true;
+            for (Job job : lane.queue) {
+                job.cancel(false);
+            }
+            for (Job job : lane.waiting) {
+                job.cancel(false);
+            }
+            this.queued  -= lane.queue.size();
+            this.delayed -= lane.waiting.size();
+            lane.queue.clear();
+            lane.waiting.clear();
+            this.ready.get(lane.priority).remove(lane);
+            lane.scheduled = false;
+        }
+
+        this.lanes.remove(lane);
+        this.notifyAll();
+    }
+
+
+    private synchronized void cancel(Lane lane) {
+
+        this.close(lane);
+
+        for (Job job : this.running) {
+            if(job.lane == lane) {
+                job.cancel(true);
+            }
+        }
+    }
+
+
+    private synchronized int awaitIdle(Lane lane, long timeout) {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (lane.running > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                this.wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return lane.running;
+    }
+
+
+    /**
+     * Put lane to the end of ready queue, if it has queued workers and free parallelism
+     * Must be called holding this
+     */
+    private void schedule(Lane lane) {
+        if(!lane.scheduled && !lane.closed && !lane.queue.isEmpty() && lane.running < lane.parallelism) {
+            lane.scheduled = true;
+            this.ready.get(lane.priority).add(lane);
+            this.notifyAll();
+        }
+    }
+
+
+    /**
+     * Worker thread loop of platform mode
+     */
+    private void work() {
+
+        while (true) {
+
+            Job job = this.take();
+
+            if(job == null) {
+                return;
+            }
+
+            this.run(job);
+        }
+    }
+
+
+    /**
+     * Dispatcher loop of virtual mode
+     * Device permit is taken before worker is taken, so queue order is kept while devices are busy
+     */
+    private void dispatch() {
+
+        while (true) {
+
+            try {
+                this.devices.acquire();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            Job job = this.take();
+
+            if(job == null) {
+                this.devices.release();
+                return;
+            }
+
+            try {
+                this.virtualFactory.newThread(() -> {
+                    try {
+                        this.run(job);
+                    }
+                    finally {
+                        this.devices.release();
+                    }
+                }).start();
+            }
+            catch (RuntimeException | Error e) {
+                job.cancel(false);
+                this.finish(job);
+                this.devices.release();
+            }
+        }
+    }
+
+
+    /**
+     * Take next worker: highest priority lane, round-robin over lanes of the same priority
+     *
+     * @return Job - or null on shutdown
+     */
+    private synchronized Job take() {
+
+        while (!this.shutdown && this.promote() && this.nextReady() == null) {
+            try {
+                long next = this.nextDue();
+                if(next == Long.MAX_VALUE) {
+                    this.wait();
+                }
+                else {
+                    this.wait(Math.max(1, (next - System.nanoTime()) / 1000000L + 1));
+                }
+            }
+            catch (InterruptedException ignored) {
+                // shutdown flag is checked by loop
+            }
+        }
+
+        ArrayDeque<Lane> candidates = this.nextReady();
+
+        if(this.shutdown || candidates == null) {
+            return null;
+        }
+
+        Lane lane      = candidates.poll();
+        lane.scheduled = false;
+        Job job        = lane.queue.poll();
+
+        long now        = System.nanoTime();
+        int index       = lane.priority.ordinal();
+        long waited     = now - job.queuedAt;
+        lane.servedAt   = now;
+        this.waitCount[index]++;
+        this.waitTotal[index] += waited;
+        this.waitMax[index]    = Math.max(this.waitMax[index], waited);
+        lane.running++;
+        this.queued--;
+        this.active++;
+        this.running.add(job);
+
+        long second = System.currentTimeMillis() / 1000;
+        int slot    = (int) (second % this.admissions.length);
+        if(this.admissionSeconds[slot] != second) {
+            this.admissionSeconds[slot] = second;
+            this.admissions[slot]       = 0;
+        }
+        this.admissions[slot]++;
+
+        // Next worker of the lane waits for other lanes
+        this.schedule(lane);
+        this.notifyAll();
+
+        return job;
+    }
+
+
+    /**
+     * Ready lanes to take from, must be called holding this
+     * Priority of lane is raised by one for every aging interval, it was not served
+     *
+     * @return ArrayDeque<Lane> - or null, if nothing is ready
+     */
+    private ArrayDeque<Lane> nextReady() {
+
+        ArrayDeque<Lane> best = null;
+        long bestRank         = Long.MAX_VALUE;
+        long now              = System.nanoTime();
+
+        for (Map.Entry<Priority, ArrayDeque<Lane>> entry : this.ready.entrySet()) {
+
+            Lane head = entry.getValue().peek();
+
+            if(head == null) {
+                continue;
+            }
+
+            long rank = entry.getKey().ordinal() - (now - head.servedAt) / this.aging;
+
+            if(rank < bestRank) {
+                bestRank = rank;
+                best     = entry.getValue();
+            }
+        }
+
+        return best;
+    }
+
+
+    /**
+     * Move due delayed workers to lane queues, must be called holding this
+     *
+     * @return true, always - to be used in loop condition
+     */
+    private boolean promote() {
+
+        if(this.delayed == 0) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+
+        for (Lane lane : this.lanes) {
+            Job job;
+            while ((job = lane.waiting.peek()) != null && job.dueAt - now <= 0) {
+                lane.waiting.poll();
+                job.queuedAt = now;
+                if(lane.queue.isEmpty()) {
+                    lane.servedAt = now;
+                }
+                lane.queue.add(job);
+                this.delayed--;
+                this.queued++;
+            }
+            this.schedule(lane);
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Earliest due time of delayed workers, must be called holding this
+     *
+     * @return long - nano time, Long.MAX_VALUE if nothing is delayed
+     */
+    private long nextDue() {
+
+        long next = Long.MAX_VALUE;
+
+        if(this.delayed > 0) {
+            for (Lane lane : this.lanes) {
+                Job job = lane.waiting.peek();
+                if(job != null && job.dueAt < next) {
+                    next = job.dueAt;
+                }
+            }
+        }
+
+        return next;
+    }
+
+
+    /**
+     * Run taken worker
+     */
+    private void run(Job job) {
+        try {
+            job.run();
+        }
+        finally {
+            // Interrupt, addressed to finished worker
+            if(!this.isShutdown()) {
+                //noinspection ResultOfMethodCallIgnored
+                Thread.interrupted();
+            }
+            this.finish(job);
+        }
+    }
+
+
+    private synchronized void finish(Job job) {
+        this.running.remove(job);
+        job.lane.running--;
+        this.active--;
+        this.completed++;
+        this.schedule(job.lane);
+        // Wakes awaitIdle() of closed lane
+        if(job.lane.closed && job.lane.running == 0) {
+            this.notifyAll();
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+
+}
@@ -23,6 +23,7 @@ import abstractions.AbstractWorker;
 import abstractions.AbstractProtocol;
 import abstractions.DTOProtocolResult;
 import abstractions.DTOVariableConvertResult;
+import api.ExecutionContext;
 import snmp.FactoryMethodSnmp;
 
 
@@ -42,8 +43,8 @@ public final class WorkerSnmp extends AbstractWorker
      */
     public WorkerSnmp(Map<String, String> coordinates, Map<String, String> settings, Map<String, DTOVariableConvertResult> variables)
     {
-        this.coordinates.putAll(coordinates);
-        this.settings.putAll(settings);
+        this.coordinates = ExecutionContext.of(coordinates);
+        this.settings    = ExecutionContext.of(settings);
         this.variables.putAll(variables);
 
         /*
@@ -73,7 +74,9 @@ public final class WorkerSnmp extends AbstractWorker
 
         if(snmpExecutor !=null) {
 
-            DTOProtocolResult protocolResult = snmpExecutor.execute();
+            snmpExecutor.setJobPlan(this.jobPlan);
+
+            DTOProtocolResult protocolResult = this.executeProtocol(snmpExecutor);
 
             if(!protocolResult.success) {
                 return false;
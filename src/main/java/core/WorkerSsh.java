@@ -23,6 +23,7 @@ import abstractions.AbstractWorker;
 import abstractions.DTOProtocolResult;
 import abstractions.AbstractProtocol;
 import abstractions.DTOVariableConvertResult;
+import api.ExecutionContext;
 import ssh.FactoryMethodSsh;
 
 
@@ -42,8 +43,8 @@ public final class WorkerSsh extends AbstractWorker
      */
     public WorkerSsh(Map<String, String> coordinates, Map<String, String> settings, Map<String, DTOVariableConvertResult> variables)
     {
-        this.coordinates.putAll(coordinates);
-        this.settings.putAll(settings);
+        this.coordinates = ExecutionContext.of(coordinates);
+        this.settings    = ExecutionContext.of(settings);
         this.variables.putAll(variables);
 
         /*
@@ -71,7 +72,9 @@ public final class WorkerSsh extends AbstractWorker
 
         if(sshExecutor !=null) {
 
-            DTOProtocolResult protocolResult = sshExecutor.execute();
+            sshExecutor.setJobPlan(this.jobPlan);
+
+            DTOProtocolResult protocolResult = this.executeProtocol(sshExecutor);
 
             if(!protocolResult.success) {
                 return false;
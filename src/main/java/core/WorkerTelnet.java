@@ -24,6 +24,7 @@ import java.util.Map;
 import abstractions.AbstractWorker;
 import abstractions.DTOProtocolResult;
 import abstractions.DTOVariableConvertResult;
+import api.ExecutionContext;
 
 
 /**
@@ -42,8 +43,8 @@ public final class WorkerTelnet extends AbstractWorker
      */
     public WorkerTelnet(Map<String, String> coordinates, Map<String, String> settings, Map<String, DTOVariableConvertResult> variables)
     {
-        this.coordinates.putAll(coordinates);
-        this.settings.putAll(settings);
+        this.coordinates = ExecutionContext.of(coordinates);
+        this.settings    = ExecutionContext.of(settings);
         this.variables.putAll(variables);
 
         /*
@@ -71,7 +72,9 @@ public final class WorkerTelnet extends AbstractWorker
 
         if(telnetExecutor !=null) {
 
-            DTOProtocolResult protocolResult = telnetExecutor.execute();
+            telnetExecutor.setJobPlan(this.jobPlan);
+
+            DTOProtocolResult protocolResult = this.executeProtocol(telnetExecutor);
 
             if(!protocolResult.success) {
                 return false;
@@ -19,7 +19,9 @@ package snmp;
 
 import abstractions.AbstractProtocol;
 import abstractions.DTOProtocolResult;
+import abstractions.DTOJob;
 import abstractions.DTOVariableConvertResult;
+import api.ExecutionContext;
 
 import java.util.Map;
 import java.util.Vector;
@@ -54,7 +56,7 @@ public class GeneralSnmp extends AbstractProtocol {
     /*
      * SNMP objects
      */
-    private Snmp snmp;
+    private volatile Snmp snmp;
     private CommunityTarget target;
     private PDU requestPDU;
 
@@ -70,10 +72,10 @@ public class GeneralSnmp extends AbstractProtocol {
      */
     GeneralSnmp(Map<String, String> coordinates, Map<String, String> settings, Map<String, String> credentials, Map<String, Map<String, String>> jobs, Map<String, DTOVariableConvertResult> variables)
     {
-        this.coordinates.putAll(coordinates);
-        this.settings.putAll(settings);
+        this.coordinates = ExecutionContext.of(coordinates);
+        this.settings    = ExecutionContext.of(settings);
         this.credentials.putAll(credentials);
-        this.jobs.putAll(jobs);
+        this.jobs = jobs; // shared read-only
         this.variables.putAll(variables);
     }
 
@@ -343,6 +345,7 @@ public class GeneralSnmp extends AbstractProtocol {
             Integer timeoutInt      = this.snmpTimeout;
             String tableField       = jobInfo.get("table_field");
             String currentVariable  = jobInfo.get("command_var");
+            DTOJob compiledJob      = this.getCompiledJob(entry.getKey());
 
             /*
              * Put empty variable to map
@@ -399,7 +402,10 @@ public class GeneralSnmp extends AbstractProtocol {
             /*
              * Parsing job timeout to integer
              */
-            if(jobInfo.get("timeout") != null && jobInfo.get("timeout").length() > 0) {
+            if(compiledJob != null && compiledJob.getTimeout() != null) {
+                timeoutInt = compiledJob.getTimeout();
+            }
+            else if(jobInfo.get("timeout") != null && jobInfo.get("timeout").length() > 0) {
                 try {
                     timeoutInt = Integer.parseInt(timeoutStr);
                 }
@@ -444,7 +450,7 @@ public class GeneralSnmp extends AbstractProtocol {
                      * Trying convert text to OID
                      */
                     try {
-                        oid = new OID(command);
+                        oid = (compiledJob != null && compiledJob.getOid() != null) ? new OID(compiledJob.getOid()) : new OID(command);
                     } catch (Exception e) {
                         String snmpSetOidConvertMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": " + command +
                                 " can't convert to SNMP OID";
@@ -528,7 +534,7 @@ public class GeneralSnmp extends AbstractProtocol {
                      * Trying convert text to OID
                      */
                     try {
-                        oid = new OID(command);
+                        oid = (compiledJob != null && compiledJob.getOid() != null) ? new OID(compiledJob.getOid()) : new OID(command);
                     } catch (Exception e) {
                         String snmpGetOidConvertMessage = "Task " + this.coordinates.get("taskName") + ", node " + this.coordinates.get("nodeId") + ": " + command +
                                 " can't convert to SNMP OID.";
@@ -705,6 +711,17 @@ public class GeneralSnmp extends AbstractProtocol {
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void abort() {
+        if(this.snmp != null) {
+            this.closeSnmp();
+        }
+    }
+
+
     /**
      * Trying to close SNMP session
      */
@@ -19,9 +19,11 @@ package ssh;
 
 import abstractions.AbstractProtocol;
 import abstractions.DTOExpectSendPair;
+import abstractions.DTOJob;
 import abstractions.DTOSendExpectPair;
 import abstractions.DTOProtocolResult;
 import abstractions.DTOVariableConvertResult;
+import api.ExecutionContext;
 
 import com.jcraft.jsch.ChannelShell;
 import com.jcraft.jsch.JSch;
@@ -60,10 +62,10 @@ public class GeneralSsh extends AbstractProtocol {
     /*
      * Expect4j object
      */
-    protected Expect4j expect      = null;
-    protected JSch jsch            = null;
-    protected Session session      = null;
-    protected ChannelShell channel = null;
+    protected volatile Expect4j expect      = null;
+    protected JSch jsch                     = null;
+    protected volatile Session session      = null;
+    protected volatile ChannelShell channel = null;
 
 
     /**
@@ -77,10 +79,10 @@ public class GeneralSsh extends AbstractProtocol {
      */
     public GeneralSsh(Map<String, String> coordinates, Map<String, String> settings, Map<String, String> credentials, Map<String, Map<String, String>> jobs, Map<String, DTOVariableConvertResult> variables)
     {
-        this.coordinates.putAll(coordinates);
-        this.settings.putAll(settings);
+        this.coordinates = ExecutionContext.of(coordinates);
+        this.settings    = ExecutionContext.of(settings);
         this.credentials.putAll(credentials);
-        this.jobs.putAll(jobs);
+        this.jobs = jobs; // shared read-only
         this.variables.putAll(variables);
     }
 
@@ -398,6 +400,7 @@ public class GeneralSsh extends AbstractProtocol {
             }
 
             Integer currentTimeoutInt;
+            DTOJob compiledJob = this.getCompiledJob(entry.getKey());
 
             if (currentTableField != null && currentTableField.length() > 0) {
                 this.result.data.put(currentTableField, "");
@@ -406,7 +409,10 @@ public class GeneralSsh extends AbstractProtocol {
             /*
              * Parsing command SSH timeout to integer
              */
-            if(currentTimeout != null && currentTimeout.length() > 0) {
+            if(compiledJob != null && compiledJob.getTimeout() != null) {
+                currentTimeoutInt = compiledJob.getTimeout();
+            }
+            else if(currentTimeout != null && currentTimeout.length() > 0) {
                 try {
                     currentTimeoutInt = Integer.parseInt(currentTimeout);
                 }
@@ -763,6 +769,15 @@ public class GeneralSsh extends AbstractProtocol {
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void abort() {
+        this.closeSsh();
+    }
+
+
     /**
      * Trying to close SSH
      */
@@ -18,9 +18,11 @@
 package telnet;
 
 import abstractions.DTOExpectSendPair;
+import abstractions.DTOJob;
 import abstractions.DTOSendExpectPair;
 import abstractions.DTOProtocolResult;
 import abstractions.DTOVariableConvertResult;
+import api.ExecutionContext;
 import abstractions.AbstractProtocol;
 
 import java.util.ArrayList;
@@ -61,7 +63,7 @@ public class GeneralTelnet extends AbstractProtocol {
     /*
      * Expect4j object
      */
-    protected Expect4j expect = null;
+    protected volatile Expect4j expect = null;
 
     /**
      * Constructor
@@ -74,10 +76,10 @@ public class GeneralTelnet extends AbstractProtocol {
      */
     public GeneralTelnet(Map<String, String> coordinates, Map<String, String> settings, Map<String, String> credentials, Map<String, Map<String, String>> jobs, Map<String, DTOVariableConvertResult> variables)
     {
-        this.coordinates.putAll(coordinates);
-        this.settings.putAll(settings);
+        this.coordinates = ExecutionContext.of(coordinates);
+        this.settings    = ExecutionContext.of(settings);
         this.credentials.putAll(credentials);
-        this.jobs.putAll(jobs);
+        this.jobs = jobs; // shared read-only
         this.variables.putAll(variables);
     }
 
@@ -393,6 +395,7 @@ public class GeneralTelnet extends AbstractProtocol {
             }
 
             Integer currentTimeoutInt;
+            DTOJob compiledJob = this.getCompiledJob(entry.getKey());
 
             if (currentTableField != null && currentTableField.length() > 0) {
                 this.result.data.put(currentTableField, "");
@@ -401,7 +404,10 @@ public class GeneralTelnet extends AbstractProtocol {
             /*
              * Parsing command telnet timeout to integer
              */
-            if(currentTimeout != null && currentTimeout.length() > 0) {
+            if(compiledJob != null && compiledJob.getTimeout() != null) {
+                currentTimeoutInt = compiledJob.getTimeout();
+            }
+            else if(currentTimeout != null && currentTimeout.length() > 0) {
                 try {
                     currentTimeoutInt = Integer.parseInt(currentTimeout);
                 }
@@ -758,6 +764,15 @@ public class GeneralTelnet extends AbstractProtocol {
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void abort() {
+        this.closeTelnet();
+    }
+
+
     /**
      * Trying to close telnet
      * @noinspection EmptyCatchBlock